@@ -0,0 +1,41 @@
+import benchmarks.UserRequestsBenchmark;
+
+/**
+ * A fixture of user request benchmarks, which calls a launched active replica.
+ * @author Shenqi Zhang
+ *
+ */
+public class ActiveUserRequestsFixture implements UserRequestsBenchmark.ActiveFixture {
+    /**
+     * Name of the replica under benchmark.
+     */
+    private static final String REPLICA_NAME = "RP1";
+    
+    /**
+     * Active replica under benchmark.
+     */
+    private ActiveReplica replica;
+    
+    /**
+     * Launches the active replica.
+     */
+    @Override
+    public void setUp() {
+        replica = new ActiveReplica(REPLICA_NAME, "UserRequestsBenchmark.active.log");
+    }
+    
+    /**
+     * Adds a user request as on receiving, checks it as on voting, and removes it as after handling.
+     * @param source source of the user request
+     * @param request user request
+     * @return true if the user request is found on voting
+     */
+    @Override
+    public boolean addCheckAndComplete(String source, String request) {
+        replica.addUserRequest(source, request);
+        String userRequest = new StringBuilder(request).append(',').append(source).toString();
+        boolean contains = replica.hasUserRequest(userRequest);
+        replica.completeUserRequest(userRequest);
+        return contains;
+    }
+}
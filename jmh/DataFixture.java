@@ -0,0 +1,118 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+import benchmarks.DataBenchmark;
+
+/**
+ * A fixture of data benchmarks, which calls a launched replica.
+ * @author Shenqi Zhang
+ *
+ */
+public class DataFixture implements DataBenchmark.Fixture {
+    /**
+     * Name of the replica under benchmark.
+     */
+    private static final String REPLICA_NAME = "RP1";
+    
+    /**
+     * Replica under benchmark.
+     */
+    private Replica replica;
+    /**
+     * Keys in the data.
+     */
+    private String[] keys;
+    
+    /**
+     * Launches the replica, and replaces its data.
+     * @param numKeys number of keys in the data
+     */
+    @Override
+    public void setUp(int numKeys) {
+        replica = new Replica(REPLICA_NAME, "DataBenchmark.log");
+        keys = new String[numKeys];
+        replica.data.clear();
+        for (int i = 0; i < numKeys; i++) {
+            keys[i] = "K" + i;
+            replica.data.put(keys[i], i);
+        }
+    }
+    
+    /**
+     * Serializes data.
+     * @return serialized data
+     */
+    @Override
+    public String serializeData() {
+        return replica.serializeData();
+    }
+    
+    /**
+     * Deserializes data.
+     * @param s serialized data
+     * @return number of keys in the data
+     */
+    @Override
+    public int deserializeData(String s) {
+        replica.deserializeData(s);
+        return replica.data.size();
+    }
+    
+    /**
+     * Takes a snapshot of data under the write lock for data, as a checkpoint does.
+     * @return number of keys in the snapshot
+     */
+    @Override
+    public int snapshotData() {
+        replica.dataLock.writeLock().lock();
+        try {
+            return replica.data.copy().size();
+        } finally {
+            replica.dataLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Increments a random key under the read lock for data.
+     * @return the value after the increment
+     */
+    @Override
+    public int increment() {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        replica.dataLock.readLock().lock();
+        try {
+            return replica.increment(key);
+        } finally {
+            replica.dataLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Increments a random key under the write lock for data.
+     * @return the value after the increment
+     */
+    @Override
+    public int incrementExclusive() {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        replica.dataLock.writeLock().lock();
+        try {
+            return replica.increment(key);
+        } finally {
+            replica.dataLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Gets the value of a random key under the read lock for data.
+     * @return the value
+     */
+    @Override
+    public int get() {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        replica.dataLock.readLock().lock();
+        try {
+            return replica.get(key);
+        } finally {
+            replica.dataLock.readLock().unlock();
+        }
+    }
+}
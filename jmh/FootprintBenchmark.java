@@ -0,0 +1,352 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.openjdk.jol.info.GraphLayout;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * A benchmark which measures the heap cost per entry of the data structures of replicas.
+ * Each structure is filled with entries in the formats replicas store, with the same types as replicas use, and the objects reachable from it are measured with JOL, in the object layout of this JVM.
+ * Keys, values and user requests are counted as part of the cost, because replicas own them.
+ * Where replicas estimate the bytes of a buffer for statistics, the estimate is shown next to the measurement.
+ * @author Shenqi Zhang
+ *
+ */
+public class FootprintBenchmark {
+    /**
+     * Default numbers of entries.
+     */
+    private static final String DEFAULT_ENTRIES = "100000,1000000";
+    /**
+     * Default number of users of user requests.
+     */
+    private static final int DEFAULT_USERS = 3;
+    /**
+     * Default number of keys of user requests.
+     */
+    private static final int DEFAULT_KEYS = 1000;
+    /**
+     * Timestamp of the first user request.
+     */
+    private static final long BASE_TIMESTAMP = 1553291426032L;
+    
+    /**
+     * Number of users of user requests.
+     */
+    private int users;
+    /**
+     * Number of keys of user requests.
+     */
+    private int keys;
+    /**
+     * Structures under benchmark.
+     * Keys are names. Values are structures.
+     */
+    private final Map<String, Structure> structures;
+    
+    /**
+     * Constructs a footprint benchmark.
+     * @param users number of users of user requests
+     * @param keys number of keys of user requests
+     */
+    public FootprintBenchmark(int users, int keys) {
+        this.users = users;
+        this.keys = keys;
+        this.structures = new LinkedHashMap<String, Structure>();
+        addStructures();
+    }
+    
+    /**
+     * Gets a user request with the source, like the entries of user requests of active replicas and the log.
+     * Increment|<key>,<timestamp>,<source>
+     * @param i index of the user request
+     * @return user request
+     */
+    private String getUserRequest(int i) {
+        return getRequest(i) + ",USR" + (i % users + 1);
+    }
+    
+    /**
+     * Gets a user request without the source, like the entries of user requests of passive replicas.
+     * Increment|<key>,<timestamp>
+     * @param i index of the user request
+     * @return user request
+     */
+    private String getRequest(int i) {
+        return new StringBuilder("Increment|K").append(i % keys).append(',').append(BASE_TIMESTAMP + i).toString();
+    }
+    
+    /**
+     * Adds structures.
+     */
+    private void addStructures() {
+        structures.put("data", new Structure() {
+            @Override
+            Object build(int entries) {
+                CounterStore data = new HeapCounterStore();
+                for (int i = 0; i < entries; i++) {
+                    data.put("K" + i, i + 1000);
+                }
+                return data;
+            }
+        });
+        
+        structures.put("data.mapped", new Structure() {
+            @Override
+            Object build(int entries) {
+                // The entries are off the heap, in a temporary data file.
+                try {
+                    File file = File.createTempFile("footprint", ".bin");
+                    file.delete();
+                    file.deleteOnExit();
+                    CounterStore data = new MappedCounterStore(file.getPath(), entries * 2);
+                    for (int i = 0; i < entries; i++) {
+                        data.put("K" + i, i + 1000);
+                    }
+                    return data;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        });
+        
+        structures.put("data.hashMap", new Structure() {
+            @Override
+            Object build(int entries) {
+                // The map which replicas used for data, as a baseline of the counter store.
+                Map<String, Integer> data = new HashMap<String, Integer>();
+                for (int i = 0; i < entries; i++) {
+                    // Values are beyond the cache of boxed integers, like values after many increments.
+                    data.put("K" + i, i + 1000);
+                }
+                return data;
+            }
+        });
+        
+        structures.put("active.userRequests", new Structure() {
+            @Override
+            Object build(int entries) {
+                Set<String> userRequests = new LinkedHashSet<String>();
+                for (int i = 0; i < entries; i++) {
+                    userRequests.add(getUserRequest(i));
+                }
+                return userRequests;
+            }
+            
+            @Override
+            long estimate(int entries) {
+                return ActiveReplica.LINKED_HASH_SET_ENTRY_BYTES + Replica.estimateBytes(getUserRequest(entries / 2));
+            }
+        });
+        
+        structures.put("active.pending", new Structure() {
+            @Override
+            Object build(int entries) {
+                // A pending user request of an active replica is in the user requests and the arrival times.
+                Set<String> userRequests = new LinkedHashSet<String>();
+                Map<String, Long> userRequestArrivals = new HashMap<String, Long>();
+                for (int i = 0; i < entries; i++) {
+                    String userRequest = getUserRequest(i);
+                    userRequests.add(userRequest);
+                    userRequestArrivals.put(userRequest, System.nanoTime());
+                }
+                return new Object[] {userRequests, userRequestArrivals};
+            }
+        });
+        
+        structures.put("active.restoredUserRequests", new Structure() {
+            @Override
+            Object build(int entries) {
+                Set<String> restoredUserRequests = new HashSet<String>();
+                for (int i = 0; i < entries; i++) {
+                    restoredUserRequests.add(getUserRequest(i));
+                }
+                return restoredUserRequests;
+            }
+            
+            @Override
+            long estimate(int entries) {
+                return ActiveReplica.HASH_SET_ENTRY_BYTES + Replica.estimateBytes(getUserRequest(entries / 2));
+            }
+        });
+        
+        structures.put("active.logBuilder", new Structure() {
+            @Override
+            Object build(int entries) {
+                StringBuilder logBuilder = new StringBuilder();
+                for (int i = 0; i < entries; i++) {
+                    logBuilder.append(getUserRequest(i)).append(';');
+                }
+                return logBuilder;
+            }
+            
+            @Override
+            long estimate(int entries) {
+                StringBuilder logBuilder = (StringBuilder) build(entries);
+                return (24 + ((16 + logBuilder.capacity() + 7) & ~7)) / entries;
+            }
+        });
+        
+        structures.put("passive.userRequests", new Structure() {
+            @Override
+            Object build(int entries) {
+                ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> userRequests = new ConcurrentHashMap<String, ConcurrentLinkedQueue<String>>();
+                for (int i = 0; i < entries; i++) {
+                    String source = "USR" + (i % users + 1);
+                    userRequests.putIfAbsent(source, new ConcurrentLinkedQueue<String>());
+                    userRequests.get(source).add(getRequest(i));
+                }
+                return userRequests;
+            }
+            
+            @Override
+            long estimate(int entries) {
+                return PassiveReplica.QUEUE_NODE_BYTES + Replica.estimateBytes(getRequest(entries / 2));
+            }
+        });
+    }
+    
+    /**
+     * Measures the structures.
+     * @param names names of structures; if empty, all structures are measured
+     * @param entryCounts numbers of entries
+     * @return results; each is the name, entries, measured bytes per entry and estimated bytes per entry (-1 if there is no estimate) separated by commas
+     */
+    public List<String> run(List<String> names, List<Integer> entryCounts) {
+        List<String> results = new ArrayList<String>();
+        for (Map.Entry<String, Structure> entry : structures.entrySet()) {
+            if (!names.isEmpty() && !names.contains(entry.getKey())) {
+                continue;
+            }
+            Structure structure = entry.getValue();
+            for (int entries : entryCounts) {
+                double bytesPerEntry = (double) GraphLayout.parseInstance(structure.build(entries)).totalSize() / entries;
+                results.add(String.format("%s,%d,%.1f,%d", entry.getKey(), entries, bytesPerEntry, structure.estimate(entries)));
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Gets the names of structures.
+     * @return names of structures
+     */
+    public Set<String> getNames() {
+        return structures.keySet();
+    }
+    
+    /**
+     * Prints the results in a table, with the heap needed by a million entries.
+     * @param results results
+     * @param out output
+     */
+    public static void printResults(List<String> results, PrintStream out) {
+        HotSpotDiagnosticMXBean diagnostic = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        out.println(String.format("Compressed references: %s. Maximum heap: %d MB.", diagnostic.getVMOption("UseCompressedOops").getValue(),
+                Runtime.getRuntime().maxMemory() >> 20));
+        out.println(String.format("%-28s %10s %12s %12s %14s", "STRUCTURE", "ENTRIES", "BYTES/ENTRY", "ESTIMATE", "PER 1M (MB)"));
+        for (String result : results) {
+            String[] strs = result.split(",");
+            double bytesPerEntry = Double.valueOf(strs[2]);
+            out.println(String.format("%-28s %10s %12.1f %12s %14.1f", strs[0], strs[1], bytesPerEntry, strs[3].equals("-1") ? "-" : strs[3], bytesPerEntry * 1000000 / 1048576));
+        }
+    }
+    
+    /**
+     * A structure which is filled with entries.
+     *
+     */
+    private abstract static class Structure {
+        /**
+         * Builds the structure with entries.
+         * @param entries number of entries
+         * @return structure
+         */
+        abstract Object build(int entries);
+        
+        /**
+         * Gets the bytes per entry estimated by replicas.
+         * @param entries number of entries
+         * @return estimated bytes per entry, or -1 if replicas do not estimate it
+         */
+        long estimate(int entries) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Launches a footprint benchmark.
+     * Give the JVM enough heap for the largest number of entries, like -Xmx2g, and JOL in the classpath, like mvn test-compile exec:exec@footprint does.
+     * java FootprintBenchmark [-entries <n1>,<n2> ...] [-users <users>] [-keys <keys>] [-o <result file>] [-list] [<structure> ...]
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        List<Integer> entryCounts = new ArrayList<Integer>();
+        for (String str : DEFAULT_ENTRIES.split(",")) {
+            entryCounts.add(Integer.valueOf(str));
+        }
+        int users = DEFAULT_USERS;
+        int keys = DEFAULT_KEYS;
+        String outputName = null;
+        boolean list = false;
+        List<String> names = new ArrayList<String>();
+        for (Iterator<String> it = Arrays.asList(args).iterator(); it.hasNext();) {
+            String arg = it.next();
+            if (arg.equals("-entries")) {
+                entryCounts.clear();
+                for (String str : it.next().split(",")) {
+                    entryCounts.add(Integer.valueOf(str));
+                }
+            } else if (arg.equals("-users")) {
+                users = Integer.valueOf(it.next());
+            } else if (arg.equals("-keys")) {
+                keys = Integer.valueOf(it.next());
+            } else if (arg.equals("-o")) {
+                outputName = it.next();
+            } else if (arg.equals("-list")) {
+                list = true;
+            } else {
+                names.add(arg);
+            }
+        }
+        
+        FootprintBenchmark benchmark = new FootprintBenchmark(users, keys);
+        if (list) {
+            for (String name : benchmark.getNames()) {
+                System.out.println(name);
+            }
+            System.exit(0);
+        }
+        
+        List<String> results = benchmark.run(names, entryCounts);
+        printResults(results, System.out);
+        if (outputName != null) {
+            try {
+                PrintStream out = new PrintStream(outputName);
+                for (String result : results) {
+                    out.println(result);
+                }
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,46 @@
+import benchmarks.UserRequestsBenchmark;
+
+/**
+ * A fixture of user request benchmarks, which calls a launched passive replica.
+ * @author Shenqi Zhang
+ *
+ */
+public class PassiveUserRequestsFixture implements UserRequestsBenchmark.PassiveFixture {
+    /**
+     * Name of the replica under benchmark.
+     */
+    private static final String REPLICA_NAME = "RP1";
+    
+    /**
+     * Passive replica under benchmark.
+     */
+    private PassiveReplica replica;
+    
+    /**
+     * Launches the passive replica.
+     */
+    @Override
+    public void setUp() {
+        replica = new PassiveReplica(REPLICA_NAME, "UserRequestsBenchmark.passive.log");
+    }
+    
+    /**
+     * Stores a user request as on receiving.
+     * @param source source of the user request
+     * @param request user request
+     */
+    @Override
+    public void enqueueUserRequest(String source, String request) {
+        replica.enqueueUserRequest(source, request);
+    }
+    
+    /**
+     * Removes user requests of a user no after the timestamp, as the user requests updater does after a checkpoint.
+     * @param user user
+     * @param targetTimestamp timestamp of the latest request of the user in the checkpoint
+     */
+    @Override
+    public void pruneUserRequests(String user, long targetTimestamp) {
+        replica.createUserRequestsUpdater(user, targetTimestamp).run();
+    }
+}
@@ -0,0 +1,39 @@
+import benchmarks.ProtocolBenchmark;
+
+/**
+ * A fixture of protocol benchmarks, which calls the connection manager.
+ * @author Shenqi Zhang
+ *
+ */
+public class ProtocolFixture implements ProtocolBenchmark.Fixture {
+    /**
+     * Parses the type of a request.
+     * @param request request
+     * @return ordinal of the request type
+     */
+    @Override
+    public int getRequestType(String request) {
+        return ConnectionManager.getRequestType(request).ordinal();
+    }
+    
+    /**
+     * Encodes a request without trace context.
+     * @param source source of the request
+     * @param request request
+     * @return encoded request
+     */
+    @Override
+    public String encodeRequest(String source, String request) {
+        return ConnectionManager.encodeRequest(source, null, request);
+    }
+    
+    /**
+     * Decodes a request.
+     * @param encodedRequest encoded request
+     * @return source, trace id, span id and request
+     */
+    @Override
+    public String[] decodeRequest(String encodedRequest) {
+        return ConnectionManager.decodeRequest(encodedRequest);
+    }
+}
@@ -0,0 +1,169 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of data of a replica: serialization, snapshots, and increments and gets under the lock for data.
+ * They run on a launched replica RP1, whose data is replaced by the keys under benchmark.
+ * @author Shenqi Zhang
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class DataBenchmark {
+    /**
+     * Operations on data of a replica.
+     *
+     */
+    public interface Fixture {
+        /**
+         * Launches the replica, and replaces its data.
+         * @param keys number of keys in the data
+         */
+        void setUp(int keys);
+        
+        /**
+         * Serializes data.
+         * @return serialized data
+         */
+        String serializeData();
+        
+        /**
+         * Deserializes data.
+         * @param s serialized data
+         * @return number of keys in the data
+         */
+        int deserializeData(String s);
+        
+        /**
+         * Takes a snapshot of data under the write lock for data, as a checkpoint does.
+         * @return number of keys in the snapshot
+         */
+        int snapshotData();
+        
+        /**
+         * Increments a random key under the read lock for data, like user requests of replicas without total order.
+         * @return the value after the increment
+         */
+        int increment();
+        
+        /**
+         * Increments a random key under the write lock for data, like user requests of active replicas.
+         * @return the value after the increment
+         */
+        int incrementExclusive();
+        
+        /**
+         * Gets the value of a random key under the read lock for data.
+         * @return the value
+         */
+        int get();
+    }
+    
+    /**
+     * Number of keys in the data.
+     */
+    @Param("1000")
+    public int keys;
+    /**
+     * Fixture.
+     */
+    private Fixture fixture;
+    /**
+     * Serialized data.
+     */
+    private String serializedData;
+    
+    /**
+     * Launches the replica.
+     */
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load("DataFixture", Fixture.class);
+        fixture.setUp(keys);
+        serializedData = fixture.serializeData();
+    }
+    
+    /**
+     * Serializes data.
+     * @return serialized data
+     */
+    @Benchmark
+    public String serializeData() {
+        return fixture.serializeData();
+    }
+    
+    /**
+     * Takes a snapshot of data.
+     * @return number of keys in the snapshot
+     */
+    @Benchmark
+    public int snapshotData() {
+        return fixture.snapshotData();
+    }
+    
+    /**
+     * Deserializes data.
+     * @return number of keys in the data
+     */
+    @Benchmark
+    public int deserializeData() {
+        return fixture.deserializeData(serializedData);
+    }
+    
+    /**
+     * Increments without contention.
+     * @return the value after the increment
+     */
+    @Benchmark
+    public int increment() {
+        return fixture.increment();
+    }
+    
+    /**
+     * Increments under the read lock with contention.
+     * @return the value after the increment
+     */
+    @Benchmark
+    @Threads(4)
+    public int incrementContended() {
+        return fixture.increment();
+    }
+    
+    /**
+     * Increments under the write lock with contention.
+     * @return the value after the increment
+     */
+    @Benchmark
+    @Threads(4)
+    public int incrementExclusiveContended() {
+        return fixture.incrementExclusive();
+    }
+    
+    /**
+     * Gets under the read lock with contention.
+     * @return the value
+     */
+    @Benchmark
+    @Threads(4)
+    public int getContended() {
+        return fixture.get();
+    }
+}
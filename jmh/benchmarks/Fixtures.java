@@ -0,0 +1,31 @@
+package benchmarks;
+
+/**
+ * Loader of benchmark fixtures.
+ * JMH requires benchmarks to be in a named package, while the programs are in the default package, which a named package cannot refer to.
+ * So each benchmark calls the programs through a fixture in the default package, which implements an interface of the benchmark.
+ * The fixture is loaded by name once, and then called directly.
+ * @author Shenqi Zhang
+ *
+ */
+public final class Fixtures {
+    /**
+     * Prevents instantiation.
+     */
+    private Fixtures() {}
+    
+    /**
+     * Loads a fixture in the default package.
+     * @param className the name of the fixture class
+     * @param type the interface which the fixture implements
+     * @param <T> type of the fixture
+     * @return fixture
+     */
+    public static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load fixture " + className, e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the text protocol of the connection manager: parsing of request types, and encoding and decoding of requests.
+ * @author Shenqi Zhang
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    /**
+     * Operations of the text protocol.
+     *
+     */
+    public interface Fixture {
+        /**
+         * Parses the type of a request.
+         * @param request request
+         * @return ordinal of the request type
+         */
+        int getRequestType(String request);
+        
+        /**
+         * Encodes a request without trace context.
+         * @param source source of the request
+         * @param request request
+         * @return encoded request
+         */
+        String encodeRequest(String source, String request);
+        
+        /**
+         * Decodes a request.
+         * @param encodedRequest encoded request
+         * @return source, trace id, span id and request
+         */
+        String[] decodeRequest(String encodedRequest);
+    }
+    
+    /**
+     * Requests of each type which replicas handle most.
+     */
+    private static final String[] REQUESTS = {"Get|A,1553291426032", "Increment|A,1553291426032", "Decrement|A,1553291426032",
+                                              "Vote|Increment|A,1553291426032,USR1", "Do|Increment|A,1553291426032,USR1", "Checkpoint|12|RlRTTgIAAAAAAA==",
+                                              "Membership|RP1,RP2,RP3", "Statistics"};
+    /**
+     * Encoded requests, with and without trace context.
+     */
+    private static final String[] ENCODED_REQUESTS = {"USR1|Increment|A,1553291426032", "RP1#6b1c2f4e9d3a7c15#0e4f8a2b6c1d9e37|Do|Increment|A,1553291426032,USR1"};
+    
+    /**
+     * Fixture.
+     */
+    private Fixture fixture;
+    /**
+     * Number of operations, which selects the next request.
+     */
+    private int operations;
+    
+    /**
+     * Loads the fixture.
+     */
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load("ProtocolFixture", Fixture.class);
+    }
+    
+    /**
+     * Parses the type of a request.
+     * @return ordinal of the request type
+     */
+    @Benchmark
+    public int getRequestType() {
+        return fixture.getRequestType(REQUESTS[operations++ & 7]);
+    }
+    
+    /**
+     * Encodes a request.
+     * @return encoded request
+     */
+    @Benchmark
+    public String encodeRequest() {
+        return fixture.encodeRequest("USR1", "Increment|A,1553291426032");
+    }
+    
+    /**
+     * Decodes a request.
+     * @return source, trace id, span id and request
+     */
+    @Benchmark
+    public String[] decodeRequest() {
+        return fixture.decodeRequest(ENCODED_REQUESTS[operations++ & 1]);
+    }
+}
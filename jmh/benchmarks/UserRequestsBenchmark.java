@@ -0,0 +1,162 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of user requests stored by replicas: the user request set of an active replica, and the pruning of user requests of a passive backup replica.
+ * They run on a launched replica RP1, which never receives membership, so it stays a backup which only stores user requests.
+ * @author Shenqi Zhang
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class UserRequestsBenchmark {
+    /**
+     * Number of distinct user requests.
+     */
+    private static final int REQUESTS = 256;
+    /**
+     * Number of user requests stored before each pruning.
+     */
+    private static final int PRUNED_REQUESTS = 16;
+    
+    /**
+     * Operations on user requests of an active replica.
+     *
+     */
+    public interface ActiveFixture {
+        /**
+         * Launches the active replica.
+         */
+        void setUp();
+        
+        /**
+         * Adds a user request as on receiving, checks it as on voting, and removes it as after handling.
+         * @param source source of the user request
+         * @param request user request
+         * @return true if the user request is found on voting
+         */
+        boolean addCheckAndComplete(String source, String request);
+    }
+    
+    /**
+     * Operations on user requests of a passive backup replica.
+     *
+     */
+    public interface PassiveFixture {
+        /**
+         * Launches the passive replica.
+         */
+        void setUp();
+        
+        /**
+         * Stores a user request as on receiving.
+         * @param source source of the user request
+         * @param request user request
+         */
+        void enqueueUserRequest(String source, String request);
+        
+        /**
+         * Removes user requests of a user no after the timestamp, as after a checkpoint.
+         * @param user user
+         * @param targetTimestamp timestamp of the latest request of the user in the checkpoint
+         */
+        void pruneUserRequests(String user, long targetTimestamp);
+    }
+    
+    /**
+     * State of an active replica.
+     *
+     */
+    @State(Scope.Benchmark)
+    public static class ActiveState {
+        /**
+         * Fixture.
+         */
+        private ActiveFixture fixture;
+        /**
+         * User requests.
+         */
+        private final String[] requests = new String[REQUESTS];
+        /**
+         * Number of operations, which selects the next user request.
+         */
+        private int operations;
+        
+        /**
+         * Launches the active replica.
+         */
+        @Setup
+        public void setUp() {
+            fixture = Fixtures.load("ActiveUserRequestsFixture", ActiveFixture.class);
+            fixture.setUp();
+            long timestamp = System.currentTimeMillis();
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = "Increment|K" + (i % 10) + ',' + (timestamp + i);
+            }
+        }
+    }
+    
+    /**
+     * State of a passive backup replica.
+     *
+     */
+    @State(Scope.Benchmark)
+    public static class PassiveState {
+        /**
+         * Fixture.
+         */
+        private PassiveFixture fixture;
+        /**
+         * Timestamp of the latest user request.
+         */
+        private long timestamp;
+        
+        /**
+         * Launches the passive replica.
+         */
+        @Setup
+        public void setUp() {
+            fixture = Fixtures.load("PassiveUserRequestsFixture", PassiveFixture.class);
+            fixture.setUp();
+        }
+    }
+    
+    /**
+     * Adds, checks and removes a user request of an active replica.
+     * @param state state of the active replica
+     * @return true if the user request is found on voting
+     */
+    @Benchmark
+    public boolean userRequests(ActiveState state) {
+        return state.fixture.addCheckAndComplete("USR1", state.requests[state.operations++ & (REQUESTS - 1)]);
+    }
+    
+    /**
+     * Stores user requests of a passive backup replica, and removes half of them, as after a checkpoint.
+     * @param state state of the passive replica
+     * @return timestamp of the latest user request
+     */
+    @Benchmark
+    public long userRequestsPruning(PassiveState state) {
+        for (int i = 0; i < PRUNED_REQUESTS; i++) {
+            state.fixture.enqueueUserRequest("USR1", new StringBuilder("Increment|K").append(i).append(',').append(++state.timestamp).toString());
+        }
+        state.fixture.pruneUserRequests("USR1", state.timestamp - PRUNED_REQUESTS / 2);
+        return state.timestamp;
+    }
+}
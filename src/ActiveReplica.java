@@ -1,5 +1,13 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +20,26 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *
  */
 public class ActiveReplica extends Replica {
+    /**
+     * Estimated bytes of an entry in a linked hash set, excluding the element.
+     */
+    protected static final long LINKED_HASH_SET_ENTRY_BYTES = 48;
+    /**
+     * Estimated bytes of an entry in a hash set, excluding the element.
+     */
+    protected static final long HASH_SET_ENTRY_BYTES = 40;
+    /**
+     * Default number of logs of previous checkpoints retained for delta restoration.
+     */
+    protected static final int DEFAULT_RESTORE_HISTORY = 12;
+    /**
+     * Default maximum number of characters of a chunk of restoration.
+     */
+    protected static final int DEFAULT_RESTORE_CHUNK_SIZE = 65536;
+    /**
+     * Maximum number of transfers of restoration kept for joining replicas.
+     */
+    private static final int MAX_TRANSFERS = 4;
     /**
      * User requests.
      */
@@ -20,6 +48,16 @@ public class ActiveReplica extends Replica {
      * User requests restored from another replica.
      */
     private Set<String> restoredUserRequests;
+    /**
+     * Spans of user requests.
+     * Keys are user requests. Values are spans in which user requests are received.
+     */
+    private Map<String, Tracer.Span> userRequestSpans;
+    /**
+     * Arrival times of user requests.
+     * Keys are user requests. Values are times in nanoseconds when user requests are received.
+     */
+    private Map<String, Long> userRequestArrivals;
     /**
      * Current user request.
      */
@@ -36,6 +74,60 @@ public class ActiveReplica extends Replica {
      * Log builder.
      */
     private StringBuilder logBuilder;
+    /**
+     * Number of user requests in the log.
+     */
+    private int logSize;
+    /**
+     * Number of user requests handled in total order, which is the same on every replica after the same user requests.
+     */
+    private long sequence;
+    /**
+     * Sequence of the checkpoint.
+     */
+    private long checkpointSequence;
+    /**
+     * Epoch of the total order. A replica which begins the order picks a new epoch, and a restored replica adopts the epoch of its source, so that sequences are compared only in the same order.
+     */
+    private long epoch;
+    /**
+     * Logs of previous checkpoints retained for delta restoration, oldest first.
+     */
+    private final ArrayDeque<String> history;
+    /**
+     * Numbers of user requests in the retained logs.
+     */
+    private final ArrayDeque<Integer> historySizes;
+    /**
+     * Sequence before the oldest retained log, or of the checkpoint if no log is retained.
+     */
+    private long historySequence;
+    /**
+     * Maximum number of retained logs.
+     */
+    private int restoreHistory;
+    /**
+     * Maximum number of characters of a chunk of restoration.
+     */
+    private int restoreChunkSize;
+    /**
+     * True if a new replica restores ranges of data from several replicas in parallel.
+     */
+    private boolean restoreParallel;
+    /**
+     * Transfers of restoration to joining replicas, the oldest of which is dropped beyond the limit.
+     * Keys are ids. Values are transfers.
+     */
+    private final Map<Long, Transfer> transfers;
+    /**
+     * Id of the latest transfer.
+     */
+    private long transferId;
+    /**
+     * True if data is at the position of the sequence in the epoch, so that restoration asks only for user requests after it.
+     * Only the thread which restores accesses it.
+     */
+    private boolean positioned;
     /**
      * True if this replica finished restoration.
      */
@@ -60,6 +152,22 @@ public class ActiveReplica extends Replica {
      * Object for user requests.
      */
     private final Object userRequestsObj;
+    /**
+     * Buffer monitor for user requests.
+     */
+    private final BufferMonitor userRequestsMonitor;
+    /**
+     * Buffer monitor for restored user requests.
+     */
+    private final BufferMonitor restoredUserRequestsMonitor;
+    /**
+     * Buffer monitor for the log builder.
+     */
+    private final BufferMonitor logBuilderMonitor;
+    /**
+     * Buffer monitor for the retained logs.
+     */
+    private final BufferMonitor historyMonitor;
     
     /**
      * Constructs an active replica.
@@ -101,16 +209,64 @@ public class ActiveReplica extends Replica {
         super(name, heartbeatInterval, heartbeatTolerance, checkpointInterval, logName);
         this.userRequests = new LinkedHashSet<String>();
         this.restoredUserRequests = new HashSet<String>();
+        this.userRequestSpans = new HashMap<String, Tracer.Span>();
+        this.userRequestArrivals = new HashMap<String, Long>();
         this.currentUserRequest = "";
         this.previousUserRequest = "";
         this.checkpoint = serializeData();
         this.logBuilder = new StringBuilder();
+        // A replica which recovers data from its write-ahead log continues from the recovered position.
+        this.sequence = getLogPosition();
+        this.checkpointSequence = sequence;
+        this.epoch = wal == null ? 0 : wal.getEpoch();
+        this.history = new ArrayDeque<String>();
+        this.historySizes = new ArrayDeque<Integer>();
+        this.historySequence = sequence;
+        String restoreHistoryStr = getParameters("replica.conf").get("restore_history");
+        this.restoreHistory = restoreHistoryStr == null ? DEFAULT_RESTORE_HISTORY : Integer.valueOf(restoreHistoryStr);
+        String restoreChunkSizeStr = getParameters("replica.conf").get("restore_chunk_size");
+        this.restoreChunkSize = restoreChunkSizeStr == null ? DEFAULT_RESTORE_CHUNK_SIZE : Integer.valueOf(restoreChunkSizeStr);
+        if (restoreChunkSize <= 0) {
+            printLog("Error: Invalid restore chunk size!");
+            System.exit(0);
+        }
+        String restoreParallelStr = getParameters("replica.conf").get("restore_parallel");
+        this.restoreParallel = "on".equals(restoreParallelStr);
+        if (restoreParallelStr != null && !restoreParallel && !restoreParallelStr.equals("off")) {
+            printLog(new StringBuilder("Error: Invalid parallel restoration ").append(restoreParallelStr).append('!').toString());
+            System.exit(0);
+        }
+        this.transfers = new LinkedHashMap<Long, Transfer>() {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Transfer> eldest) {
+                return size() > MAX_TRANSFERS;
+            }
+        };
+        this.transferId = 0;
+        this.positioned = false;
         this.restored = false;
         this.quiescent = false;
-        this.userRequestsLock = new ReentrantReadWriteLock();
+        this.userRequestsLock = new InstrumentedReadWriteLock("userRequestsLock", statistics);
         this.restorationObj = new Object();
         this.quiescenceObj = new Object();
         this.userRequestsObj = new Object();
+        this.userRequestsMonitor = new BufferMonitor("userRequests");
+        this.restoredUserRequestsMonitor = new BufferMonitor("restoredUserRequests");
+        this.logBuilderMonitor = new BufferMonitor("logBuilder");
+        this.historyMonitor = new BufferMonitor("restoreHistory");
+        
+        start(ActiveReplica.class);
+    }
+    
+    /**
+     * Returns false, because this replica is ready to serve only after restoration.
+     * @return false
+     */
+    @Override
+    protected boolean isReadyWhenStarted() {
+        return false;
     }
     
     /**
@@ -136,9 +292,17 @@ public class ActiveReplica extends Replica {
      * @param request request
      */
     protected void addUserRequest(String source, String request) {
+        String userRequest = new StringBuilder(request).append(",").append(source).toString();
+        Tracer.Span span = Tracer.currentSpan();
         userRequestsLock.writeLock().lock();
         try {
-            userRequests.add(new StringBuilder(request).append(",").append(source).toString());
+            if (userRequests.add(userRequest)) {
+                userRequestsMonitor.add(1, LINKED_HASH_SET_ENTRY_BYTES + estimateBytes(userRequest));
+                userRequestArrivals.put(userRequest, System.nanoTime());
+            }
+            if (span != null) {
+                userRequestSpans.put(userRequest, span);
+            }
         } finally {
             userRequestsLock.writeLock().unlock();
         }
@@ -171,12 +335,15 @@ public class ActiveReplica extends Replica {
             handleCheckpointIntervalRequest(source, request);
             break;
         case GET:
+            capture.record(source, request);
             handleGetRequest(source, request);
             break;
         case INCREMENT:
+            capture.record(source, request);
             handleIncrementRequest(source, request);
             break;
         case DECREMENT:
+            capture.record(source, request);
             handleDecrementRequest(source, request);
             break;
         case VOTE:
@@ -197,12 +364,27 @@ public class ActiveReplica extends Replica {
         case RESTORE:
             handleRestoreRequest(source, request);
             break;
+        case CHUNK:
+            handleChunkRequest(source, request);
+            break;
+        case POSITION:
+            handlePositionRequest(source, request);
+            break;
+        case RANGE:
+            handleRangeRequest(source, request);
+            break;
         case CURRENT:
             handleCurrentRequest(source, request);
             break;
         case PREVIOUS:
             handlePreviousRequest(source, request);
             break;
+        case STATISTICS:
+            handleStatisticsRequest(source, request);
+            break;
+        case READY:
+            handleReadyRequest(source, request);
+            break;
         default:
             printLog(new StringBuilder("Error: Invalid request ").append(request).append('!').toString());
             System.exit(0);
@@ -219,6 +401,7 @@ public class ActiveReplica extends Replica {
     protected void handleMembershipRequest(String source, String request) {
         int index = request.indexOf('|');
         String membershipStr = index == request.length() - 1 ? "" : request.substring(index + 1);
+        replicaManager = source;
         membershipLock.writeLock().lock();
         try {
             deserializeMembership(membershipStr);
@@ -227,37 +410,58 @@ public class ActiveReplica extends Replica {
             if (!restored) {
                 // If this is not the first replica, restore data and user requests from another replica.
                 if (membership.size() > 1) {
+                    long restoreStart = System.nanoTime();
                     printLog("Restore.");
                     sendRequestToGroup(membership, name, "Block");
-                    String response;
+                    // A replica which recovers data from its write-ahead log asks only for user requests after its position.
+                    positioned = recovered;
+                    if (!positioned && restoreParallel) {
+                        restoreRanges();
+                    }
+                    boolean done = false;
                     for (String member : membership) {
                         if (member.equals(name)) {
                             continue;
                         }
-                        if ((response = sendRequest(member, "Restore")) != null) {
-                            int index1 = response.indexOf('&');
-                            int index2 = response.indexOf('&', index1 + 1);
-                            String checkpointResponse = index1 == 0 ? "" : response.substring(0, index1);
-                            String logResponse = index2 == index1 + 1 ? "" : response.substring(index1 + 1, index2);
-                            String userRequestsResponse = index2 == response.length() - 1 ? "" : response.substring(index2 + 1);
-                            restoreData(checkpointResponse, logResponse);
-                            checkpoint = serializeData();
-                            restoreUserRequests(userRequestsResponse);
+                        String restoreRequest = positioned ? new StringBuilder("Restore|").append(epoch).append(',').append(sequence).toString() : "Restore";
+                        try {
+                            ChunkReader reader = new ChunkReader(member, restoreRequest);
+                            restoreData(reader);
+                            restoreUserRequests(reader);
+                            statistics.set("restore.chunks", reader.getChunks());
+                            done = true;
                             break;
+                        } catch (IOException e) {
+                            // A corrupted or broken transfer is abandoned, and the next member is asked.
+                            printLog(new StringBuilder("Error: ").append(e.getMessage()).append('!').toString());
                         }
                     }
+                    if (!done) {
+                        // Data may be cleared or partly restored, so this replica never becomes ready with it.
+                        sendRequestToGroup(membership, name, "Unblock");
+                        printLog("Error: Cannot restore from any replica!");
+                        System.exit(0);
+                    }
+                    resetCheckpoint();
                     printData();
                     sendRequestToGroup(membership, name, "Unblock");
+                    statistics.set("restore.millis", (System.nanoTime() - restoreStart) / 1000000);
+                } else {
+                    // This replica begins the total order, so sequences of any previous order are not comparable with it.
+                    epoch = System.currentTimeMillis();
+                    resetCheckpoint();
                 }
                 
                 restored = true;
                 synchronized(restorationObj) {
                     restorationObj.notify();
                 }
+                setReady();
                 new Thread(new CheckpointUpdater()).start();
             }
             
             if (!primary && membership.get(0).equals(name)) {
+                long upgradeStart = System.nanoTime();
                 printLog("Become the primary.");
                 primary = true;
                 // There is a corner case.
@@ -316,6 +520,8 @@ public class ActiveReplica extends Replica {
                     }
                 }
                 new Thread(new VoteInitiator()).start();
+                launchLagMonitor();
+                statistics.set("upgrade.millis", (System.nanoTime() - upgradeStart) / 1000000);
             }
         } finally {
             membershipLock.writeLock().unlock();
@@ -323,6 +529,37 @@ public class ActiveReplica extends Replica {
         sendResponse(source, "ACK");
     }
     
+    /**
+     * Removes a handled user request and records its latency.
+     * The caller must hold the user requests lock.
+     * @param userRequest user request
+     */
+    private void removeUserRequest(String userRequest) {
+        if (userRequests.remove(userRequest)) {
+            userRequestsMonitor.remove(1, LINKED_HASH_SET_ENTRY_BYTES + estimateBytes(userRequest));
+        }
+        userRequestSpans.remove(userRequest);
+        Long arrival = userRequestArrivals.remove(userRequest);
+        if (arrival != null) {
+            recordUserLatency(arrival);
+        }
+    }
+    
+    /**
+     * Measures the lag of a backup replica behind this primary replica.
+     * Every replica handles user requests in the same total order, so the backup is behind by the user requests it stores more than this replica.
+     * @param backup backup replica
+     * @param backupStatistics statistics of the backup replica
+     * @return operations behind, milliseconds behind and pending requests
+     */
+    @Override
+    protected long[] measureLag(String backup, Map<String, String> backupStatistics) {
+        long pending = getStatistic(backupStatistics, "buffer.userRequests.entries") + getStatistic(backupStatistics, "buffer.restoredUserRequests.entries");
+        long operations = Math.max(pending - userRequestsMonitor.getEntries() - restoredUserRequestsMonitor.getEntries(), 0);
+        long millis = Math.max(getStatistic(backupStatistics, "applied.age") - getAppliedAge(), 0);
+        return new long[] {operations, millis, pending};
+    }
+    
     /**
      * Handles the get request from the source.
      * Get|<key>
@@ -371,18 +608,28 @@ public class ActiveReplica extends Replica {
         waitForRestoration();
         String userRequest = request.substring(request.indexOf('|') + 1);
         String response;
+        if (hasUserRequest(userRequest)) {
+            response = "Yes";
+            currentUserRequest = userRequest;
+        } else {
+            response = "No";
+        }
+        sendResponse(source, response);
+    }
+    
+    /**
+     * Returns true if the user request is received or restored, and not handled yet.
+     * <request>,<source>
+     * @param userRequest user request
+     * @return true if the user request is received or restored
+     */
+    boolean hasUserRequest(String userRequest) {
         userRequestsLock.readLock().lock();
         try {
-            if (userRequests.contains(userRequest) || restoredUserRequests.contains(userRequest)) {
-                response = "Yes";
-                currentUserRequest = userRequest;
-            } else {
-                response = "No";
-            }
+            return userRequests.contains(userRequest) || restoredUserRequests.contains(userRequest);
         } finally {
             userRequestsLock.readLock().unlock();
         }
-        sendResponse(source, response);
     }
     
     /**
@@ -406,16 +653,27 @@ public class ActiveReplica extends Replica {
             userRequestsLock.readLock().unlock();
         }
         
+        completeUserRequest(userRequest);
+        previousUserRequest = currentUserRequest;
+        currentUserRequest = "";
+        sendResponse(source, "ACK");
+    }
+    
+    /**
+     * Removes a handled user request from the received and restored user requests.
+     * <request>,<source>
+     * @param userRequest user request
+     */
+    void completeUserRequest(String userRequest) {
         userRequestsLock.writeLock().lock();
         try {
-            userRequests.remove(userRequest);
+            removeUserRequest(userRequest);
         } finally {
             userRequestsLock.writeLock().unlock();
         }
-        restoredUserRequests.remove(userRequest);
-        previousUserRequest = currentUserRequest;
-        currentUserRequest = "";
-        sendResponse(source, "ACK");
+        if (restoredUserRequests.remove(userRequest)) {
+            restoredUserRequestsMonitor.remove(1, HASH_SET_ENTRY_BYTES + estimateBytes(userRequest));
+        }
     }
     
     /**
@@ -460,37 +718,155 @@ public class ActiveReplica extends Replica {
     
     /**
      * Handles the restore request from the source.
+     * If the source asks for user requests after its position, and the retained logs in the same epoch cover them, only those user requests are sent.
+     * The response is split into chunks, the first of which is the response to this request; the source asks for the others one by one.
+     * Each chunk begins with the id of the transfer, and whether it is the last chunk.
+     * The checkpoint string is sent as it is, without being copied into the response.
      * Restore
+     * Restore|<epoch>,<sequence>
+     * <id>,<0|1>|<chunk>
+     * The concatenation of the chunks is either of the following.
+     * Checkpoint|<epoch>,<sequence>&<checkpoint>&<log>&<user requests>
+     * Delta|<epoch>,<sequence>&&<log after sequence>&<user requests>
      * @param source source of the request in the distributed system
      * @param request request
      */
     protected void handleRestoreRequest(String source, String request) {
-        StringBuilder sb = new StringBuilder();
+        int index1 = request.indexOf('|');
+        int index2 = request.indexOf(',');
+        long requestedEpoch = index1 < 0 ? -1 : Long.valueOf(request.substring(index1 + 1, index2));
+        long requestedSequence = index1 < 0 ? -1 : Long.valueOf(request.substring(index2 + 1));
+        List<String> parts = new ArrayList<String>();
         dataLock.readLock().lock();
         try {
-            sb.append(checkpoint).append('&');
-            sb.append(logBuilder.toString());
+            if (requestedEpoch == epoch && requestedSequence >= historySequence && requestedSequence <= sequence) {
+                StringBuilder sb = new StringBuilder("Delta|").append(epoch).append(',').append(requestedSequence).append("&&");
+                appendLogAfter(sb, requestedSequence);
+                parts.add(sb.append('&').toString());
+            } else {
+                parts.add(new StringBuilder("Checkpoint|").append(epoch).append(',').append(checkpointSequence).append('&').toString());
+                parts.add(checkpoint);
+                parts.add(new StringBuilder("&").append(logBuilder).append('&').toString());
+            }
         } finally {
             dataLock.readLock().unlock();
         }
         
-        if (sb.charAt(sb.length() - 1) == ';') {
-            sb.setCharAt(sb.length() - 1, '&');
-        } else {
-            sb.append('&');
-        }
-        
         userRequestsLock.readLock().lock();
         try {
-            sb.append(serializeUserRequests());
+            parts.add(serializeUserRequests());
         } finally {
             userRequestsLock.readLock().unlock();
         }
         
-        String response = sb.toString();
+        Transfer transfer = new Transfer(parts);
+        String response;
+        synchronized(transfers) {
+            transferId++;
+            transfers.put(transferId, transfer);
+            response = nextChunk(transferId, transfer);
+        }
         sendResponse(source, response);
     }
     
+    /**
+     * Handles the chunk request from the source.
+     * If the transfer is unknown, like one dropped beyond the limit, the source asks another replica.
+     * Chunk|<id>
+     * <id>,<0|1>|<chunk>
+     * Unknown
+     * @param source source of the request in the distributed system
+     * @param request request
+     */
+    protected void handleChunkRequest(String source, String request) {
+        long id = Long.valueOf(request.substring(request.indexOf('|') + 1));
+        String response;
+        synchronized(transfers) {
+            Transfer transfer = transfers.get(id);
+            response = transfer == null ? "Unknown" : nextChunk(id, transfer);
+        }
+        sendResponse(source, response);
+    }
+    
+    /**
+     * Takes the next chunk of a transfer, and forgets the transfer after its last chunk.
+     * The caller must hold the lock of the transfers.
+     * <id>,<0|1>|<chunk>
+     * @param id id of the transfer
+     * @param transfer transfer
+     * @return chunk response
+     */
+    private String nextChunk(long id, Transfer transfer) {
+        String chunk = transfer.next(restoreChunkSize);
+        boolean last = transfer.isDone();
+        if (last) {
+            transfers.remove(id);
+        }
+        return new StringBuilder().append(id).append(',').append(last ? 1 : 0).append('|').append(chunk).toString();
+    }
+    
+    /**
+     * Handles the position request from the source.
+     * Position
+     * <epoch>,<sequence>
+     * @param source source of the request in the distributed system
+     * @param request request
+     */
+    protected void handlePositionRequest(String source, String request) {
+        String response;
+        dataLock.readLock().lock();
+        try {
+            response = new StringBuilder().append(epoch).append(',').append(sequence).toString();
+        } finally {
+            dataLock.readLock().unlock();
+        }
+        sendResponse(source, response);
+    }
+    
+    /**
+     * Handles the range request from the source.
+     * A range is the keys whose hash codes are equal to its index modulo the number of ranges, so that replicas agree on it whatever their slots are.
+     * The range is sent only if this replica is at the pinned position, so that all ranges of a restoration are of the same data.
+     * Range|<epoch>,<sequence>|<index>,<count>
+     * <range>
+     * Mismatch
+     * @param source source of the request in the distributed system
+     * @param request request
+     */
+    protected void handleRangeRequest(String source, String request) {
+        int index1 = request.indexOf('|');
+        int index2 = request.indexOf(',');
+        int index3 = request.indexOf('|', index1 + 1);
+        int index4 = request.indexOf(',', index3 + 1);
+        long pinnedEpoch = Long.valueOf(request.substring(index1 + 1, index2));
+        long pinnedSequence = Long.valueOf(request.substring(index2 + 1, index3));
+        int index = Integer.valueOf(request.substring(index3 + 1, index4));
+        int count = Integer.valueOf(request.substring(index4 + 1));
+        CounterStore snapshot = null;
+        // The write lock is held to take a snapshot, like the checkpoint updater does.
+        dataLock.writeLock().lock();
+        try {
+            if (pinnedEpoch == epoch && pinnedSequence == sequence) {
+                snapshot = data.copy();
+            }
+        } finally {
+            dataLock.writeLock().unlock();
+        }
+        if (snapshot == null) {
+            sendResponse(source, "Mismatch");
+            return;
+        }
+        
+        List<String> keys = new ArrayList<String>();
+        for (int slot = snapshot.next(-1); slot >= 0; slot = snapshot.next(slot)) {
+            String key = snapshot.getKey(slot);
+            if (Math.floorMod(key.hashCode(), count) == index) {
+                keys.add(key);
+            }
+        }
+        sendResponse(source, SnapshotFormat.encode(snapshot, keys, null));
+    }
+    
     /**
      * Handles the current request from the source.
      * Current
@@ -538,10 +914,13 @@ public class ActiveReplica extends Replica {
                 printLog(new StringBuilder("Error: Invalid user request ").append(request).append('!').toString());
                 System.exit(0);
             }
-            logBuilder.append(request).append(';');
+            advanceSequence(request);
+            appendLog(request);
         } finally {
             dataLock.writeLock().unlock();
         }
+        commitLog();
+        recordHotKey(key);
         String response = value == null ? "No such key." : String.valueOf(value);
         sendResponse(source, response);
     }
@@ -557,7 +936,7 @@ public class ActiveReplica extends Replica {
         dataLock.writeLock().lock();
         try {
             reHandleUserRequest(request);
-            logBuilder.append(request).append(';');
+            appendLog(request);
         } finally {
             dataLock.writeLock().unlock();
         }
@@ -568,6 +947,7 @@ public class ActiveReplica extends Replica {
      * Get|<key>,<timestamp>,<source>
      * Increment|<key>,<timestamp>,<source>
      * Decrement|<key>,<timestamp>,<source>
+     * The caller must hold the write lock for data.
      * @param request request
      */
     private void reHandleUserRequest(String request) {
@@ -585,47 +965,361 @@ public class ActiveReplica extends Replica {
             printLog(new StringBuilder("Error: Invalid user request ").append(request).append('!').toString());
             System.exit(0);
         }
+        advanceSequence(request);
     }
     
     /**
-     * Restores data.
-     * @param checkpointResponse checkpoint response from another replica
-     * @param logResponse log response from another replica
+     * Counts a user request handled in total order, and logs the position after a write operation.
+     * Read-only user requests are not logged, because handling them again after recovery changes nothing.
+     * The caller must hold the write lock for data.
+     * @param request request
      */
-    private void restoreData(String checkpointResponse, String logResponse) {
-        deserializeData(checkpointResponse);
-        if (logResponse.length() > 0) {
-            String[] requests = logResponse.split(";");
-            for (String request : requests) {
-                userRequestsLock.readLock().lock();
-                try {
-                    if (userRequests.contains(request)) {
-                        printLog(new StringBuilder("Handle ").append(request).append('.').toString());
-                        handleUserRequest(request);
-                        userRequests.remove(request);
+    private void advanceSequence(String request) {
+        sequence++;
+        if (wal != null && getRequestType(request) != REQUEST_TYPE.GET) {
+            wal.appendPosition(sequence);
+        }
+    }
+    
+    /**
+     * Appends user request to the log.
+     * The caller must hold the write lock for data.
+     * @param request request
+     */
+    private void appendLog(String request) {
+        logBuilder.append(request).append(';');
+        logSize++;
+        logBuilderMonitor.set(logSize, estimateLogBuilderBytes());
+    }
+    
+    /**
+     * Removes the beginning of the log, which the new checkpoint covers, and retains it for delta restoration, dropping the oldest retained logs beyond the limit.
+     * The caller must hold the write lock for data, and has updated the checkpoint sequence.
+     * @param length length of the beginning of the log
+     * @param size number of user requests in the beginning of the log
+     */
+    private void retainLog(int length, int size) {
+        if (size > 0 && restoreHistory > 0) {
+            String log = logBuilder.substring(0, length);
+            history.addLast(log);
+            historySizes.addLast(size);
+            historyMonitor.add(1, estimateBytes(log));
+        }
+        logBuilder.delete(0, length);
+        logSize -= size;
+        logBuilderMonitor.set(logSize, estimateLogBuilderBytes());
+        while (history.size() > restoreHistory) {
+            historyMonitor.remove(1, estimateBytes(history.removeFirst()));
+            historySequence += historySizes.removeFirst();
+        }
+        if (history.isEmpty()) {
+            historySequence = checkpointSequence;
+        }
+    }
+    
+    /**
+     * Estimates the heap size of the log builder, including its unused capacity.
+     * @return estimated size in bytes
+     */
+    private long estimateLogBuilderBytes() {
+        return 24 + ((16 + logBuilder.capacity() + 7) & ~7);
+    }
+    
+    /**
+     * Appends user requests in the retained logs and the log after a sequence.
+     * The caller must hold the lock for data.
+     * @param sb string builder
+     * @param after sequence after which user requests are appended, not before the retained logs
+     */
+    private void appendLogAfter(StringBuilder sb, long after) {
+        long skip = after - historySequence;
+        Iterator<Integer> sizes = historySizes.iterator();
+        for (String log : history) {
+            skip = appendLogAfter(sb, log, sizes.next(), skip);
+        }
+        appendLogAfter(sb, logBuilder.toString(), logSize, skip);
+    }
+    
+    /**
+     * Appends user requests in a log after skipping some.
+     * @param sb string builder
+     * @param log log, each user request followed by a semicolon
+     * @param size number of user requests in the log
+     * @param skip number of user requests to skip
+     * @return number of user requests to skip in later logs
+     */
+    private static long appendLogAfter(StringBuilder sb, String log, int size, long skip) {
+        if (skip >= size) {
+            return skip - size;
+        }
+        int start = 0;
+        for (long i = 0; i < skip; i++) {
+            start = log.indexOf(';', start) + 1;
+        }
+        sb.append(log, start, log.length());
+        return 0;
+    }
+    
+    /**
+     * Makes the current data the checkpoint, and empties the log and the retained logs.
+     * With the write-ahead log, the position is logged and the log begins again with the data, because restored data is not in it.
+     */
+    private void resetCheckpoint() {
+        dataLock.writeLock().lock();
+        try {
+            checkpoint = serializeData();
+            checkpointSequence = sequence;
+            logBuilder.setLength(0);
+            logSize = 0;
+            logBuilderMonitor.set(logSize, estimateLogBuilderBytes());
+            history.clear();
+            historySizes.clear();
+            historyMonitor.set(0, 0);
+            historySequence = sequence;
+            if (wal != null) {
+                wal.setEpoch(epoch);
+                wal.appendPosition(sequence);
+            }
+        } finally {
+            dataLock.writeLock().unlock();
+        }
+        compactLog();
+    }
+    
+    /**
+     * Restores data from ranges pulled from several replicas in parallel.
+     * The position reported by most replicas is pinned, and the data is split into one range for each replica at it.
+     * A range whose source fails is pulled from another source in the next round, and the failed source is no longer used.
+     * If it succeeds, data is at the pinned position, and the write-ahead log is compacted with it, so only user requests after it are restored later.
+     * Otherwise, data is not at any position, and the write-ahead log is not changed, so the checkpoint of a replica is restored in chunks instead.
+     */
+    private void restoreRanges() {
+        Map<String, String> positions = sendRequestToGroup(membership, name, "Position");
+        Map<String, Integer> votes = new HashMap<String, Integer>();
+        String pinned = null;
+        for (String position : positions.values()) {
+            if (position != null) {
+                Integer vote = votes.get(position);
+                votes.put(position, vote == null ? 1 : vote + 1);
+                if (pinned == null || votes.get(position) > votes.get(pinned)) {
+                    pinned = position;
+                }
+            }
+        }
+        List<String> sources = new ArrayList<String>();
+        for (String member : membership) {
+            if (pinned != null && pinned.equals(positions.get(member))) {
+                sources.add(member);
+            }
+        }
+        // A single source streams its checkpoint in chunks instead.
+        if (sources.size() < 2) {
+            return;
+        }
+        
+        int count = sources.size();
+        printLog(new StringBuilder("Restore ").append(count).append(" ranges at ").append(pinned).append('.').toString());
+        List<Integer> ranges = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            ranges.add(i);
+        }
+        int retries = 0;
+        CounterStore snapshot = null;
+        long logSequence = -1;
+        // The write lock is held until the ranges are taken for the write-ahead log, so that no compaction takes partial data.
+        dataLock.writeLock().lock();
+        try {
+            data.clear();
+            while (!ranges.isEmpty() && !sources.isEmpty()) {
+                Map<String, String> requests = new HashMap<String, String>();
+                Map<String, Integer> assignments = new HashMap<String, Integer>();
+                for (int i = 0; i < ranges.size() && i < sources.size(); i++) {
+                    requests.put(sources.get(i), new StringBuilder("Range|").append(pinned).append('|').append(ranges.get(i)).append(',').append(count).toString());
+                    assignments.put(sources.get(i), ranges.get(i));
+                }
+                Map<String, String> responses = sendRequestsToGroup(requests);
+                for (Map.Entry<String, Integer> assignment : assignments.entrySet()) {
+                    String source = assignment.getKey();
+                    String response = responses.get(source);
+                    if (response != null && !response.equals("Mismatch") && restoreRange(response)) {
+                        ranges.remove(assignment.getValue());
                     } else {
-                        printLog(new StringBuilder("Re-handle ").append(request).append('.').toString());
+                        printLog(new StringBuilder("Range ").append(assignment.getValue()).append(" from ").append(source).append(" fails.").toString());
+                        sources.remove(source);
+                        retries++;
+                    }
+                }
+            }
+            statistics.set("restore.ranges", count);
+            statistics.set("restore.range_retries", retries);
+            if (!ranges.isEmpty()) {
+                printLog("Error: Cannot restore all ranges!");
+                return;
+            }
+            
+            int index = pinned.indexOf(',');
+            epoch = Long.valueOf(pinned.substring(0, index));
+            sequence = Long.valueOf(pinned.substring(index + 1));
+            if (wal != null) {
+                wal.setEpoch(epoch);
+                snapshot = data.copy();
+                logSequence = rotateLog();
+            }
+        } finally {
+            dataLock.writeLock().unlock();
+        }
+        // The ranges are not in the write-ahead log, so the log begins again with them before any position in their epoch is logged.
+        compactLog(logSequence, sequence, snapshot, new HashMap<String, Long>());
+        positioned = true;
+    }
+    
+    /**
+     * Restores a range of data, after checking all blocks of it.
+     * The caller must hold the write lock for data.
+     * @param s Base64 encoded range
+     * @return true if the range is valid; otherwise, data is not changed
+     */
+    private boolean restoreRange(String s) {
+        try {
+            SnapshotFormat.Reader reader = SnapshotFormat.decode(s);
+            for (int tag = reader.next(); tag != SnapshotFormat.END; tag = reader.next()) {
+                if (tag == SnapshotFormat.ENTRY) {
+                    putData(reader.getKey(), (int) reader.getValue());
+                }
+            }
+        } catch (IOException e) {
+            printLog(new StringBuilder("Error: ").append(e.getMessage()).append('!').toString());
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Restores data as chunks arrive.
+     * A checkpoint is applied block by block, each of which is checked, so that neither the response nor the snapshot is held as a whole.
+     * Until the checkpoint ends, data is not at any position, so a replica whose restoration fails during it asks the next replica for a checkpoint again.
+     * After it, the write-ahead log is compacted with the checkpoint, and each user request applied from the log advances the position, so the next replica is asked only for user requests after it.
+     * Checkpoint|<epoch>,<sequence>&<checkpoint>&<log>&
+     * Delta|<epoch>,<sequence>&&<log after sequence>&
+     * @param reader reader of the chunks from another replica
+     * @throws IOException if the transfer breaks, or it is corrupted
+     */
+    private void restoreData(ChunkReader reader) throws IOException {
+        String header = reader.readToken();
+        int index1 = header.indexOf('|');
+        int index2 = header.indexOf(',');
+        if (reader.getDelimiter() != '&' || index1 < 0 || index2 < index1) {
+            throw new IOException("Invalid restoration header " + header);
+        }
+        boolean delta = header.substring(0, index1).equals("Delta");
+        long restoredEpoch;
+        long restoredSequence;
+        try {
+            restoredEpoch = Long.valueOf(header.substring(index1 + 1, index2));
+            restoredSequence = Long.valueOf(header.substring(index2 + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid restoration header " + header, e);
+        }
+        
+        InputStream checkpointStream = reader.openSection();
+        if (delta) {
+            if (checkpointStream.read() >= 0) {
+                throw new IOException("Invalid restoration delta");
+            }
+            printLog(new StringBuilder("Restore user requests after ").append(restoredSequence).append(" on the data.").toString());
+        } else {
+            positioned = false;
+            CounterStore snapshot = null;
+            long logSequence = -1;
+            // The write lock is held until the checkpoint is taken for the write-ahead log, so that no compaction takes partial data, or the checkpoint at the previous position.
+            dataLock.writeLock().lock();
+            try {
+                data.clear();
+                SnapshotFormat.Reader checkpointReader = new SnapshotFormat.Reader(new BufferedInputStream(Base64.getDecoder().wrap(checkpointStream)));
+                for (int tag = checkpointReader.next(); tag != SnapshotFormat.END; tag = checkpointReader.next()) {
+                    if (tag == SnapshotFormat.ENTRY) {
+                        putData(checkpointReader.getKey(), (int) checkpointReader.getValue());
+                    }
+                }
+                while (checkpointStream.read() >= 0) {}
+                if (reader.getDelimiter() != '&') {
+                    throw new IOException("Truncated restoration checkpoint");
+                }
+                epoch = restoredEpoch;
+                sequence = restoredSequence;
+                if (wal != null) {
+                    wal.setEpoch(epoch);
+                    snapshot = data.copy();
+                    logSequence = rotateLog();
+                }
+            } finally {
+                dataLock.writeLock().unlock();
+            }
+            // The checkpoint is not in the write-ahead log, so the log begins again with it before any position in its epoch is logged.
+            compactLog(logSequence, restoredSequence, snapshot, new HashMap<String, Long>());
+        }
+        epoch = restoredEpoch;
+        sequence = restoredSequence;
+        positioned = true;
+        statistics.set("restore.delta", delta ? 1 : 0);
+        markApplied(0);
+        
+        int numRequests = 0;
+        do {
+            String request = reader.readToken();
+            if (request.isEmpty()) {
+                continue;
+            }
+            userRequestsLock.readLock().lock();
+            try {
+                if (userRequests.contains(request)) {
+                    printLog(new StringBuilder("Handle ").append(request).append('.').toString());
+                    handleUserRequest(request);
+                    removeUserRequest(request);
+                } else {
+                    printLog(new StringBuilder("Re-handle ").append(request).append('.').toString());
+                    dataLock.writeLock().lock();
+                    try {
                         reHandleUserRequest(request);
+                    } finally {
+                        dataLock.writeLock().unlock();
                     }
-                } finally {
-                    userRequestsLock.readLock().unlock();
                 }
+            } finally {
+                userRequestsLock.readLock().unlock();
             }
+            numRequests++;
+        } while (reader.getDelimiter() == ';');
+        if (reader.getDelimiter() != '&') {
+            throw new IOException("Truncated restoration log");
         }
+        statistics.set("restore.requests", numRequests);
     }
     
     /**
-     * Restores user requests
-     * @param response response from another replica
+     * Restores user requests, after they all arrive.
+     * <user requests>
+     * @param reader reader of the chunks from another replica
+     * @throws IOException if the transfer breaks, or it is corrupted
      */
-    private void restoreUserRequests(String response) {
-        if (response.length() > 0) {
-            String[] requests = response.split(";");
+    private void restoreUserRequests(ChunkReader reader) throws IOException {
+        List<String> requests = new ArrayList<String>();
+        do {
+            String request = reader.readToken();
+            if (!request.isEmpty()) {
+                requests.add(request);
+            }
+        } while (reader.getDelimiter() == ';');
+        if (reader.getDelimiter() >= 0) {
+            throw new IOException("Invalid restoration user requests");
+        }
+        
+        if (!requests.isEmpty()) {
             userRequestsLock.writeLock().lock();
             try {
                 for (String request : requests) {
-                    if (!userRequests.contains(request)) {
-                        restoredUserRequests.add(request);
+                    if (!userRequests.contains(request) && restoredUserRequests.add(request)) {
+                        restoredUserRequestsMonitor.add(1, HASH_SET_ENTRY_BYTES + estimateBytes(request));
                     }
                 }
             } finally {
@@ -693,6 +1387,240 @@ public class ActiveReplica extends Replica {
         }
     }
     
+    /**
+     * A transfer of restoration, which is the concatenation of its parts, taken chunk by chunk.
+     *
+     */
+    private static class Transfer {
+        /**
+         * Parts of the transfer.
+         */
+        private final List<String> parts;
+        /**
+         * Index of the current part.
+         */
+        private int part;
+        /**
+         * Offset in the current part.
+         */
+        private int offset;
+        
+        /**
+         * Constructs a transfer.
+         * @param parts parts of the transfer
+         */
+        Transfer(List<String> parts) {
+            this.parts = parts;
+            this.part = 0;
+            this.offset = 0;
+        }
+        
+        /**
+         * Takes the next chunk, which may span parts.
+         * @param chunkSize maximum number of characters of the chunk
+         * @return chunk
+         */
+        String next(int chunkSize) {
+            StringBuilder sb = new StringBuilder();
+            while (part < parts.size() && sb.length() < chunkSize) {
+                String s = parts.get(part);
+                int end = (int) Math.min(s.length(), (long) offset + chunkSize - sb.length());
+                sb.append(s, offset, end);
+                offset = end;
+                if (offset == s.length()) {
+                    part++;
+                    offset = 0;
+                }
+            }
+            return sb.toString();
+        }
+        
+        /**
+         * Returns true if all chunks are taken.
+         * @return true if all chunks are taken
+         */
+        boolean isDone() {
+            return part == parts.size();
+        }
+    }
+    
+    /**
+     * A reader of the chunks of a transfer from another replica.
+     * While a chunk is read, the next one is fetched, so that at most two chunks are held at a time.
+     *
+     */
+    private class ChunkReader {
+        /**
+         * Replica which sends the chunks.
+         */
+        private final String member;
+        /**
+         * Id of the transfer.
+         */
+        private long id;
+        /**
+         * Current chunk response.
+         */
+        private String chunk;
+        /**
+         * Position in the current chunk response.
+         */
+        private int position;
+        /**
+         * True if the current chunk is the last one.
+         */
+        private boolean last;
+        /**
+         * Number of chunks received.
+         */
+        private int chunks;
+        /**
+         * Thread which fetches the next chunk.
+         */
+        private Thread fetcher;
+        /**
+         * Next chunk response, or null if it is not received.
+         */
+        private String fetched;
+        /**
+         * Delimiter which ended the last token or section, or -1 if the transfer ended.
+         */
+        private int delimiter;
+        
+        /**
+         * Constructs a chunk reader, and receives the first chunk.
+         * @param member replica which sends the chunks
+         * @param request restore request
+         * @throws IOException if no valid chunk is received
+         */
+        ChunkReader(String member, String request) throws IOException {
+            this.member = member;
+            this.chunks = 0;
+            this.delimiter = -1;
+            accept(sendRequest(member, request));
+        }
+        
+        /**
+         * Accepts a chunk response, and begins to fetch the next chunk if it is not the last one.
+         * <id>,<0|1>|<chunk>
+         * @param response chunk response
+         * @throws IOException if the response is null or invalid
+         */
+        private void accept(String response) throws IOException {
+            if (response == null) {
+                throw new IOException("No restoration chunk from " + member);
+            }
+            int index1 = response.indexOf(',');
+            int index2 = response.indexOf('|');
+            if (index1 < 0 || index2 != index1 + 2) {
+                throw new IOException("Invalid restoration chunk from " + member);
+            }
+            try {
+                id = Long.valueOf(response.substring(0, index1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid restoration chunk from " + member, e);
+            }
+            last = response.charAt(index1 + 1) == '1';
+            chunk = response;
+            position = index2 + 1;
+            chunks++;
+            if (!last) {
+                fetched = null;
+                fetcher = new Thread(new ChunkFetcher());
+                fetcher.start();
+            }
+        }
+        
+        /**
+         * Reads the next character, waiting for the next chunk if the current one is exhausted.
+         * @return character, or -1 if the transfer ends
+         * @throws IOException if the next chunk is not received
+         */
+        int read() throws IOException {
+            while (position == chunk.length()) {
+                if (last) {
+                    return -1;
+                }
+                try {
+                    fetcher.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                accept(fetched);
+            }
+            return chunk.charAt(position++);
+        }
+        
+        /**
+         * Reads a token until a semicolon, an ampersand or the end of the transfer, which is recorded as the delimiter.
+         * @return token
+         * @throws IOException if the next chunk is not received
+         */
+        String readToken() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = read()) >= 0 && c != ';' && c != '&') {
+                sb.append((char) c);
+            }
+            delimiter = c;
+            return sb.toString();
+        }
+        
+        /**
+         * Opens a stream of the characters until an ampersand or the end of the transfer, which is recorded as the delimiter.
+         * @return stream of the section
+         */
+        InputStream openSection() {
+            return new InputStream() {
+                private boolean ended = false;
+                
+                @Override
+                public int read() throws IOException {
+                    if (ended) {
+                        return -1;
+                    }
+                    int c = ChunkReader.this.read();
+                    if (c < 0 || c == '&') {
+                        ended = true;
+                        delimiter = c;
+                        return -1;
+                    }
+                    return c;
+                }
+            };
+        }
+        
+        /**
+         * Gets the delimiter which ended the last token or section.
+         * @return delimiter, or -1 if the transfer ended
+         */
+        int getDelimiter() {
+            return delimiter;
+        }
+        
+        /**
+         * Gets the number of chunks received.
+         * @return number of chunks
+         */
+        int getChunks() {
+            return chunks;
+        }
+        
+        /**
+         * Chunk fetcher.
+         *
+         */
+        private class ChunkFetcher implements Runnable {
+            /**
+             * Fetches the next chunk of the transfer.
+             */
+            @Override
+            public void run() {
+                fetched = sendRequest(member, new StringBuilder("Chunk|").append(id).toString());
+            }
+        }
+    }
+    
     /**
      * Checkpoint updater.
      *
@@ -704,19 +1632,43 @@ public class ActiveReplica extends Replica {
         @Override
         public void run() {
             printLog("Launch checkpoint updater.");
+            InstrumentedReadWriteLock.setOperation("CheckpointUpdater");
+            CounterStore snapshot;
+            long snapshotSequence;
+            int logLength;
+            int logSizeAtSnapshot;
+            long walSequence;
+            long position;
             while (true) {
                 try {
                     Thread.sleep(checkpointInterval);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
+                // The write lock is held only to take a snapshot in constant time, and user requests are handled while it is serialized.
                 dataLock.writeLock().lock();
                 try {
-                    checkpoint = serializeData();
-                    logBuilder.setLength(0);
+                    snapshot = data.copy();
+                    snapshotSequence = sequence;
+                    logLength = logBuilder.length();
+                    logSizeAtSnapshot = logSize;
+                    walSequence = rotateLog();
+                    position = getLogPosition();
                 } finally {
                     dataLock.writeLock().unlock();
                 }
+                String newCheckpoint = serializeData(snapshot);
+                // The log until the snapshot is replaced by the checkpoint, and user requests handled meanwhile stay in the log.
+                dataLock.writeLock().lock();
+                try {
+                    checkpoint = newCheckpoint;
+                    checkpointSequence = snapshotSequence;
+                    retainLog(logLength, logSizeAtSnapshot);
+                } finally {
+                    dataLock.writeLock().unlock();
+                }
+                // The snapshot of the checkpoint compacts the write-ahead log.
+                compactLog(walSequence, position, snapshot, new HashMap<String, Long>());
             }
         }
     }
@@ -732,7 +1684,9 @@ public class ActiveReplica extends Replica {
         @Override
         public void run() {
             printLog("Launch vote initiator.");
+            InstrumentedReadWriteLock.setOperation("VoteInitiator");
             String userRequest, decisionRequest;
+            Tracer.Span userRequestSpan;
             while (true) {
                 waitForQuiescence();
                 waitForUserRequests();
@@ -740,10 +1694,18 @@ public class ActiveReplica extends Replica {
                 userRequestsLock.writeLock().lock();
                 try {
                     userRequest = userRequests.iterator().next();
+                    userRequestSpan = userRequestSpans.get(userRequest);
                 } finally {
                     userRequestsLock.writeLock().unlock();
                 }
                 
+                Tracer.Span span;
+                if (userRequestSpan == null) {
+                    span = tracer.startSpan("Vote", Tracer.KIND.LOCAL, null);
+                } else {
+                    span = tracer.startSpan("Vote", Tracer.KIND.LOCAL, null, userRequestSpan.getTraceId(), userRequestSpan.getId());
+                }
+                
                 membershipLock.readLock().lock();
                 try {
                     int numFavor = 1;
@@ -759,7 +1721,7 @@ public class ActiveReplica extends Replica {
                         handleUserRequest(userRequest);
                         userRequestsLock.writeLock().lock();
                         try {
-                            userRequests.remove(userRequest);
+                            removeUserRequest(userRequest);
                         } finally {
                             userRequestsLock.writeLock().unlock();
                         }
@@ -770,6 +1732,7 @@ public class ActiveReplica extends Replica {
                     sendRequestToGroup(membership, name, decisionRequest);
                 } finally {
                     membershipLock.readLock().unlock();
+                    tracer.finishSpan(span);
                 }
             }
         }
@@ -24,6 +24,7 @@ public class ActiveUser extends User {
      */
     public ActiveUser(String name, String logName) {
         super(name, logName);
+        start(ActiveUser.class);
     }
     
     /**
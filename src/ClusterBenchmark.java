@@ -0,0 +1,475 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A benchmark which launches a whole distributed system and measures the throughput and latencies of user requests.
+ * The replica manager, fault detectors, replicas and users run in the same process, so one process benchmarks one configuration.
+ * When several configurations are given, each configuration is benchmarked in a child process, and results are compared in a table.
+ * It must be launched in the directory of configuration files, when the distributed system is not running.
+ * @author Shenqi Zhang
+ *
+ */
+public class ClusterBenchmark {
+    /**
+     * Replication modes.
+     */
+    private static final String[] MODES = {"no", "active", "passive"};
+    /**
+     * Default duration of measurement in milliseconds.
+     */
+    private static final int DEFAULT_DURATION = 10000;
+    /**
+     * Default duration of warmup in milliseconds.
+     */
+    private static final int DEFAULT_WARMUP = 3000;
+    /**
+     * Default number of users.
+     */
+    private static final int DEFAULT_USERS = 1;
+    /**
+     * Default request mix, which is the weights of get, increment and decrement.
+     */
+    private static final String DEFAULT_MIX = "50:25:25";
+    /**
+     * Time to wait for all replicas to join the membership in milliseconds.
+     */
+    private static final int JOIN_TIMEOUT = 30000;
+    /**
+     * Interval between launches of replicas in milliseconds, so that the first replica becomes primary.
+     */
+    private static final int LAUNCH_INTERVAL = 500;
+    /**
+     * Directory of log files.
+     */
+    private static final String LOG_DIRECTORY = "cluster_benchmark";
+    /**
+     * Prefix of result lines printed by child processes.
+     */
+    private static final String RESULT_PREFIX = "Result|";
+    /**
+     * Percentiles of latencies to report.
+     */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    
+    /**
+     * Replication mode.
+     */
+    private String mode;
+    /**
+     * Number of replicas.
+     */
+    private int replicas;
+    /**
+     * Number of users.
+     */
+    private int users;
+    /**
+     * Weights of get, increment and decrement.
+     */
+    private int[] mix;
+    /**
+     * Duration of warmup in milliseconds.
+     */
+    private int warmup;
+    /**
+     * Duration of measurement in milliseconds.
+     */
+    private int duration;
+    /**
+     * Latencies of user requests in microseconds.
+     */
+    private final LatencyHistogram histogram;
+    /**
+     * Number of failed user requests.
+     */
+    private final AtomicLong errors;
+    
+    /**
+     * Constructs a cluster benchmark.
+     * @param mode replication mode
+     * @param replicas number of replicas
+     * @param users number of users
+     * @param mix weights of get, increment and decrement
+     * @param warmup duration of warmup in milliseconds
+     * @param duration duration of measurement in milliseconds
+     */
+    public ClusterBenchmark(String mode, int replicas, int users, int[] mix, int warmup, int duration) {
+        this.mode = mode;
+        this.replicas = replicas;
+        this.users = users;
+        this.mix = mix;
+        this.warmup = warmup;
+        this.duration = duration;
+        this.histogram = new LatencyHistogram();
+        this.errors = new AtomicLong();
+    }
+    
+    /**
+     * Parses the request mix.
+     * <get weight>:<increment weight>:<decrement weight>
+     * @param s string representation of the request mix
+     * @return weights of get, increment and decrement
+     */
+    private static int[] parseMix(String s) {
+        String[] strs = s.split(":");
+        return new int[] {Integer.valueOf(strs[0]), Integer.valueOf(strs[1]), Integer.valueOf(strs[2])};
+    }
+    
+    /**
+     * Gets the log name of the node.
+     * @param node node
+     * @return log name
+     */
+    private static String getLogName(String node) {
+        return LOG_DIRECTORY + File.separator + node + ".log";
+    }
+    
+    /**
+     * Launches the distributed system, runs the workload and returns the result.
+     * @return result; mode, replicas, users, mix, throughput, p50, p90, p99, p999, max and errors separated by commas
+     */
+    public String run() {
+        new File(LOG_DIRECTORY).mkdirs();
+        List<String> replicaNames = Arrays.asList(ConnectionManager.loadParameters("replica_manager.conf").get("replicas").split("\\s*,\\s*"));
+        Map<String, String> faultDetectors = ConnectionManager.loadParameters("fault_detector.conf");
+        List<String> userNames = new ArrayList<String>();
+        for (String node : ConnectionManager.loadParameters("connection_manager.conf").keySet()) {
+            if (!faultDetectors.containsKey(node)) {
+                userNames.add(node);
+            }
+        }
+        userNames.sort(null);
+        if (replicas > replicaNames.size() || users > userNames.size()) {
+            System.out.println(new StringBuilder("Error: Only ").append(replicaNames.size()).append(" replicas and ").append(userNames.size()).append(" users are configured!").toString());
+            System.exit(0);
+        }
+        String[] keys = parseKeys(ConnectionManager.loadParameters("replica.conf").get("data"));
+        
+        ReplicaManager replicaManager = null;
+        for (String node : faultDetectors.keySet()) {
+            if (faultDetectors.get(node).startsWith("|")) {
+                replicaManager = new ReplicaManager(node, getLogName(node));
+            }
+        }
+        for (String node : faultDetectors.keySet()) {
+            if (!faultDetectors.get(node).startsWith("|") && !replicaNames.contains(node)) {
+                new FaultDetector(node, getLogName(node));
+            }
+        }
+        for (int i = 0; i < replicas; i++) {
+            String node = replicaNames.get(i);
+            if (mode.equals("active")) {
+                new ActiveReplica(node, getLogName(node));
+            } else if (mode.equals("passive")) {
+                new PassiveReplica(node, getLogName(node));
+            } else {
+                new Replica(node, getLogName(node));
+            }
+            sleep(LAUNCH_INTERVAL);
+        }
+        
+        List<User> userNodes = new ArrayList<User>(users);
+        for (int i = 0; i < users; i++) {
+            String node = userNames.get(i);
+            if (mode.equals("active")) {
+                userNodes.add(new ActiveUser(node, getLogName(node)));
+            } else if (mode.equals("passive")) {
+                userNodes.add(new PassiveUser(node, getLogName(node)));
+            } else {
+                userNodes.add(new User(node, getLogName(node)));
+            }
+        }
+        waitForMembership(userNodes.get(0), replicaManager.name);
+        if (!userNodes.get(0).waitForReplicas()) {
+            System.out.println("Error: Replicas fail to be ready!");
+            System.exit(0);
+        }
+        
+        long start = System.nanoTime();
+        long measurementStart = start + warmup * 1000000L;
+        long measurementEnd = measurementStart + duration * 1000000L;
+        List<Thread> threads = new ArrayList<Thread>(users);
+        for (User userNode : userNodes) {
+            threads.add(new Thread(new UserLoop(userNode, keys, measurementStart, measurementEnd)));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        StringBuilder sb = new StringBuilder(mode).append(',').append(replicas).append(',').append(users).append(',');
+        sb.append(mix[0]).append(':').append(mix[1]).append(':').append(mix[2]).append(',');
+        sb.append(String.format("%.1f", histogram.getTotalCount() * 1000.0 / duration));
+        for (double percentile : PERCENTILES) {
+            sb.append(',').append(histogram.getValueAtPercentile(percentile));
+        }
+        sb.append(',').append(histogram.getMax()).append(',').append(errors.get());
+        return sb.toString();
+    }
+    
+    /**
+     * Parses keys of the initial data.
+     * @param s initial data in the configuration file
+     * @return keys
+     */
+    private static String[] parseKeys(String s) {
+        String[] strs = s.split(",");
+        String[] keys = new String[strs.length];
+        for (int i = 0; i < strs.length; i++) {
+            keys[i] = strs[i].substring(0, strs[i].indexOf(':')).trim();
+        }
+        return keys;
+    }
+    
+    /**
+     * Waits until all replicas join the membership.
+     * @param user a user which asks the replica manager for the membership
+     * @param replicaManager the replica manager
+     */
+    private void waitForMembership(User user, String replicaManager) {
+        long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            String membership = user.sendRequest(replicaManager, "Membership");
+            if (membership != null && membership.length() > 0 && membership.split(",").length == replicas) {
+                return;
+            }
+            sleep(100);
+        }
+        System.out.println("Error: Replicas fail to join the membership!");
+        System.exit(0);
+    }
+    
+    /**
+     * Sleeps.
+     * @param millis time in milliseconds
+     */
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Loop of a user which sends a user request after the response of the previous one.
+     *
+     */
+    private class UserLoop implements Runnable {
+        /**
+         * User.
+         */
+        private User user;
+        /**
+         * Keys.
+         */
+        private String[] keys;
+        /**
+         * Start time of measurement in nanoseconds.
+         */
+        private long measurementStart;
+        /**
+         * End time of measurement in nanoseconds.
+         */
+        private long measurementEnd;
+        
+        /**
+         * Constructs a user loop.
+         * @param user user
+         * @param keys keys
+         * @param measurementStart start time of measurement in nanoseconds
+         * @param measurementEnd end time of measurement in nanoseconds
+         */
+        UserLoop(User user, String[] keys, long measurementStart, long measurementEnd) {
+            this.user = user;
+            this.keys = keys;
+            this.measurementStart = measurementStart;
+            this.measurementEnd = measurementEnd;
+        }
+        
+        /**
+         * Sends user requests until the end of measurement.
+         * Only user requests sent during measurement are recorded.
+         */
+        @Override
+        public void run() {
+            Random random = new Random();
+            int totalWeight = mix[0] + mix[1] + mix[2];
+            long timestamp = 0;
+            long start;
+            while ((start = System.nanoTime()) < measurementEnd) {
+                int weight = random.nextInt(totalWeight);
+                StringBuilder sb = new StringBuilder();
+                if (weight < mix[0]) {
+                    sb.append("Get|");
+                } else if (weight < mix[0] + mix[1]) {
+                    sb.append("Increment|");
+                } else {
+                    sb.append("Decrement|");
+                }
+                // Requests from the same user must have different timestamps.
+                timestamp = Math.max(System.currentTimeMillis(), timestamp + 1);
+                sb.append(keys[random.nextInt(keys.length)]).append(',').append(timestamp);
+                String response = user.sendUserRequest(sb.toString());
+                if (start >= measurementStart) {
+                    histogram.record((System.nanoTime() - start) / 1000);
+                    if (response == null || response.startsWith("Error")) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Prints the results in a table.
+     * @param results results; each is mode, replicas, users, mix, throughput, p50, p90, p99, p999, max and errors separated by commas
+     * @param out output
+     */
+    private static void printResults(List<String> results, PrintStream out) {
+        out.println(String.format("%-8s %8s %5s %-9s %10s %9s %9s %9s %9s %9s %6s", "MODE", "REPLICAS", "USERS", "MIX", "REQ/S", "P50(ms)", "P90(ms)", "P99(ms)", "P999(ms)", "MAX(ms)", "ERRORS"));
+        for (String result : results) {
+            String[] strs = result.split(",");
+            out.println(String.format("%-8s %8s %5s %-9s %10s %9.2f %9.2f %9.2f %9.2f %9.2f %6s", strs[0], strs[1], strs[2], strs[3], strs[4],
+                    Long.valueOf(strs[5]) / 1000.0, Long.valueOf(strs[6]) / 1000.0, Long.valueOf(strs[7]) / 1000.0, Long.valueOf(strs[8]) / 1000.0, Long.valueOf(strs[9]) / 1000.0, strs[10]));
+        }
+    }
+    
+    /**
+     * Benchmarks a configuration in a child process.
+     * Message logs of the child process are disabled, unless DISABLE_MESSAGE_LOG is set in this process.
+     * @param mode replication mode
+     * @param replicas number of replicas
+     * @param users number of users
+     * @param mix request mix
+     * @param warmup duration of warmup in milliseconds
+     * @param duration duration of measurement in milliseconds
+     * @return result, or null if the child process fails
+     */
+    private static String runChild(String mode, int replicas, int users, String mix, int warmup, int duration) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ClusterBenchmark.class.getName(),
+                "-modes", mode, "-replicas", String.valueOf(replicas), "-users", String.valueOf(users), "-mix", mix,
+                "-warmup", String.valueOf(warmup), "-duration", String.valueOf(duration));
+        processBuilder.environment().putIfAbsent("DISABLE_MESSAGE_LOG", "1");
+        processBuilder.redirectErrorStream(true);
+        String result = null;
+        try {
+            Process process = processBuilder.start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                } else if (line.startsWith("Error") || line.contains("Exception")) {
+                    System.out.println(line);
+                }
+            }
+            process.waitFor();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+    
+    /**
+     * Launches a cluster benchmark.
+     * java ClusterBenchmark [-modes <mode1>,<mode2> ...] [-replicas <n1>,<n2> ...] [-users <m>] [-mix <get>:<increment>:<decrement>,...]
+     *                       [-warmup <millis>] [-duration <millis>] [-o <result file>]
+     * Modes are no, active and passive.
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        List<String> modes = Arrays.asList(MODES);
+        List<String> replicaCounts = null;
+        List<String> mixes = Arrays.asList(DEFAULT_MIX);
+        int users = DEFAULT_USERS;
+        int warmup = DEFAULT_WARMUP;
+        int duration = DEFAULT_DURATION;
+        String outputName = null;
+        for (Iterator<String> it = Arrays.asList(args).iterator(); it.hasNext();) {
+            String arg = it.next();
+            if (arg.equals("-modes")) {
+                modes = Arrays.asList(it.next().split(","));
+            } else if (arg.equals("-replicas")) {
+                replicaCounts = Arrays.asList(it.next().split(","));
+            } else if (arg.equals("-users")) {
+                users = Integer.valueOf(it.next());
+            } else if (arg.equals("-mix")) {
+                mixes = Arrays.asList(it.next().split(","));
+            } else if (arg.equals("-warmup")) {
+                warmup = Integer.valueOf(it.next());
+            } else if (arg.equals("-duration")) {
+                duration = Integer.valueOf(it.next());
+            } else if (arg.equals("-o")) {
+                outputName = it.next();
+            } else {
+                System.out.println("Error: Invalid argument " + arg + "!");
+                System.exit(0);
+            }
+        }
+        for (String mode : modes) {
+            if (!Arrays.asList(MODES).contains(mode)) {
+                System.out.println("Error: Invalid mode " + mode + "!");
+                System.exit(0);
+            }
+        }
+        if (replicaCounts == null) {
+            replicaCounts = Arrays.asList(String.valueOf(ConnectionManager.loadParameters("replica_manager.conf").get("replicas").split(",").length));
+        }
+        
+        if (modes.size() == 1 && replicaCounts.size() == 1 && mixes.size() == 1) {
+            ClusterBenchmark benchmark = new ClusterBenchmark(modes.get(0), Integer.valueOf(replicaCounts.get(0)), users, parseMix(mixes.get(0)), warmup, duration);
+            String result = benchmark.run();
+            System.out.println(RESULT_PREFIX + result);
+            printResults(Arrays.asList(result), System.out);
+            System.exit(0);
+        }
+        
+        List<String> results = new ArrayList<String>();
+        for (String mode : modes) {
+            for (String replicaCount : replicaCounts) {
+                for (String mix : mixes) {
+                    System.out.println(new StringBuilder("Benchmark ").append(mode).append(" replication with ").append(replicaCount).append(" replicas, ")
+                            .append(users).append(" users and mix ").append(mix).append('.').toString());
+                    String result = runChild(mode, Integer.valueOf(replicaCount), users, mix, warmup, duration);
+                    if (result == null) {
+                        System.out.println("Error: Benchmark fails!");
+                    } else {
+                        results.add(result);
+                    }
+                }
+            }
+        }
+        printResults(results, System.out);
+        if (outputName != null) {
+            try {
+                PrintStream out = new PrintStream(outputName);
+                for (String result : results) {
+                    out.println(result);
+                }
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
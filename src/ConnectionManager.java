@@ -1,11 +1,12 @@
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.FileReader;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -20,6 +21,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A connection manager which provides network methods for nodes in distributed systems.
@@ -49,6 +51,12 @@ public abstract class ConnectionManager {
                                  PREVIOUS,
                                  CHECKPOINT,
                                  UPGRADED,
+                                 STATISTICS,
+                                 LAG,
+                                 READY,
+                                 CHUNK,
+                                 POSITION,
+                                 RANGE,
                                  UNKNOWN};
     /**
      * Message types in the distributed system.
@@ -85,7 +93,13 @@ public abstract class ConnectionManager {
                                                     "Current",
                                                     "Previous",
                                                     "Checkpoint",
-                                                    "Upgraded"};
+                                                    "Upgraded",
+                                                    "Statistics",
+                                                    "Lag",
+                                                    "Ready",
+                                                    "Chunk",
+                                                    "Position",
+                                                    "Range"};
     /**
      * Message headers in the distributed system.
      */
@@ -120,6 +134,11 @@ public abstract class ConnectionManager {
      * Size of the packet data when receiving message.
      */
     private static final int BUF_SIZE = 100;
+    /**
+     * Parsed configuration files.
+     * Keys are paths of configuration files. Values are parsed configuration files.
+     */
+    private static final Map<String, ParameterFile> PARAMETER_FILES = new ConcurrentHashMap<String, ParameterFile>();
     
     /**
      * Gets the header of the text.
@@ -158,9 +177,13 @@ public abstract class ConnectionManager {
      */
     private Map<String, Peer> peers;
     /**
-     * The socket to send and receive UDP messages.
+     * The socket to send and receive UDP messages; null until a message is sent or the UDP server is launched.
      */
     private DatagramSocket datagramSocket;
+    /**
+     * The socket of the TCP server; null if no TCP server is launched.
+     */
+    private ServerSocket serverSocket;
     /**
      * The log writer.
      */
@@ -169,6 +192,34 @@ public abstract class ConnectionManager {
      * Whether to write log for messages.
      */
     private boolean enableMessageLog;
+    /**
+     * The tracer which records spans of requests.
+     */
+    protected Tracer tracer;
+    /**
+     * Statistics of this node.
+     */
+    protected Statistics statistics;
+    /**
+     * Time when the construction of this node begins in nanoseconds.
+     */
+    private final long constructionNanos;
+    /**
+     * True if the construction of this node finished and requests and messages are handled.
+     */
+    private volatile boolean started;
+    /**
+     * True if this node is ready to serve.
+     */
+    private volatile boolean ready;
+    /**
+     * Object for start.
+     */
+    private final Object startObj;
+    /**
+     * Object for readiness.
+     */
+    private final Object readyObj;
     
     /**
      * Constructs a connection manager.
@@ -188,6 +239,11 @@ public abstract class ConnectionManager {
      * @param logName the name of the log file; if null, log will be written in stdout
      */
     public ConnectionManager(String name, boolean launchTCPServer, boolean launchUDPServer, String logName) {
+        this.constructionNanos = System.nanoTime();
+        this.started = false;
+        this.ready = false;
+        this.startObj = new Object();
+        this.readyObj = new Object();
         Map<String, String> parameters = getParameters("connection_manager.conf");
         this.name = name;
         this.peers = new HashMap<String, Peer>(parameters.size());
@@ -199,11 +255,6 @@ public abstract class ConnectionManager {
             Peer peer = new Peer(peerName, peerAddress, peerBackendPort);
             this.peers.put(peerName, peer);
         }
-        try {
-            this.datagramSocket = new DatagramSocket(peers.get(name).backendPort);
-        } catch (SocketException e) {
-            e.printStackTrace();
-        }
         if (logName == null) {
             this.logWriter = System.out;
         } else {
@@ -214,15 +265,141 @@ public abstract class ConnectionManager {
             }
         }
         this.enableMessageLog = System.getenv("DISABLE_MESSAGE_LOG") == null;
+        this.statistics = new Statistics();
+        this.statistics.register(new MemoryReporter());
+        this.statistics.set("ready", 0);
+        this.tracer = new Tracer(name, System.getenv("ENABLE_TRACE") == null ? null : name + "_trace.json");
         
         printParameters();
         
+        // The port is bound before the constructor returns, so peers can connect once this node is started.
+        // Requests are handled only after the node is started.
         if (launchTCPServer) {
-            new Thread(new TCPServer(peers.get(name).backendPort)).start();
+            try {
+                this.serverSocket = new ServerSocket(peers.get(name).backendPort);
+                new Thread(new TCPServer()).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
         
         if (launchUDPServer) {
-            new Thread(new UDPServer()).start();
+            launchUDPServer();
+        }
+    }
+    
+    /**
+     * Launches the UDP server.
+     * Messages are handled only after this node is started.
+     */
+    protected void launchUDPServer() {
+        getDatagramSocket();
+        new Thread(new UDPServer()).start();
+    }
+    
+    /**
+     * Gets the socket to send and receive UDP messages, binding it to the backend port of this node if absent.
+     * @return the socket to send and receive UDP messages, or null if it fails to bind
+     */
+    private synchronized DatagramSocket getDatagramSocket() {
+        if (datagramSocket == null) {
+            try {
+                datagramSocket = new DatagramSocket(peers.get(name).backendPort);
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+        }
+        return datagramSocket;
+    }
+    
+    /**
+     * Starts this node when the construction of the specified class finishes.
+     * Each constructor calls this at the end with its own class, so this node is started only after the constructor of its actual class.
+     * Requests and messages received before are handled after this node is started.
+     * @param constructedClass class whose constructor finishes
+     */
+    protected void start(Class<? extends ConnectionManager> constructedClass) {
+        if (constructedClass != getClass()) {
+            return;
+        }
+        
+        long startupMillis = (System.nanoTime() - constructionNanos) / 1000000;
+        statistics.set("startup.millis", startupMillis);
+        printLog(new StringBuilder("Start in ").append(startupMillis).append(" ms.").toString());
+        synchronized(startObj) {
+            started = true;
+            startObj.notifyAll();
+        }
+        
+        if (isReadyWhenStarted()) {
+            setReady();
+        }
+    }
+    
+    /**
+     * Returns true if this node is ready to serve once it is started.
+     * Nodes which have to restore state override this and call {@link #setReady()} after restoration.
+     * @return true if this node is ready to serve once it is started
+     */
+    protected boolean isReadyWhenStarted() {
+        return true;
+    }
+    
+    /**
+     * Marks this node ready to serve, and wakes up threads waiting for readiness.
+     * ready
+     * ready.millis
+     */
+    protected void setReady() {
+        synchronized(readyObj) {
+            if (ready) {
+                return;
+            }
+            long readyMillis = (System.nanoTime() - constructionNanos) / 1000000;
+            statistics.set("ready.millis", readyMillis);
+            statistics.set("ready", 1);
+            printLog(new StringBuilder("Ready in ").append(readyMillis).append(" ms.").toString());
+            ready = true;
+            readyObj.notifyAll();
+        }
+    }
+    
+    /**
+     * Returns true if this node is ready to serve.
+     * @return true if this node is ready to serve
+     */
+    protected boolean isReady() {
+        return ready;
+    }
+    
+    /**
+     * Waits for start.
+     */
+    protected void waitForStart() {
+        synchronized(startObj) {
+            while (!started) {
+                try {
+                    startObj.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits for readiness.
+     */
+    protected void waitForReady() {
+        synchronized(readyObj) {
+            while (!ready) {
+                printLog("Wait for readiness.");
+                try {
+                    readyObj.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
     
@@ -240,9 +417,55 @@ public abstract class ConnectionManager {
             return null;
         }
         
-        request = new StringBuilder(name).append('|').append(request).toString();
-        Peer peer = peers.get(destination);
-        return sendRequest(peer, request, peer.clientSocket == null);
+        Tracer.Span span = tracer.startSpan(getTextHeader(request), Tracer.KIND.CLIENT, destination);
+        try {
+            request = encodeRequest(name, span, request);
+            Peer peer = peers.get(destination);
+            // Requests and responses share the connection, so requests to the same peer are sent one by one.
+            synchronized(peer) {
+                return sendRequest(peer, request, peer.clientSocket == null);
+            }
+        } finally {
+            tracer.finishSpan(span);
+        }
+    }
+    
+    /**
+     * Encodes the request sent from the source.
+     * <source>|<request>
+     * <source>#<trace id>#<span id>|<request>
+     * @param source source of the request in the distributed system
+     * @param span span of the request; if null, no trace context is attached
+     * @param request request
+     * @return encoded request
+     */
+    protected static String encodeRequest(String source, Tracer.Span span, String request) {
+        StringBuilder sb = new StringBuilder(source);
+        if (span != null) {
+            sb.append('#').append(span.getTraceId()).append('#').append(span.getId());
+        }
+        return sb.append('|').append(request).toString();
+    }
+    
+    /**
+     * Decodes the encoded request.
+     * <source>|<request>
+     * <source>#<trace id>#<span id>|<request>
+     * @param encodedRequest encoded request
+     * @return source, trace id, parent span id and request; trace id and parent span id are null if no trace context is attached
+     */
+    protected static String[] decodeRequest(String encodedRequest) {
+        int index = encodedRequest.indexOf('|');
+        int traceIndex = encodedRequest.indexOf('#');
+        String traceId = null, parentId = null;
+        if (traceIndex >= 0 && traceIndex < index) {
+            int spanIndex = encodedRequest.indexOf('#', traceIndex + 1);
+            traceId = encodedRequest.substring(traceIndex + 1, spanIndex);
+            parentId = encodedRequest.substring(spanIndex + 1, index);
+        } else {
+            traceIndex = index;
+        }
+        return new String[] {encodedRequest.substring(0, traceIndex), traceId, parentId, encodedRequest.substring(index + 1)};
     }
     
     /**
@@ -322,6 +545,21 @@ public abstract class ConnectionManager {
         return responses;
     }
     
+    /**
+     * Sends a request to each destination in the distributed system concurrently, where destinations may have different requests.
+     * @param requests a map with destinations as keys and requests as values
+     * @return a map with destinations as keys and responses as values
+     */
+    protected Map<String, String> sendRequestsToGroup(Map<String, String> requests) {
+        Map<String, String> responses = new HashMap<String, String>();
+        List<Thread> threads = new ArrayList<Thread>(requests.size());
+        for (Map.Entry<String, String> entry : requests.entrySet()) {
+            threads.add(new Thread(new RequestSender(entry.getKey(), entry.getValue(), responses)));
+        }
+        startAndJoinThreads(threads);
+        return responses;
+    }
+    
     /**
      * Starts and joins threads.
      * @param threads threads
@@ -346,6 +584,28 @@ public abstract class ConnectionManager {
      */
     protected abstract void handleRequest(String source, String request);
     
+    /**
+     * Handles the statistics request from the source.
+     * Statistics
+     * @param source source of the request in the distributed system
+     * @param request request
+     */
+    protected void handleStatisticsRequest(String source, String request) {
+        sendResponse(source, statistics.serialize());
+    }
+    
+    /**
+     * Handles the ready request from the source.
+     * The response is sent after this node is ready to serve.
+     * Ready
+     * @param source source of the request in the distributed system
+     * @param request request
+     */
+    protected void handleReadyRequest(String source, String request) {
+        waitForReady();
+        sendResponse(source, "ACK");
+    }
+    
     /**
      * Sends response to the source in the distributed system.
      * @param source source in the distributed system
@@ -390,7 +650,7 @@ public abstract class ConnectionManager {
         byte[] buf = message.getBytes();
         try {
             DatagramPacket packet = new DatagramPacket(buf, buf.length, InetAddress.getByName(peer.address), peer.backendPort);
-            datagramSocket.send(packet);
+            getDatagramSocket().send(packet);
         } catch (IOException e) {}
     }
     
@@ -401,18 +661,53 @@ public abstract class ConnectionManager {
      */
     protected abstract void handleMessage(String source, String message);
     
+    /**
+     * Gets the names of all nodes in the distributed system.
+     * @return names of all nodes
+     */
+    protected Collection<String> getPeerNames() {
+        return Collections.unmodifiableCollection(peers.keySet());
+    }
+    
     /**
      * Gets the parameters from the specified configuration file.
      * @param fileName the name of the specified configuration file
      * @return parameters
      */
     protected Map<String, String> getParameters(String fileName) {
+        return loadParameters(fileName);
+    }
+    
+    /**
+     * Loads the parameters from the specified configuration file.
+     * A configuration file is parsed once until it is modified, and each caller gets its own copy of the parameters.
+     * @param fileName the name of the specified configuration file
+     * @return parameters
+     */
+    protected static Map<String, String> loadParameters(String fileName) {
+        File file = new File(fileName);
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        ParameterFile parameterFile = PARAMETER_FILES.get(path);
+        if (parameterFile == null || parameterFile.lastModified != lastModified) {
+            parameterFile = new ParameterFile(lastModified, parseParameters(fileName));
+            PARAMETER_FILES.put(path, parameterFile);
+        }
+        return new HashMap<String, String>(parameterFile.parameters);
+    }
+    
+    /**
+     * Parses the parameters in the specified configuration file.
+     * @param fileName the name of the specified configuration file
+     * @return parameters
+     */
+    private static Map<String, String> parseParameters(String fileName) {
         Map<String, String> parameters = new HashMap<String, String>();
-        RandomAccessFile file = null;
+        BufferedReader reader = null;
         try {
-            file = new RandomAccessFile(fileName, "r");
+            reader = new BufferedReader(new FileReader(fileName));
             String line = null;
-            while ((line = file.readLine()) != null) {
+            while ((line = reader.readLine()) != null) {
                 int index = line.indexOf('=');
                 String key = line.substring(0, index).trim();
                 String value = line.substring(index + 1).trim();
@@ -422,7 +717,9 @@ public abstract class ConnectionManager {
             e.printStackTrace();
         } finally {
             try {
-                file.close();
+                if (reader != null) {
+                    reader.close();
+                }
             }  catch (IOException e) {
                 e.printStackTrace();
             }
@@ -534,6 +831,31 @@ public abstract class ConnectionManager {
         }
     }
     
+    /**
+     * A parsed configuration file.
+     *
+     */
+    private static class ParameterFile {
+        /**
+         * Time when the configuration file is modified latest.
+         */
+        private final long lastModified;
+        /**
+         * Parameters.
+         */
+        private final Map<String, String> parameters;
+        
+        /**
+         * Constructs a parsed configuration file.
+         * @param lastModified time when the configuration file is modified latest
+         * @param parameters parameters
+         */
+        ParameterFile(long lastModified, Map<String, String> parameters) {
+            this.lastModified = lastModified;
+            this.parameters = parameters;
+        }
+    }
+    
     /**
      * Request sender.
      *
@@ -551,6 +873,10 @@ public abstract class ConnectionManager {
          * A map with destinations as keys and responses as values.
          */
         private Map<String, String> responses;
+        /**
+         * Span of the thread which creates this request sender.
+         */
+        private Tracer.Span span;
         
         /**
          * Constructs a request sender.
@@ -562,6 +888,7 @@ public abstract class ConnectionManager {
             this.destination = destination;
             this.request = request;
             this.responses = responses;
+            this.span = Tracer.currentSpan();
         }
         
         /**
@@ -569,6 +896,7 @@ public abstract class ConnectionManager {
          */
         @Override
         public void run() {
+            Tracer.setCurrentSpan(span);
             String response = sendRequest(destination, request);
             synchronized(responses) {
                 responses.put(destination, response);
@@ -577,32 +905,36 @@ public abstract class ConnectionManager {
     }
     
     /**
-     * TCP server of this node.
+     * Memory reporter.
      *
      */
-    private class TCPServer implements Runnable {
+    private class MemoryReporter implements Statistics.Reporter {
         /**
-         * Backend port of this node.
+         * Reports the used and committed heap memory in bytes.
+         * memory.heap_used
+         * memory.heap_committed
+         * @param statistics a map with names as keys and values as values
          */
-        private int backendPort;
-        
-        /**
-         * Constructs a TCP server with specified backend port.
-         * @param backendPort
-         */
-        TCPServer(int backendPort) {
-            this.backendPort = backendPort;
+        @Override
+        public void report(Map<String, String> statistics) {
+            Runtime runtime = Runtime.getRuntime();
+            statistics.put("memory.heap_used", String.valueOf(runtime.totalMemory() - runtime.freeMemory()));
+            statistics.put("memory.heap_committed", String.valueOf(runtime.totalMemory()));
         }
-        
+    }
+    
+    /**
+     * TCP server of this node.
+     *
+     */
+    private class TCPServer implements Runnable {
         /**
          * Keeps listening. When a socket is accepted, a TCP client handler socket is launched.
          */
         @Override
         public void run() {
             printLog("Launch TCP server.");
-            ServerSocket serverSocket = null;
             try {
-                serverSocket = new ServerSocket(backendPort);
                 while (true) {
                     Socket socket = serverSocket.accept();
                     new Thread(new TCPClientHandler(socket)).start();
@@ -641,21 +973,30 @@ public abstract class ConnectionManager {
         public void run() {
             BufferedReader reader = null;
             PrintWriter writer = null;
+            waitForStart();
             try {
                 reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 writer = new PrintWriter(socket.getOutputStream(), true);
                 String request = null, source = null;
                 boolean firstRequest = true;
                 while ((request = reader.readLine()) != null) {
-                    int index = request.indexOf('|');
+                    String[] decodedRequest = decodeRequest(request);
+                    String traceId = decodedRequest[1], parentId = decodedRequest[2];
                     if (firstRequest) {
-                        source = request.substring(0, index);
+                        source = decodedRequest[0];
                         peers.get(source).serverWriter = writer;
                         firstRequest = false;
                     }
-                    request = request.substring(index + 1);
+                    request = decodedRequest[3];
                     printLog(OPERATION.RECEIVE_REQUEST, source, request);
-                    handleRequest(source, request);
+                    InstrumentedReadWriteLock.setOperation(getTextHeader(request));
+                    statistics.add("requests", 1);
+                    Tracer.Span span = traceId == null ? null : tracer.startSpan(getTextHeader(request), Tracer.KIND.SERVER, source, traceId, parentId);
+                    try {
+                        handleRequest(source, request);
+                    } finally {
+                        tracer.finishSpan(span);
+                    }
                 }
             } catch (IOException e) {
             } finally {
@@ -679,6 +1020,7 @@ public abstract class ConnectionManager {
         @Override
         public void run() {
             printLog("Launch UDP server.");
+            waitForStart();
             try {
                 byte[] buf = new byte[BUF_SIZE];
                 DatagramPacket packet = new DatagramPacket(buf, buf.length);
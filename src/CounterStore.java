@@ -0,0 +1,99 @@
+/**
+ * A store of integer counters by string keys, which is the data of replicas.
+ * Entries are addressed by slots, so that a value is read and updated in place after its key is found once, and entries are iterated without allocation.
+ * A slot stays valid until the next put or clear. Keys are never removed one by one.
+ * Methods other than put and clear may run concurrently, and each addition is atomic, so that writers of different keys do not block each other.
+ * Put and clear change the slots, and must not run concurrently with any method; replicas call them under the write lock for data.
+ * @author Shenqi Zhang
+ *
+ */
+public interface CounterStore {
+    /**
+     * Gets the number of entries.
+     * @return number of entries
+     */
+    int size();
+    
+    /**
+     * Returns true if there is no entry.
+     * @return true if there is no entry
+     */
+    boolean isEmpty();
+    
+    /**
+     * Removes all entries.
+     */
+    void clear();
+    
+    /**
+     * Maps the key to the value, adding an entry if the key is absent.
+     * @param key key
+     * @param value value
+     */
+    void put(String key, int value);
+    
+    /**
+     * Finds the slot of the key.
+     * @param key key
+     * @return slot of the key, or -1 if the key is absent
+     */
+    int find(String key);
+    
+    /**
+     * Gets the value in the slot.
+     * @param slot slot of an entry
+     * @return value
+     */
+    int get(int slot);
+    
+    /**
+     * Adds the delta to the value in the slot.
+     * @param slot slot of an entry
+     * @param delta delta
+     * @return value after the addition
+     */
+    int add(int slot, int delta);
+    
+    /**
+     * Copies this store.
+     * @return a copy of this store, which is independent of this store
+     */
+    CounterStore copy();
+    
+    /**
+     * Gets the next slot of an entry.
+     * for (int slot = store.next(-1); slot >= 0; slot = store.next(slot))
+     * @param slot current slot, or -1 to get the first slot
+     * @return the next slot of an entry, or -1 if there are no more entries
+     */
+    int next(int slot);
+    
+    /**
+     * Gets the key in the slot.
+     * @param slot slot of an entry
+     * @return key
+     */
+    String getKey(int slot);
+    
+    /**
+     * Appends the key in the slot to the string builder, without creating a string for the key if possible.
+     * @param sb string builder
+     * @param slot slot of an entry
+     */
+    void appendKey(StringBuilder sb, int slot);
+    
+    /**
+     * Gets the length of the key in the slot in UTF-8 bytes.
+     * @param slot slot of an entry
+     * @return length of the key in bytes
+     */
+    int getKeyLength(int slot);
+    
+    /**
+     * Copies the UTF-8 bytes of the key in the slot, without creating a string for the key.
+     * @param slot slot of an entry
+     * @param bytes byte array with at least the length of the key after the offset
+     * @param offset offset in the byte array
+     */
+    void getKeyBytes(int slot, byte[] bytes, int offset);
+}
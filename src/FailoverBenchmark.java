@@ -0,0 +1,555 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A benchmark which kills a replica under load, relaunches it later, and measures the failover and the restoration.
+ * The replica manager, fault detectors and users run in this process, and replicas run in child processes, so that a replica can be killed.
+ * Events in the fault detection system and the replica manager are timed in this process. Upgrade and restoration are timed by replicas.
+ * It must be launched in the directory of configuration files, when the distributed system is not running.
+ * @author Shenqi Zhang
+ *
+ */
+public class FailoverBenchmark {
+    /**
+     * Default time from the start of load to the kill in milliseconds.
+     */
+    private static final int DEFAULT_KILL_AFTER = 5000;
+    /**
+     * Default time from the kill to the relaunch in milliseconds.
+     */
+    private static final int DEFAULT_REJOIN_AFTER = 5000;
+    /**
+     * Default time from the relaunch to the end of load in milliseconds.
+     */
+    private static final int DEFAULT_COOLDOWN = 5000;
+    /**
+     * Default number of users.
+     */
+    private static final int DEFAULT_USERS = 2;
+    /**
+     * Time to wait for a replica to join or leave the membership in milliseconds.
+     */
+    private static final int MEMBERSHIP_TIMEOUT = 30000;
+    /**
+     * Directory of log files.
+     */
+    private static final String LOG_DIRECTORY = "failover_benchmark";
+    /**
+     * Times of events in nanoseconds.
+     * Keys are events like dead@GFD|RP1. Values are times of the latest events.
+     */
+    private static final Map<String, Long> EVENTS = new ConcurrentHashMap<String, Long>();
+    
+    /**
+     * Records an event.
+     * @param event event
+     * @param node node of the event
+     */
+    private static void recordEvent(String event, String node) {
+        EVENTS.put(event + '|' + node, System.nanoTime());
+    }
+    
+    /**
+     * Gets the time of an event.
+     * @param event event
+     * @param node node of the event
+     * @return time in nanoseconds, or null if the event does not happen
+     */
+    private static Long getEvent(String event, String node) {
+        return EVENTS.get(event + '|' + node);
+    }
+    
+    /**
+     * Replication mode, active or passive.
+     */
+    private String mode;
+    /**
+     * Victim, primary or backup.
+     */
+    private String victim;
+    /**
+     * Number of users.
+     */
+    private int users;
+    /**
+     * Time from the start of load to the kill in milliseconds.
+     */
+    private int killAfter;
+    /**
+     * Time from the kill to the relaunch in milliseconds.
+     */
+    private int rejoinAfter;
+    /**
+     * Time from the relaunch to the end of load in milliseconds.
+     */
+    private int cooldown;
+    /**
+     * Child processes of replicas.
+     * Keys are replicas. Values are processes.
+     */
+    private final Map<String, Process> replicaProcesses;
+    /**
+     * Completion times of successful user requests in nanoseconds.
+     */
+    private final List<Long> completions;
+    /**
+     * Number of failed user requests.
+     */
+    private final AtomicLong errors;
+    /**
+     * True if users are sending requests.
+     */
+    private volatile boolean running;
+    
+    /**
+     * Constructs a failover benchmark.
+     * @param mode replication mode, active or passive
+     * @param victim victim, primary or backup
+     * @param users number of users
+     * @param killAfter time from the start of load to the kill in milliseconds
+     * @param rejoinAfter time from the kill to the relaunch in milliseconds
+     * @param cooldown time from the relaunch to the end of load in milliseconds
+     */
+    public FailoverBenchmark(String mode, String victim, int users, int killAfter, int rejoinAfter, int cooldown) {
+        this.mode = mode;
+        this.victim = victim;
+        this.users = users;
+        this.killAfter = killAfter;
+        this.rejoinAfter = rejoinAfter;
+        this.cooldown = cooldown;
+        this.replicaProcesses = new HashMap<String, Process>();
+        this.completions = Collections.synchronizedList(new ArrayList<Long>());
+        this.errors = new AtomicLong();
+        this.running = true;
+    }
+    
+    /**
+     * Gets the log name of the node.
+     * @param node node
+     * @return log name
+     */
+    private static String getLogName(String node) {
+        return LOG_DIRECTORY + File.separator + node + ".log";
+    }
+    
+    /**
+     * Launches a replica in a child process.
+     * @param replica replica
+     */
+    private void launchReplica(String replica) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String replicaClass = mode.equals("active") ? ActiveReplica.class.getName() : PassiveReplica.class.getName();
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), replicaClass, replica, getLogName(replica));
+        processBuilder.environment().putIfAbsent("DISABLE_MESSAGE_LOG", "1");
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(LOG_DIRECTORY + File.separator + replica + ".out")));
+        try {
+            replicaProcesses.put(replica, processBuilder.start());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Kills all replicas.
+     */
+    private void killReplicas() {
+        for (Process process : replicaProcesses.values()) {
+            process.destroyForcibly();
+        }
+    }
+    
+    /**
+     * Gets the membership from the replica manager.
+     * @param user a user which asks the replica manager for the membership
+     * @return membership
+     */
+    private static List<String> getMembership(User user) {
+        String membership = user.sendRequest(user.replicaManager, "Membership");
+        if (membership == null || membership.isEmpty()) {
+            return new ArrayList<String>();
+        }
+        return Arrays.asList(membership.split(","));
+    }
+    
+    /**
+     * Waits until the replica joins or leaves the membership.
+     * @param user a user which asks the replica manager for the membership
+     * @param replica replica
+     * @param member true if waiting for joining
+     */
+    private static void waitForMembership(User user, String replica, boolean member) {
+        long deadline = System.currentTimeMillis() + MEMBERSHIP_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (getMembership(user).contains(replica) == member) {
+                return;
+            }
+            sleep(50);
+        }
+        System.out.println(new StringBuilder("Error: ").append(replica).append(" fails to ").append(member ? "join" : "leave").append(" the membership!").toString());
+        System.exit(0);
+    }
+    
+    /**
+     * Gets a statistic of a node.
+     * @param user a user which sends the statistics request
+     * @param node node
+     * @param name name of the statistic
+     * @return value, or null if absent
+     */
+    private static String getStatistic(User user, String node, String name) {
+        String response = user.sendRequest(node, "Statistics");
+        return response == null ? null : Statistics.deserialize(response).get(name);
+    }
+    
+    /**
+     * Sleeps.
+     * @param millis time in milliseconds
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Launches the distributed system, kills and relaunches a replica under load, and prints the timeline.
+     */
+    public void run() {
+        new File(LOG_DIRECTORY).mkdirs();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                killReplicas();
+            }
+        }));
+        List<String> replicaNames = Arrays.asList(ConnectionManager.loadParameters("replica_manager.conf").get("replicas").split("\\s*,\\s*"));
+        Map<String, String> faultDetectors = ConnectionManager.loadParameters("fault_detector.conf");
+        List<String> userNames = new ArrayList<String>();
+        for (String node : ConnectionManager.loadParameters("connection_manager.conf").keySet()) {
+            if (!faultDetectors.containsKey(node)) {
+                userNames.add(node);
+            }
+        }
+        Collections.sort(userNames);
+        if (replicaNames.size() < 2 || users > userNames.size()) {
+            System.out.println(new StringBuilder("Error: At least 2 replicas and ").append(users).append(" users must be configured!").toString());
+            System.exit(0);
+        }
+        String[] keys = ConnectionManager.loadParameters("replica.conf").get("data").replaceAll(":[^,]*", "").split("\\s*,\\s*");
+        
+        for (String node : faultDetectors.keySet()) {
+            if (faultDetectors.get(node).startsWith("|")) {
+                new TimedReplicaManager(node, getLogName(node));
+            } else if (!replicaNames.contains(node)) {
+                new TimedFaultDetector(node, getLogName(node));
+            }
+        }
+        List<User> userNodes = new ArrayList<User>(users);
+        for (int i = 0; i < users; i++) {
+            String node = userNames.get(i);
+            userNodes.add(mode.equals("active") ? new ActiveUser(node, getLogName(node)) : new PassiveUser(node, getLogName(node)));
+        }
+        User observer = userNodes.get(0);
+        for (String replica : replicaNames) {
+            launchReplica(replica);
+            waitForMembership(observer, replica, true);
+        }
+        
+        List<Thread> threads = new ArrayList<Thread>(users);
+        for (User userNode : userNodes) {
+            threads.add(new Thread(new UserLoop(userNode, keys)));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        
+        sleep(killAfter);
+        List<String> membership = getMembership(observer);
+        String killed = victim.equals("primary") ? membership.get(0) : membership.get(membership.size() - 1);
+        String newPrimary = victim.equals("primary") ? membership.get(1) : membership.get(0);
+        long killNanos = System.nanoTime();
+        replicaProcesses.get(killed).destroyForcibly();
+        waitForMembership(observer, killed, false);
+        String upgrade = victim.equals("primary") ? getStatistic(observer, newPrimary, "upgrade.millis") : null;
+        
+        sleep(Math.max(rejoinAfter - (System.nanoTime() - killNanos) / 1000000, 0));
+        long relaunchNanos = System.nanoTime();
+        launchReplica(killed);
+        waitForMembership(observer, killed, true);
+        // A replica is ready after restoration, so the restoration time is reported by then.
+        Long ready = observer.sendRequest(killed, "Ready") == null ? null : System.nanoTime();
+        String startup = getStatistic(observer, killed, "startup.millis");
+        String restore = getStatistic(observer, killed, "restore.millis");
+        
+        sleep(Math.max(cooldown - (System.nanoTime() - relaunchNanos) / 1000000, 0));
+        running = false;
+        long end = System.nanoTime();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        List<Long> sortedCompletions;
+        synchronized(completions) {
+            sortedCompletions = new ArrayList<Long>(completions);
+        }
+        Collections.sort(sortedCompletions);
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Kill %s (%s) in %s replication with %d users.%n", killed, victim, mode, users));
+        sb.append(formatEvent("failure detected by the fault detection system", killNanos, getFirstDeadEvent(killed, faultDetectors)));
+        sb.append(formatEvent("failure reported to the replica manager", killNanos, getEvent("dead@RM", killed)));
+        sb.append(formatEvent("new membership pushed to replicas", killNanos, getEvent("left@RM", killed)));
+        sb.append(String.format("%-50s %10s ms%n", "upgrade of the new primary", upgrade == null ? "-" : upgrade));
+        sb.append(formatMillis("user-visible unavailability after the kill", getLongestGap(sortedCompletions, killNanos, relaunchNanos)));
+        sb.append(String.format("%-50s %10s ms%n", "startup of the relaunched replica", startup == null ? "-" : startup));
+        sb.append(formatEvent("relaunched replica reported alive", relaunchNanos, getEvent("alive@RM", killed)));
+        sb.append(formatEvent("relaunched replica joined the membership", relaunchNanos, getEvent("joined@RM", killed)));
+        sb.append(String.format("%-50s %10s ms%n", "restoration of the relaunched replica", restore == null ? "-" : restore));
+        sb.append(formatEvent("relaunched replica ready", relaunchNanos, ready));
+        sb.append(formatMillis("user-visible unavailability after the relaunch", getLongestGap(sortedCompletions, relaunchNanos, end)));
+        sb.append(String.format("%-50s %10d%n", "successful user requests", sortedCompletions.size()));
+        sb.append(String.format("%-50s %10d%n", "failed user requests", errors.get()));
+        System.out.print(sb.toString());
+        
+        killReplicas();
+        System.exit(0);
+    }
+    
+    /**
+     * Gets the earliest time when a fault detector receives the dead request of the node.
+     * @param node node
+     * @param faultDetectors fault detectors in the configuration file
+     * @return time in nanoseconds, or null if no fault detector receives it
+     */
+    private static Long getFirstDeadEvent(String node, Map<String, String> faultDetectors) {
+        Long first = null;
+        for (String faultDetector : faultDetectors.keySet()) {
+            Long time = EVENTS.get("dead@" + faultDetector + '|' + node);
+            if (time != null && (first == null || time < first)) {
+                first = time;
+            }
+        }
+        return first;
+    }
+    
+    /**
+     * Gets the longest time without successful user requests in the period.
+     * @param sortedCompletions sorted completion times of successful user requests in nanoseconds
+     * @param start start of the period in nanoseconds
+     * @param end end of the period in nanoseconds
+     * @return the longest time in nanoseconds
+     */
+    private static long getLongestGap(List<Long> sortedCompletions, long start, long end) {
+        long longestGap = 0;
+        long previous = start;
+        for (long completion : sortedCompletions) {
+            if (completion <= start) {
+                continue;
+            }
+            if (completion > end) {
+                break;
+            }
+            longestGap = Math.max(longestGap, completion - previous);
+            previous = completion;
+        }
+        return Math.max(longestGap, end - previous);
+    }
+    
+    /**
+     * Formats the time from the start to an event.
+     * @param description description of the event
+     * @param start start in nanoseconds
+     * @param event time of the event in nanoseconds; null if the event does not happen
+     * @return formatted line
+     */
+    private static String formatEvent(String description, long start, Long event) {
+        return String.format("%-50s %10s ms%n", description, event == null ? "-" : String.format("%.1f", (event - start) / 1e6));
+    }
+    
+    /**
+     * Formats a duration.
+     * @param description description of the duration
+     * @param nanos duration in nanoseconds
+     * @return formatted line
+     */
+    private static String formatMillis(String description, long nanos) {
+        return String.format("%-50s %10.1f ms%n", description, nanos / 1e6);
+    }
+    
+    /**
+     * A fault detector which records the times when it receives dead requests.
+     * dead@<fault detector>|<node>
+     *
+     */
+    private static class TimedFaultDetector extends FaultDetector {
+        /**
+         * Constructs a timed fault detector.
+         * @param name the name of this node in the distributed system
+         * @param logName the name of the log file
+         */
+        TimedFaultDetector(String name, String logName) {
+            super(name, logName);
+            start(TimedFaultDetector.class);
+        }
+        
+        /**
+         * Records the time and handles the dead request from the source.
+         * @param source source of the request in the distributed system
+         * @param request request
+         */
+        @Override
+        protected void handleDeadRequest(String source, String request) {
+            recordEvent("dead@" + name, request.substring(request.indexOf('|') + 1));
+            super.handleDeadRequest(source, request);
+        }
+    }
+    
+    /**
+     * A replica manager which records the times when it receives alive and dead requests, and when the new membership is pushed.
+     * alive@RM|<node>
+     * dead@RM|<node>
+     * joined@RM|<node>
+     * left@RM|<node>
+     *
+     */
+    private static class TimedReplicaManager extends ReplicaManager {
+        /**
+         * Constructs a timed replica manager.
+         * @param name the name of this node in the distributed system
+         * @param logName the name of the log file
+         */
+        TimedReplicaManager(String name, String logName) {
+            super(name, logName);
+            start(TimedReplicaManager.class);
+        }
+        
+        /**
+         * Records the times and handles the alive request from the source.
+         * @param source source of the request in the distributed system
+         * @param request request
+         */
+        @Override
+        protected void handleAliveRequest(String source, String request) {
+            String node = request.substring(request.indexOf('|') + 1);
+            recordEvent("alive@RM", node);
+            super.handleAliveRequest(source, request);
+            recordEvent("joined@RM", node);
+        }
+        
+        /**
+         * Records the times and handles the dead request from the source.
+         * @param source source of the request in the distributed system
+         * @param request request
+         */
+        @Override
+        protected void handleDeadRequest(String source, String request) {
+            String node = request.substring(request.indexOf('|') + 1);
+            recordEvent("dead@RM", node);
+            super.handleDeadRequest(source, request);
+            recordEvent("left@RM", node);
+        }
+    }
+    
+    /**
+     * Loop of a user which sends a user request after the response of the previous one.
+     *
+     */
+    private class UserLoop implements Runnable {
+        /**
+         * User.
+         */
+        private User user;
+        /**
+         * Keys.
+         */
+        private String[] keys;
+        
+        /**
+         * Constructs a user loop.
+         * @param user user
+         * @param keys keys
+         */
+        UserLoop(User user, String[] keys) {
+            this.user = user;
+            this.keys = keys;
+        }
+        
+        /**
+         * Sends increment and decrement requests until the benchmark stops, and records completion times of successful ones.
+         */
+        @Override
+        public void run() {
+            Random random = new Random();
+            long timestamp = 0;
+            while (running) {
+                // Requests from the same user must have different timestamps.
+                timestamp = Math.max(System.currentTimeMillis(), timestamp + 1);
+                StringBuilder sb = new StringBuilder(random.nextBoolean() ? "Increment|" : "Decrement|");
+                sb.append(keys[random.nextInt(keys.length)]).append(',').append(timestamp);
+                String response = user.sendUserRequest(sb.toString());
+                if (response == null || response.startsWith("Error")) {
+                    errors.incrementAndGet();
+                    sleep(1);
+                } else {
+                    completions.add(System.nanoTime());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Launches a failover benchmark.
+     * java FailoverBenchmark [-mode <active|passive>] [-victim <primary|backup>] [-users <m>] [-kill <millis>] [-rejoin <millis>] [-cooldown <millis>]
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        String mode = "passive";
+        String victim = "primary";
+        int users = DEFAULT_USERS;
+        int killAfter = DEFAULT_KILL_AFTER;
+        int rejoinAfter = DEFAULT_REJOIN_AFTER;
+        int cooldown = DEFAULT_COOLDOWN;
+        for (Iterator<String> it = Arrays.asList(args).iterator(); it.hasNext();) {
+            String arg = it.next();
+            if (arg.equals("-mode")) {
+                mode = it.next();
+            } else if (arg.equals("-victim")) {
+                victim = it.next();
+            } else if (arg.equals("-users")) {
+                users = Integer.valueOf(it.next());
+            } else if (arg.equals("-kill")) {
+                killAfter = Integer.valueOf(it.next());
+            } else if (arg.equals("-rejoin")) {
+                rejoinAfter = Integer.valueOf(it.next());
+            } else if (arg.equals("-cooldown")) {
+                cooldown = Integer.valueOf(it.next());
+            } else {
+                System.out.println("Error: Invalid argument " + arg + "!");
+                System.exit(0);
+            }
+        }
+        if (!mode.matches("active|passive") || !victim.matches("primary|backup")) {
+            System.out.println("Error: Invalid mode or victim!");
+            System.exit(0);
+        }
+        
+        new FailoverBenchmark(mode, victim, users, killAfter, rejoinAfter, cooldown).run();
+    }
+}
@@ -36,6 +36,10 @@ public class FaultDetector extends ConnectionManager {
      * When the number of consecutive missing heartbeats reaches the tolerance, a child is considered dead.
      */
     private int heartbeatTolerance;
+    /**
+     * String representation of membership, separated by spaces; null if this node does not track membership.
+     */
+    protected volatile String membershipSummary;
     
     /**
      * Constructs a fault detector.
@@ -72,7 +76,7 @@ public class FaultDetector extends ConnectionManager {
      * @param logName the name of the log file; if null, log will be written in stdout
      */
     public FaultDetector(String name, int heartbeatInterval, int heartbeatTolerance, String logName) {
-        super(name, true, true, logName);
+        super(name, true, false, logName);
         Map<String, String> parameters = getParameters("fault_detector.conf");
         if (heartbeatInterval > 0) {
             this.heartbeatInterval = heartbeatInterval;
@@ -91,6 +95,7 @@ public class FaultDetector extends ConnectionManager {
             this.parents.addAll(Arrays.asList(str.substring(0, index).trim().split("\\s*,\\s*")));
         }
         this.childrenTolerance = new HashMap<String, AtomicInteger>();
+        this.membershipSummary = null;
         if (index < str.length() - 1) {
             for (String child : str.substring(index + 1).split(",")) {
                 this.childrenTolerance.put(child.trim(), new AtomicInteger(0));
@@ -98,14 +103,19 @@ public class FaultDetector extends ConnectionManager {
         }
         
         printParameters();
+        statistics.register(new RoleReporter());
         
         if (parents.size() > 0) {
             new Thread(new HeartbeatSender()).start();
         }
         
+        // Only nodes with children receive heartbeats.
         if (childrenTolerance.size() > 0) {
+            launchUDPServer();
             new Thread(new ToleranceDecrementer()).start();
         }
+        
+        start(FaultDetector.class);
     }
     
     /**
@@ -130,6 +140,14 @@ public class FaultDetector extends ConnectionManager {
         printLog("heartbeat tolerance = " + this.heartbeatTolerance);
     }
     
+    /**
+     * Gets the role of this node in the distributed system.
+     * @return role of this node
+     */
+    protected String getRole() {
+        return "detector";
+    }
+    
     /**
      * Sends request to parents concurrently.
      * @param request request
@@ -166,6 +184,12 @@ public class FaultDetector extends ConnectionManager {
         case HEARTBEAT_TOLERANCE:
             handleHeartbeatToleranceRequest(source, request);
             break;
+        case STATISTICS:
+            handleStatisticsRequest(source, request);
+            break;
+        case READY:
+            handleReadyRequest(source, request);
+            break;
         default:
             printLog(new StringBuilder("Error: Invalid request ").append(request).append('!').toString());
             System.exit(0);
@@ -231,6 +255,24 @@ public class FaultDetector extends ConnectionManager {
         sendResponse(source, "ACK");
     }
     
+    /**
+     * Handles the statistics request from the source.
+     * The membership is reported by nodes which track it.
+     * Statistics
+     * @param source source of the request in the distributed system
+     * @param request request
+     */
+    @Override
+    protected void handleStatisticsRequest(String source, String request) {
+        if (membershipSummary == null) {
+            super.handleStatisticsRequest(source, request);
+            return;
+        }
+        StringBuilder sb = new StringBuilder(statistics.serialize());
+        sb.append(sb.length() == 0 ? "" : ",").append("membership=").append(membershipSummary);
+        sendResponse(source, sb.toString());
+    }
+    
     /**
      * Handles the message from the source.
      * @param source the source in the distributed system
@@ -255,6 +297,7 @@ public class FaultDetector extends ConnectionManager {
      * @param message message
      */
     protected void handleHeartbeatMessage(String source, String message) {
+        statistics.add("heartbeats", 1);
         if (childrenTolerance.containsKey(source)) {
             AtomicInteger childTolerance = childrenTolerance.get(source);
             if (childTolerance.getAndSet(heartbeatTolerance) <= 0) {
@@ -290,17 +333,42 @@ public class FaultDetector extends ConnectionManager {
         printLog(sb.toString());
     }
     
+    /**
+     * Role reporter.
+     *
+     */
+    private class RoleReporter implements Statistics.Reporter {
+        /**
+         * Reports the role and the number of alive children.
+         * role
+         * children
+         * @param statistics a map with names as keys and values as values
+         */
+        @Override
+        public void report(Map<String, String> statistics) {
+            int aliveChildren = 0;
+            for (AtomicInteger childTolerance : childrenTolerance.values()) {
+                if (childTolerance.get() > 0) {
+                    aliveChildren++;
+                }
+            }
+            statistics.put("role", getRole());
+            statistics.put("children", String.valueOf(aliveChildren));
+        }
+    }
+    
     /**
      * Heartbeat sender.
      *
      */
     private class HeartbeatSender implements Runnable {
         /**
-         * Sends heartbeat to parents periodically.
+         * Sends heartbeat to parents periodically after this node is started, so parents never report it alive before it handles requests.
          */
         @Override
         public void run() {
             printLog("Launch heartbeat sender.");
+            waitForStart();
             while (true) {
                 for (String parent : parents) {
                     sendMessage(parent, "Heartbeat");
@@ -320,17 +388,19 @@ public class FaultDetector extends ConnectionManager {
      */
     private class ToleranceDecrementer implements Runnable {
         /**
-         * Decrements the tolerance of each child periodically.
+         * Decrements the tolerance of each child periodically, and records the time of each sweep.
          */
         @Override
         public void run() {
             printLog("Launch tolerance decrementer.");
+            waitForStart();
             while (true) {
                 try {
                     Thread.sleep(heartbeatInterval);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
+                long start = System.nanoTime();
                 for (String child : childrenTolerance.keySet()) {
                     AtomicInteger childTolerance = childrenTolerance.get(child);
                     if (childTolerance.get() > 0) {
@@ -341,6 +411,7 @@ public class FaultDetector extends ConnectionManager {
                         }
                     }
                 }
+                statistics.recordLatency("tolerance_sweep", (System.nanoTime() - start) / 1000);
             }
         }
     }
@@ -0,0 +1,729 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A benchmark which runs one fault detector against thousands of simulated children sending heartbeats.
+ * The fault detector runs in a child process, so that its CPU time and memory can be measured.
+ * This process simulates the children, which send heartbeats with phases spread evenly over the heartbeat interval, and the parent, which receives alive and dead requests.
+ * During measurement, random children are killed. A killed child stops sending heartbeats until the fault detector reports it dead, and then it comes back.
+ * A dead request of a child which has not been killed is a false positive.
+ * @author Shenqi Zhang
+ *
+ */
+public class FaultDetectorBenchmark {
+    /**
+     * Default numbers of children.
+     */
+    private static final String DEFAULT_CHILDREN = "100,1000,5000,10000";
+    /**
+     * Default number of threads sending heartbeats.
+     */
+    private static final int DEFAULT_SENDERS = 4;
+    /**
+     * Default number of children killed per second.
+     */
+    private static final int DEFAULT_KILLS = 5;
+    /**
+     * Default duration of warmup in milliseconds.
+     */
+    private static final int DEFAULT_WARMUP = 5000;
+    /**
+     * Default duration of measurement in milliseconds.
+     */
+    private static final int DEFAULT_DURATION = 20000;
+    /**
+     * Default port of the fault detector.
+     * The parent uses the next port. Each configuration uses two ports after those of the previous one.
+     */
+    private static final int DEFAULT_PORT = 26001;
+    /**
+     * Time to wait for the fault detector to start, and for all children to be reported alive, in milliseconds.
+     */
+    private static final int ALIVE_TIMEOUT = 30000;
+    /**
+     * Directory of configuration and log files.
+     */
+    private static final String LOG_DIRECTORY = "fault_detector_benchmark";
+    /**
+     * Name of the fault detector.
+     */
+    private static final String DETECTOR = "FD";
+    /**
+     * Name of the parent.
+     */
+    private static final String PARENT = "BENCH";
+    
+    /**
+     * Number of children.
+     */
+    private int children;
+    /**
+     * Number of threads sending heartbeats.
+     */
+    private int senders;
+    /**
+     * Number of children killed per second.
+     */
+    private int kills;
+    /**
+     * Duration of warmup in milliseconds.
+     */
+    private int warmup;
+    /**
+     * Duration of measurement in milliseconds.
+     */
+    private int duration;
+    /**
+     * Port of the fault detector.
+     */
+    private int port;
+    /**
+     * Times when children sent their latest heartbeats in nanoseconds.
+     */
+    private final AtomicLongArray lastHeartbeats;
+    /**
+     * Killed children. 1 if killed.
+     */
+    private final AtomicIntegerArray killed;
+    /**
+     * Children reported alive by the fault detector. 1 if alive.
+     */
+    private final AtomicIntegerArray reported;
+    /**
+     * Number of children reported alive.
+     */
+    private final AtomicInteger aliveChildren;
+    /**
+     * Number of heartbeats sent.
+     */
+    private final AtomicLong heartbeats;
+    /**
+     * Time from the latest heartbeat of a killed child to its dead request in microseconds.
+     */
+    private final LatencyHistogram detections;
+    /**
+     * Number of dead requests of children which have not been killed during measurement.
+     */
+    private final AtomicLong falseDeads;
+    /**
+     * True during measurement.
+     */
+    private volatile boolean measuring;
+    /**
+     * True if children are sending heartbeats.
+     */
+    private volatile boolean running;
+    
+    /**
+     * Constructs a fault detector benchmark.
+     * @param children number of children
+     * @param senders number of threads sending heartbeats
+     * @param kills number of children killed per second
+     * @param warmup duration of warmup in milliseconds
+     * @param duration duration of measurement in milliseconds
+     * @param port port of the fault detector; the parent uses the next port
+     */
+    public FaultDetectorBenchmark(int children, int senders, int kills, int warmup, int duration, int port) {
+        this.children = children;
+        this.senders = senders;
+        this.kills = kills;
+        this.warmup = warmup;
+        this.duration = duration;
+        this.port = port;
+        this.lastHeartbeats = new AtomicLongArray(children);
+        this.killed = new AtomicIntegerArray(children);
+        this.reported = new AtomicIntegerArray(children);
+        this.aliveChildren = new AtomicInteger();
+        this.heartbeats = new AtomicLong();
+        this.detections = new LatencyHistogram();
+        this.falseDeads = new AtomicLong();
+        this.running = true;
+    }
+    
+    /**
+     * Gets the name of the child.
+     * @param child index of the child
+     * @return name
+     */
+    private static String getChildName(int child) {
+        return "C" + (child + 1);
+    }
+    
+    /**
+     * Gets the index of the child.
+     * @param name name of the child
+     * @return index, or -1 if the name is not a child
+     */
+    private int getChildIndex(String name) {
+        try {
+            int child = Integer.valueOf(name.substring(1)) - 1;
+            return child >= 0 && child < children ? child : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Writes the configuration files of the fault detector in the directory.
+     * @param directory directory
+     * @throws IOException if the files cannot be written
+     */
+    private void writeConfigurations(File directory) throws IOException {
+        PrintStream out = new PrintStream(new File(directory, "connection_manager.conf"));
+        out.println(DETECTOR + " = localhost:" + port);
+        out.println(PARENT + " = localhost:" + (port + 1));
+        out.close();
+        
+        StringBuilder sb = new StringBuilder(DETECTOR).append(" = ").append(PARENT).append(" | ");
+        for (int i = 0; i < children; i++) {
+            sb.append(getChildName(i)).append(", ");
+        }
+        sb.setLength(sb.length() - 2);
+        out = new PrintStream(new File(directory, "fault_detector.conf"));
+        out.println(sb.toString());
+        out.close();
+    }
+    
+    /**
+     * Launches the fault detector in a child process.
+     * @param directory directory of configuration files
+     * @return process
+     * @throws IOException if the process cannot be launched
+     */
+    private static Process launchFaultDetector(File directory) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        // The fault detector runs in another directory, so the class path must be absolute.
+        StringBuilder classPath = new StringBuilder();
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(new File(path).getAbsolutePath()).append(File.pathSeparator);
+        }
+        classPath.setLength(classPath.length() - 1);
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", classPath.toString(), FaultDetector.class.getName(), DETECTOR, DETECTOR + ".log");
+        processBuilder.directory(directory);
+        processBuilder.environment().putIfAbsent("DISABLE_MESSAGE_LOG", "1");
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(directory, DETECTOR + ".out")));
+        return processBuilder.start();
+    }
+    
+    /**
+     * Gets the statistics of the fault detector.
+     * @return a map with names as keys and values as values; empty if the fault detector does not respond
+     */
+    private Map<String, String> getStatistics() {
+        try {
+            Socket socket = new Socket("localhost", port);
+            try {
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                writer.println(PARENT + "|Statistics");
+                return Statistics.deserialize(reader.readLine());
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            return Statistics.deserialize(null);
+        }
+    }
+    
+    /**
+     * Gets a statistic as a number.
+     * @param statistics a map with names as keys and values as values
+     * @param name name of the statistic
+     * @return value, or 0 if absent
+     */
+    private static long getStatistic(Map<String, String> statistics, String name) {
+        String value = statistics.get(name);
+        return value == null ? 0 : Long.valueOf(value);
+    }
+    
+    /**
+     * Gets the CPU time of the process.
+     * @param process process
+     * @return CPU time in nanoseconds, or -1 if unavailable
+     */
+    private static long getCpuNanos(Process process) {
+        Optional<Duration> cpu = process.toHandle().info().totalCpuDuration();
+        return cpu.isPresent() ? cpu.get().toNanos() : -1;
+    }
+    
+    /**
+     * Gets the resident set size of the process from /proc.
+     * @param process process
+     * @return resident set size in bytes, or -1 if unavailable
+     */
+    private static long getResidentBytes(Process process) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile("/proc/" + process.pid() + "/status", "r");
+            String line = null;
+            while ((line = file.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.valueOf(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException e) {
+        } finally {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {}
+        }
+        return -1;
+    }
+    
+    /**
+     * Sleeps.
+     * @param millis time in milliseconds
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Launches the fault detector and the simulated children, kills children during measurement, and measures the fault detector.
+     * @return result: children, heartbeats per second, loss, CPU usage, CPU time per heartbeat, sweep p99 and maximum, detection p50, p99 and maximum,
+     *         detected and missed kills, false positives, heap and resident memory, and children reported alive before measurement, separated by commas;
+     *         null if the benchmark fails
+     */
+    public String run() {
+        File directory = new File(LOG_DIRECTORY, String.valueOf(children));
+        directory.mkdirs();
+        ServerSocket serverSocket = null;
+        Process process = null;
+        List<Thread> threads = new ArrayList<Thread>(senders);
+        try {
+            writeConfigurations(directory);
+            serverSocket = new ServerSocket(port + 1);
+            new Thread(new ParentServer(serverSocket)).start();
+            process = launchFaultDetector(directory);
+            
+            // Heartbeats sent before the fault detector is ready queue in its socket buffer and may be dropped, so children wait until it is ready.
+            long deadline = System.currentTimeMillis() + ALIVE_TIMEOUT;
+            while (!"1".equals(getStatistics().get("ready"))) {
+                if (System.currentTimeMillis() > deadline || !process.isAlive()) {
+                    System.out.println("Error: The fault detector fails to start!");
+                    return null;
+                }
+                sleep(50);
+            }
+            
+            for (int i = 0; i < senders; i++) {
+                threads.add(new Thread(new HeartbeatSender(i)));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            
+            deadline = System.currentTimeMillis() + ALIVE_TIMEOUT;
+            while (aliveChildren.get() < children) {
+                if (!process.isAlive()) {
+                    System.out.println("Error: The fault detector exits!");
+                    return null;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    // A saturated fault detector never reports all children alive, and it is measured as it is.
+                    System.out.println(new StringBuilder("Warning: Only ").append(aliveChildren.get()).append(" of ").append(children).append(" children are reported alive!").toString());
+                    break;
+                }
+                sleep(50);
+            }
+            sleep(warmup);
+            
+            int aliveAtStart = aliveChildren.get();
+            Map<String, String> startStatistics = getStatistics();
+            long startCpu = getCpuNanos(process);
+            long startHeartbeats = heartbeats.get();
+            long start = System.nanoTime();
+            measuring = true;
+            long killCount = 0;
+            long end = start + duration * 1000000L;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                if (kills > 0 && now - start >= killCount * 1000000000L / kills) {
+                    if (kill()) {
+                        killCount++;
+                    }
+                }
+                LockSupport.parkNanos(Math.min(end - now, 1000000L));
+            }
+            Map<String, String> endStatistics = getStatistics();
+            long endCpu = getCpuNanos(process);
+            long endHeartbeats = heartbeats.get();
+            long elapsed = System.nanoTime() - start;
+            long residentBytes = getResidentBytes(process);
+            
+            // Children killed near the end are given time to be detected.
+            sleep((FaultDetector.DEFAULT_HEARTBEAT_TOLERANCE + 2) * FaultDetector.DEFAULT_HEARTBEAT_INTERVAL);
+            measuring = false;
+            long missed = 0;
+            for (int i = 0; i < children; i++) {
+                if (killed.get(i) == 1) {
+                    missed++;
+                }
+            }
+            
+            long sent = endHeartbeats - startHeartbeats;
+            long received = getStatistic(endStatistics, "heartbeats") - getStatistic(startStatistics, "heartbeats");
+            double loss = sent == 0 ? 0 : Math.max(sent - received, 0) * 100.0 / sent;
+            double cpuUsage = startCpu < 0 || endCpu < 0 ? -1 : (endCpu - startCpu) * 100.0 / elapsed;
+            double cpuPerHeartbeat = startCpu < 0 || endCpu < 0 || received == 0 ? -1 : (endCpu - startCpu) / 1000.0 / received;
+            StringBuilder sb = new StringBuilder();
+            sb.append(children).append(',').append(sent * 1000000000L / elapsed).append(',').append(String.format("%.2f", loss)).append(',');
+            sb.append(String.format("%.1f", cpuUsage)).append(',').append(String.format("%.2f", cpuPerHeartbeat)).append(',');
+            sb.append(getStatistic(endStatistics, "tolerance_sweep.p99")).append(',').append(getStatistic(endStatistics, "tolerance_sweep.max")).append(',');
+            sb.append(detections.getValueAtPercentile(50)).append(',').append(detections.getValueAtPercentile(99)).append(',').append(detections.getMax()).append(',');
+            sb.append(detections.getTotalCount()).append(',').append(missed).append(',').append(falseDeads.get()).append(',');
+            sb.append(getStatistic(endStatistics, "memory.heap_used")).append(',').append(residentBytes).append(',').append(aliveAtStart);
+            return sb.toString();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            running = false;
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (process != null) {
+                process.destroyForcibly();
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+    
+    /**
+     * Kills a random child which is reported alive.
+     * @return true if a child is killed
+     */
+    private boolean kill() {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int child = ThreadLocalRandom.current().nextInt(children);
+            if (reported.get(child) == 1 && killed.compareAndSet(child, 0, 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Handles the alive or dead request from the fault detector.
+     * @param request request
+     */
+    private void handleRequest(String request) {
+        int index = request.indexOf('|');
+        if (index < 0) {
+            return;
+        }
+        int child = getChildIndex(request.substring(index + 1));
+        if (child < 0) {
+            return;
+        }
+        
+        if (request.startsWith("Alive|")) {
+            if (reported.getAndSet(child, 1) == 0) {
+                aliveChildren.incrementAndGet();
+            }
+        } else if (request.startsWith("Dead|")) {
+            long now = System.nanoTime();
+            if (reported.getAndSet(child, 0) == 1) {
+                aliveChildren.decrementAndGet();
+            }
+            if (killed.get(child) == 1) {
+                detections.record((now - lastHeartbeats.get(child)) / 1000);
+                // The killed child comes back after it is detected.
+                killed.set(child, 0);
+            } else if (measuring) {
+                falseDeads.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Prints the results in a table.
+     * @param results results; each is the result of a configuration
+     * @param out output
+     */
+    private static void printResults(List<String> results, PrintStream out) {
+        out.println(String.format("%8s %8s %8s %7s %6s %10s %10s %10s %9s %9s %9s %8s %6s %6s %8s %8s", "CHILDREN", "ALIVE", "HB/S", "LOSS(%)", "CPU(%)", "CPU/HB(us)",
+                "SWEEP_P99", "SWEEP_MAX", "P50(ms)", "P99(ms)", "MAX(ms)", "DETECTED", "MISSED", "FALSE", "HEAP(MB)", "RSS(MB)"));
+        for (String result : results) {
+            String[] strs = result.split(",");
+            out.println(String.format("%8s %8s %8s %7s %6s %10s %8.2fms %8.2fms %9.1f %9.1f %9.1f %8s %6s %6s %8.1f %8.1f", strs[0], strs[15], strs[1], strs[2], strs[3], strs[4],
+                    Long.valueOf(strs[5]) / 1000.0, Long.valueOf(strs[6]) / 1000.0, Long.valueOf(strs[7]) / 1000.0, Long.valueOf(strs[8]) / 1000.0, Long.valueOf(strs[9]) / 1000.0,
+                    strs[10], strs[11], strs[12], Long.valueOf(strs[13]) / 1048576.0, Long.valueOf(strs[14]) / 1048576.0));
+        }
+    }
+    
+    /**
+     * Prints the largest number of children which the fault detector handles without saturation.
+     * The fault detector is saturated if it loses more than 1% of heartbeats, reports a false positive, misses a kill,
+     * detects a kill later than one heartbeat interval after the tolerance, spends more than half of the heartbeat interval in a sweep, or never reports all children alive.
+     * @param results results; each is the result of a configuration
+     */
+    private static void printSaturation(List<String> results) {
+        int interval = FaultDetector.DEFAULT_HEARTBEAT_INTERVAL;
+        long detectionLimit = (FaultDetector.DEFAULT_HEARTBEAT_TOLERANCE + 1) * interval * 1000L;
+        String largest = null;
+        for (String result : results) {
+            String[] strs = result.split(",");
+            if (Double.valueOf(strs[2]) > 1 || Long.valueOf(strs[12]) > 0 || Long.valueOf(strs[11]) > 0 || Long.valueOf(strs[8]) > detectionLimit
+                    || Long.valueOf(strs[5]) > interval * 500L || !strs[15].equals(strs[0])) {
+                System.out.println(new StringBuilder("The fault detector is saturated with ").append(strs[0]).append(" children. ")
+                        .append(largest == null ? "Add another level of fault detectors." : "Add another level of fault detectors above " + largest + " children.").toString());
+                return;
+            }
+            largest = strs[0];
+        }
+        System.out.println("The fault detector is not saturated with up to " + largest + " children.");
+    }
+    
+    /**
+     * Server of the parent, which receives alive and dead requests from the fault detector.
+     *
+     */
+    private class ParentServer implements Runnable {
+        /**
+         * Server socket.
+         */
+        private ServerSocket serverSocket;
+        
+        /**
+         * Constructs a parent server.
+         * @param serverSocket server socket
+         */
+        ParentServer(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+        
+        /**
+         * Accepts connections until the server socket is closed.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    new Thread(new ParentHandler(serverSocket.accept())).start();
+                }
+            } catch (IOException e) {}
+        }
+    }
+    
+    /**
+     * Handler of a connection from the fault detector to the parent.
+     *
+     */
+    private class ParentHandler implements Runnable {
+        /**
+         * Socket of this connection.
+         */
+        private Socket socket;
+        
+        /**
+         * Constructs a parent handler.
+         * @param socket socket
+         */
+        ParentHandler(Socket socket) {
+            this.socket = socket;
+        }
+        
+        /**
+         * Handles requests and acknowledges them.
+         */
+        @Override
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    handleRequest(ConnectionManager.decodeRequest(line)[3]);
+                    writer.println("ACK");
+                }
+            } catch (IOException e) {
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+    
+    /**
+     * Sender of heartbeats of a slice of children.
+     * Heartbeats of the children in the slice are spread evenly over the heartbeat interval.
+     *
+     */
+    private class HeartbeatSender implements Runnable {
+        /**
+         * Index of this sender.
+         */
+        private int index;
+        
+        /**
+         * Constructs a heartbeat sender.
+         * @param index index of this sender
+         */
+        HeartbeatSender(int index) {
+            this.index = index;
+        }
+        
+        /**
+         * Sends heartbeats of children in the slice periodically, except killed children, until the benchmark stops.
+         */
+        @Override
+        public void run() {
+            DatagramSocket socket = null;
+            try {
+                socket = new DatagramSocket();
+                InetAddress address = InetAddress.getByName("localhost");
+                List<Integer> slice = new ArrayList<Integer>();
+                for (int i = index; i < children; i += senders) {
+                    slice.add(i);
+                }
+                if (slice.isEmpty()) {
+                    return;
+                }
+                DatagramPacket[] packets = new DatagramPacket[slice.size()];
+                for (int i = 0; i < packets.length; i++) {
+                    byte[] buf = (getChildName(slice.get(i)) + "|Heartbeat").getBytes();
+                    packets[i] = new DatagramPacket(buf, buf.length, address, port);
+                }
+                
+                long interval = FaultDetector.DEFAULT_HEARTBEAT_INTERVAL * 1000000L;
+                long gap = interval / packets.length;
+                long next = System.nanoTime() + interval * index / senders / packets.length;
+                while (running) {
+                    for (int i = 0; i < packets.length && running; i++) {
+                        long now = System.nanoTime();
+                        if (next > now) {
+                            LockSupport.parkNanos(next - now);
+                        }
+                        next += gap;
+                        int child = slice.get(i);
+                        if (killed.get(child) == 1) {
+                            continue;
+                        }
+                        socket.send(packets[i]);
+                        lastHeartbeats.set(child, System.nanoTime());
+                        heartbeats.incrementAndGet();
+                    }
+                    next += interval - gap * packets.length;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Launches a fault detector benchmark.
+     * java FaultDetectorBenchmark [-children <n1>,<n2> ...] [-senders <threads>] [-kills <per second>] [-warmup <millis>] [-duration <millis>] [-port <port>] [-o <result file>]
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        List<String> childCounts = Arrays.asList(DEFAULT_CHILDREN.split(","));
+        int senders = DEFAULT_SENDERS;
+        int kills = DEFAULT_KILLS;
+        int warmup = DEFAULT_WARMUP;
+        int duration = DEFAULT_DURATION;
+        int port = DEFAULT_PORT;
+        String outputName = null;
+        for (Iterator<String> it = Arrays.asList(args).iterator(); it.hasNext();) {
+            String arg = it.next();
+            if (arg.equals("-children")) {
+                childCounts = Arrays.asList(it.next().split(","));
+            } else if (arg.equals("-senders")) {
+                senders = Integer.valueOf(it.next());
+            } else if (arg.equals("-kills")) {
+                kills = Integer.valueOf(it.next());
+            } else if (arg.equals("-warmup")) {
+                warmup = Integer.valueOf(it.next());
+            } else if (arg.equals("-duration")) {
+                duration = Integer.valueOf(it.next());
+            } else if (arg.equals("-port")) {
+                port = Integer.valueOf(it.next());
+            } else if (arg.equals("-o")) {
+                outputName = it.next();
+            } else {
+                System.out.println("Error: Invalid argument " + arg + "!");
+                System.exit(0);
+            }
+        }
+        
+        System.out.println(String.format("Heartbeat interval %d ms and tolerance %d: a killed child should be detected %d to %d ms after its last heartbeat.",
+                FaultDetector.DEFAULT_HEARTBEAT_INTERVAL, FaultDetector.DEFAULT_HEARTBEAT_TOLERANCE,
+                (FaultDetector.DEFAULT_HEARTBEAT_TOLERANCE - 1) * FaultDetector.DEFAULT_HEARTBEAT_INTERVAL, FaultDetector.DEFAULT_HEARTBEAT_TOLERANCE * FaultDetector.DEFAULT_HEARTBEAT_INTERVAL));
+        List<String> results = new ArrayList<String>();
+        for (int i = 0; i < childCounts.size(); i++) {
+            int children = Integer.valueOf(childCounts.get(i));
+            System.out.println(new StringBuilder("Benchmark a fault detector with ").append(children).append(" children.").toString());
+            String result = new FaultDetectorBenchmark(children, senders, kills, warmup, duration, port + 2 * i).run();
+            if (result == null) {
+                System.out.println("Error: Benchmark fails!");
+            } else {
+                results.add(result);
+            }
+        }
+        printResults(results, System.out);
+        if (!results.isEmpty()) {
+            printSaturation(results);
+        }
+        if (outputName != null) {
+            try {
+                PrintStream out = new PrintStream(outputName);
+                for (String result : results) {
+                    out.println(result);
+                }
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,513 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter store in the heap, with an open-addressing table and linear probing.
+ * Keys are encoded in UTF-8 and packed one after another in a byte array.
+ * Each slot holds the hash, offset and length of its key in three adjacent ints of the table, so that a probe reads one cache line.
+ * Values are atomic cells in segments of atomic int arrays, so that increments and decrements update values in place without boxing, and writers of different keys do not block each other.
+ * A copy is a snapshot which shares the table, the key bytes and the segments with this store, so that it is taken in constant time.
+ * Each store has a generation, and owns only what is created in its generation. Before a store writes what it does not own, it copies it: a segment on the first write to it, and the table and the key bytes on the first added key.
+ * There is no object for each entry.
+ * Keys are compared with the bytes character by character, so that finding an ASCII key creates no garbage.
+ * @author Shenqi Zhang
+ *
+ */
+public class HeapCounterStore implements CounterStore {
+    /**
+     * Default number of slots.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+    /**
+     * Default size of the key bytes.
+     */
+    private static final int DEFAULT_KEY_BYTES = 256;
+    /**
+     * Number of ints of each slot in the table.
+     */
+    private static final int SLOT_INTS = 3;
+    /**
+     * Index of the hash of the key in a slot.
+     */
+    private static final int HASH = 0;
+    /**
+     * Index of the offset of the key in a slot.
+     */
+    private static final int OFFSET = 1;
+    /**
+     * Index of the length of the key in a slot.
+     */
+    private static final int LENGTH = 2;
+    /**
+     * Offset of empty slots.
+     */
+    private static final int EMPTY = -1;
+    /**
+     * Number of bits of the index of a slot in its segment.
+     */
+    private static final int SEGMENT_SHIFT = 10;
+    /**
+     * Maximum number of slots of a segment.
+     */
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    /**
+     * Mask of the index of a slot in its segment.
+     */
+    private static final int SEGMENT_MASK = SEGMENT_SLOTS - 1;
+    /**
+     * Generations of stores.
+     */
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+    
+    /**
+     * Mixes the hash code of a key, so that similar keys like K1 and K2 are spread over the table.
+     * @param key key
+     * @return hash
+     */
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9e3779b1;
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Slots of the table, each of SLOT_INTS ints.
+     */
+    private int[] table;
+    /**
+     * Segments of values in slots.
+     * A writer which finds a segment of an earlier generation replaces it with a copy, in a copy of the array which is published by the volatile write, so that readers see the copy.
+     */
+    private volatile Segment[] segments;
+    /**
+     * Generation of this store, which changes when it is copied.
+     * A copy is taken while no thread writes, like under the write lock for data, so writers see the generation after the lock.
+     */
+    private long generation;
+    /**
+     * Generation in which the table and the key bytes are created.
+     */
+    private long tableGeneration;
+    /**
+     * Number of slots, a power of 2.
+     */
+    private int capacity;
+    /**
+     * Bytes of keys, packed in the order of insertion.
+     */
+    private byte[] keyBytes;
+    /**
+     * Number of used key bytes.
+     */
+    private int keyBytesUsed;
+    /**
+     * Number of entries.
+     */
+    private int size;
+    
+    /**
+     * Constructs a counter store.
+     */
+    public HeapCounterStore() {
+        this(0);
+    }
+    
+    /**
+     * Constructs a counter store.
+     * @param expectedSize expected number of entries
+     */
+    public HeapCounterStore(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        this.generation = GENERATIONS.incrementAndGet();
+        allocate(capacity);
+        this.keyBytes = new byte[DEFAULT_KEY_BYTES];
+        this.keyBytesUsed = 0;
+        this.size = 0;
+    }
+    
+    /**
+     * Constructs a snapshot of a counter store, which shares everything with the store.
+     * @param store counter store
+     */
+    private HeapCounterStore(HeapCounterStore store) {
+        this.capacity = store.capacity;
+        this.table = store.table;
+        this.segments = store.segments;
+        this.keyBytes = store.keyBytes;
+        this.keyBytesUsed = store.keyBytesUsed;
+        this.size = store.size;
+        this.generation = GENERATIONS.incrementAndGet();
+        this.tableGeneration = store.tableGeneration;
+    }
+    
+    /**
+     * Allocates empty slots.
+     * @param capacity number of slots, a power of 2
+     */
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.table = new int[capacity * SLOT_INTS];
+        for (int i = OFFSET; i < table.length; i += SLOT_INTS) {
+            table[i] = EMPTY;
+        }
+        int segmentSlots = Math.min(capacity, SEGMENT_SLOTS);
+        Segment[] newSegments = new Segment[capacity / segmentSlots];
+        for (int i = 0; i < newSegments.length; i++) {
+            newSegments[i] = new Segment(new int[segmentSlots], generation);
+        }
+        this.segments = newSegments;
+        this.tableGeneration = generation;
+    }
+    
+    /**
+     * Copies the table and the key bytes before they are changed, if they are shared with a snapshot.
+     */
+    private void ownTable() {
+        if (tableGeneration != generation) {
+            table = table.clone();
+            keyBytes = Arrays.copyOf(keyBytes, keyBytes.length);
+            tableGeneration = generation;
+        }
+    }
+    
+    /**
+     * Gets the segment of the slot to write, copying it if it is shared with a snapshot.
+     * @param slot slot of an entry
+     * @return segment of this generation
+     */
+    private Segment segmentToWrite(int slot) {
+        Segment segment = segments[slot >>> SEGMENT_SHIFT];
+        return segment.generation == generation ? segment : copySegment(slot >>> SEGMENT_SHIFT);
+    }
+    
+    /**
+     * Replaces a segment of an earlier generation with a copy.
+     * Concurrent writers copy it once, and nobody writes the segment of the earlier generation any more.
+     * The array is never written in place; a copy of it with the new segment is assigned, so that a reader which loads the array sees the new segment and the values written to it.
+     * @param index index of the segment
+     * @return segment of this generation
+     */
+    private synchronized Segment copySegment(int index) {
+        Segment segment = segments[index];
+        if (segment.generation != generation) {
+            int[] values = new int[segment.length()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = segment.get(i);
+            }
+            segment = new Segment(values, generation);
+            Segment[] newSegments = segments.clone();
+            newSegments[index] = segment;
+            segments = newSegments;
+        }
+        return segment;
+    }
+    
+    /**
+     * Gets the number of entries.
+     * @return number of entries
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns true if there is no entry.
+     * @return true if there is no entry
+     */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Removes all entries.
+     * The table and the key bytes are kept, so that data of the same size is deserialized again without allocation.
+     */
+    @Override
+    public void clear() {
+        ownTable();
+        for (int i = OFFSET; i < table.length; i += SLOT_INTS) {
+            table[i] = EMPTY;
+        }
+        keyBytesUsed = 0;
+        size = 0;
+    }
+    
+    /**
+     * Maps the key to the value, adding an entry if the key is absent.
+     * @param key key
+     * @param value value
+     */
+    @Override
+    public void put(String key, int value) {
+        int hash = hash(key);
+        int slot = probe(key, hash);
+        if (table[slot * SLOT_INTS + OFFSET] != EMPTY) {
+            segmentToWrite(slot).set(slot & SEGMENT_MASK, value);
+            return;
+        }
+        
+        ownTable();
+        if (size + 1 > capacity * 3 / 4) {
+            resize(capacity << 1);
+            slot = probe(key, hash);
+        }
+        int index = slot * SLOT_INTS;
+        table[index + HASH] = hash;
+        table[index + OFFSET] = keyBytesUsed;
+        table[index + LENGTH] = appendKeyBytes(key);
+        segmentToWrite(slot).set(slot & SEGMENT_MASK, value);
+        size++;
+    }
+    
+    /**
+     * Appends the UTF-8 bytes of the key to the key bytes.
+     * ASCII keys are copied character by character without encoding.
+     * @param key key
+     * @return length of the key in bytes
+     */
+    private int appendKeyBytes(String key) {
+        int n = key.length();
+        ensureKeyBytes(n);
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                ensureKeyBytes(bytes.length);
+                System.arraycopy(bytes, 0, keyBytes, keyBytesUsed, bytes.length);
+                keyBytesUsed += bytes.length;
+                return bytes.length;
+            }
+            keyBytes[keyBytesUsed + i] = (byte) c;
+        }
+        keyBytesUsed += n;
+        return n;
+    }
+    
+    /**
+     * Grows the key bytes if they cannot hold more bytes.
+     * @param length number of bytes to append
+     */
+    private void ensureKeyBytes(int length) {
+        if (keyBytesUsed + length > keyBytes.length) {
+            keyBytes = Arrays.copyOf(keyBytes, Math.max(keyBytes.length << 1, keyBytesUsed + length));
+        }
+    }
+    
+    /**
+     * Moves entries to a larger table.
+     * Keys stay in the key bytes, and their hashes are reused.
+     * @param newCapacity number of slots, a power of 2
+     */
+    private void resize(int newCapacity) {
+        int[] oldTable = table;
+        Segment[] oldSegments = segments;
+        allocate(newCapacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldTable.length; i += SLOT_INTS) {
+            if (oldTable[i + OFFSET] == EMPTY) {
+                continue;
+            }
+            int slot = oldTable[i + HASH] & mask;
+            while (table[slot * SLOT_INTS + OFFSET] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(oldTable, i, table, slot * SLOT_INTS, SLOT_INTS);
+            int oldSlot = i / SLOT_INTS;
+            segments[slot >>> SEGMENT_SHIFT].set(slot & SEGMENT_MASK, oldSegments[oldSlot >>> SEGMENT_SHIFT].get(oldSlot & SEGMENT_MASK));
+        }
+    }
+    
+    /**
+     * Probes the table for the key.
+     * @param key key
+     * @param hash hash of the key
+     * @return slot of the key, or the empty slot where the key would be added
+     */
+    private int probe(String key, int hash) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            int index = slot * SLOT_INTS;
+            int offset = table[index + OFFSET];
+            if (offset == EMPTY || (table[index + HASH] == hash && matches(key, offset, table[index + LENGTH]))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    /**
+     * Finds the slot of the key.
+     * @param key key
+     * @return slot of the key, or -1 if the key is absent
+     */
+    @Override
+    public int find(String key) {
+        int slot = probe(key, hash(key));
+        return table[slot * SLOT_INTS + OFFSET] == EMPTY ? -1 : slot;
+    }
+    
+    /**
+     * Returns true if the key equals the key bytes.
+     * @param key key
+     * @param offset offset of the key bytes
+     * @param length length of the key bytes
+     * @return true if the key equals the key bytes
+     */
+    private boolean matches(String key, int offset, int length) {
+        int n = key.length();
+        if (n > length) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                // A key with non-ASCII characters is encoded for comparison.
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length != length) {
+                    return false;
+                }
+                for (int j = 0; j < length; j++) {
+                    if (keyBytes[offset + j] != bytes[j]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (keyBytes[offset + i] != c) {
+                return false;
+            }
+        }
+        return n == length;
+    }
+    
+    /**
+     * Gets the value in the slot.
+     * @param slot slot of an entry
+     * @return value
+     */
+    @Override
+    public int get(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT].get(slot & SEGMENT_MASK);
+    }
+    
+    /**
+     * Adds the delta to the value in the slot.
+     * @param slot slot of an entry
+     * @param delta delta
+     * @return value after the addition
+     */
+    @Override
+    public int add(int slot, int delta) {
+        return segmentToWrite(slot).addAndGet(slot & SEGMENT_MASK, delta);
+    }
+    
+    /**
+     * Copies this store in constant time.
+     * The copy shares everything with this store, and this store begins a new generation, so that either copies what it writes later.
+     * The caller must hold the write lock for data, or be the only thread to access data.
+     * @return a copy of this store
+     */
+    @Override
+    public CounterStore copy() {
+        CounterStore snapshot = new HeapCounterStore(this);
+        generation = GENERATIONS.incrementAndGet();
+        return snapshot;
+    }
+    
+    /**
+     * Gets the next slot of an entry.
+     * Entries are iterated in the order of slots.
+     * @param slot current slot, or -1 to get the first slot
+     * @return the next slot of an entry, or -1 if there are no more entries
+     */
+    @Override
+    public int next(int slot) {
+        for (int i = slot + 1; i < capacity; i++) {
+            if (table[i * SLOT_INTS + OFFSET] != EMPTY) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Gets the key in the slot.
+     * @param slot slot of an entry
+     * @return key
+     */
+    @Override
+    public String getKey(int slot) {
+        int index = slot * SLOT_INTS;
+        return new String(keyBytes, table[index + OFFSET], table[index + LENGTH], StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Appends the key in the slot to the string builder, copying its bytes without UTF-8 decoding if it is ASCII.
+     * @param sb string builder
+     * @param slot slot of an entry
+     */
+    @Override
+    public void appendKey(StringBuilder sb, int slot) {
+        int index = slot * SLOT_INTS;
+        int offset = table[index + OFFSET];
+        int end = offset + table[index + LENGTH];
+        for (int i = offset; i < end; i++) {
+            if (keyBytes[i] < 0) {
+                sb.append(getKey(slot));
+                return;
+            }
+        }
+        sb.append(new String(keyBytes, offset, end - offset, StandardCharsets.ISO_8859_1));
+    }
+    
+    /**
+     * Gets the length of the key in the slot in UTF-8 bytes.
+     * @param slot slot of an entry
+     * @return length of the key in bytes
+     */
+    @Override
+    public int getKeyLength(int slot) {
+        return table[slot * SLOT_INTS + LENGTH];
+    }
+    
+    /**
+     * Copies the UTF-8 bytes of the key in the slot from the key bytes.
+     * @param slot slot of an entry
+     * @param bytes byte array with at least the length of the key after the offset
+     * @param offset offset in the byte array
+     */
+    @Override
+    public void getKeyBytes(int slot, byte[] bytes, int offset) {
+        int index = slot * SLOT_INTS;
+        System.arraycopy(keyBytes, table[index + OFFSET], bytes, offset, table[index + LENGTH]);
+    }
+    
+    /**
+     * A segment of values, which is written only in the generation when it is created.
+     *
+     */
+    private static class Segment extends AtomicIntegerArray {
+        private static final long serialVersionUID = 1L;
+        /**
+         * Generation in which this segment is created.
+         */
+        final long generation;
+        
+        /**
+         * Constructs a segment.
+         * @param values initial values
+         * @param generation generation of the store which creates this segment
+         */
+        Segment(int[] values, long generation) {
+            super(values);
+            this.generation = generation;
+        }
+    }
+}
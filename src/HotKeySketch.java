@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sketch which tracks the top-K keys by weight in a stream.
+ * Weights are estimated by a Count-Min sketch. Keys whose estimates rank in the top K are kept as candidates.
+ * Candidates are updated without the lock of the sketch; it is taken only when another key exceeds the smallest estimate among candidates.
+ * Estimates never undercount, and overcount by at most 2/width of the total weight with high probability.
+ * @author Shenqi Zhang
+ *
+ */
+public class HotKeySketch {
+    /**
+     * Number of rows of the Count-Min sketch.
+     */
+    private static final int DEPTH = 4;
+    /**
+     * Number of counters in each row of the Count-Min sketch.
+     */
+    private static final int WIDTH = 1024;
+    /**
+     * Seeds of hash functions.
+     */
+    private static final int[] SEEDS = {0x9e3779b1, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+    
+    /**
+     * Counters of the Count-Min sketch.
+     */
+    private final AtomicLongArray counters;
+    /**
+     * Number of top keys to track.
+     */
+    private final int k;
+    /**
+     * Top keys and their estimates.
+     * Keys are top keys. Values are their estimates.
+     */
+    private final Map<String, AtomicLong> candidates;
+    /**
+     * Smallest estimate among top keys when they were last replaced; 0 if there are fewer than K top keys.
+     * Estimates of top keys only grow, so it may be lower than the current smallest estimate, but never higher.
+     */
+    private volatile long threshold;
+    
+    /**
+     * Constructs a hot key sketch.
+     * @param k number of top keys to track
+     */
+    public HotKeySketch(int k) {
+        this.counters = new AtomicLongArray(DEPTH * WIDTH);
+        this.k = k;
+        this.candidates = new ConcurrentHashMap<String, AtomicLong>(k * 2);
+        this.threshold = 0;
+    }
+    
+    /**
+     * Adds weight to the key.
+     * @param key key
+     * @param weight weight
+     */
+    public void add(String key, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        
+        int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.addAndGet(i * WIDTH + index(hash, i), weight));
+        }
+        
+        AtomicLong candidate = candidates.get(key);
+        if (candidate != null) {
+            raise(candidate, estimate);
+        } else if (estimate > threshold) {
+            updateHotKeys(key, estimate);
+        }
+    }
+    
+    /**
+     * Raises the estimate of a top key to the new estimate, if it is higher.
+     * @param candidate estimate of the top key
+     * @param estimate new estimate
+     */
+    private static void raise(AtomicLong candidate, long estimate) {
+        long current = candidate.get();
+        while (current < estimate && !candidate.compareAndSet(current, estimate)) {
+            current = candidate.get();
+        }
+    }
+    
+    /**
+     * Adds the key to the top keys if there are fewer than K, or if its estimate exceeds the smallest one, which it replaces.
+     * @param key key which is not a top key
+     * @param estimate estimate of the key
+     */
+    private synchronized void updateHotKeys(String key, long estimate) {
+        AtomicLong candidate = candidates.get(key);
+        if (candidate != null) {
+            // Another thread added the key.
+            raise(candidate, estimate);
+            return;
+        }
+        
+        if (candidates.size() < k) {
+            candidates.put(key, new AtomicLong(estimate));
+            if (candidates.size() == k) {
+                threshold = findMin(null);
+            }
+            return;
+        }
+        
+        String minKey = null;
+        long min = Long.MAX_VALUE;
+        for (Map.Entry<String, AtomicLong> entry : candidates.entrySet()) {
+            long value = entry.getValue().get();
+            if (value < min) {
+                minKey = entry.getKey();
+                min = value;
+            }
+        }
+        if (min >= estimate) {
+            // The threshold is stale, because top keys have grown since.
+            threshold = min;
+            return;
+        }
+        candidates.remove(minKey);
+        candidates.put(key, new AtomicLong(estimate));
+        threshold = Math.min(findMin(key), estimate);
+    }
+    
+    /**
+     * Finds the smallest estimate among top keys.
+     * The caller must hold the lock of the sketch.
+     * @param excluded top key excluded; if null, none
+     * @return smallest estimate, or Long.MAX_VALUE if there are no other top keys
+     */
+    private long findMin(String excluded) {
+        long min = Long.MAX_VALUE;
+        for (Map.Entry<String, AtomicLong> entry : candidates.entrySet()) {
+            if (!entry.getKey().equals(excluded)) {
+                min = Math.min(min, entry.getValue().get());
+            }
+        }
+        return min;
+    }
+    
+    /**
+     * Gets the top keys in descending order of estimates, and resets the sketch.
+     * Weights added concurrently may be partially lost.
+     * @return top keys
+     */
+    public synchronized List<HotKey> getAndReset() {
+        List<HotKey> result = new ArrayList<HotKey>(candidates.size());
+        for (Map.Entry<String, AtomicLong> entry : candidates.entrySet()) {
+            result.add(new HotKey(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(result, Collections.reverseOrder(HotKey.BY_ESTIMATE));
+        candidates.clear();
+        threshold = 0;
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the index of the hash in the specified row.
+     * @param hash hash code of the key
+     * @param row row
+     * @return index in the row
+     */
+    private static int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return h & (WIDTH - 1);
+    }
+    
+    /**
+     * A top key and its estimated weight.
+     *
+     */
+    public static class HotKey {
+        /**
+         * Comparator by estimates.
+         */
+        private static final Comparator<HotKey> BY_ESTIMATE = new Comparator<HotKey>() {
+            @Override
+            public int compare(HotKey a, HotKey b) {
+                return Long.compare(a.estimate, b.estimate);
+            }
+        };
+        /**
+         * Key.
+         */
+        private final String key;
+        /**
+         * Estimated weight.
+         */
+        private final long estimate;
+        
+        /**
+         * Constructs a top key.
+         * @param key key
+         * @param estimate estimated weight
+         */
+        HotKey(String key, long estimate) {
+            this.key = key;
+            this.estimate = estimate;
+        }
+        
+        /**
+         * Gets the key.
+         * @return key
+         */
+        public String getKey() {
+            return key;
+        }
+        
+        /**
+         * Gets the estimated weight.
+         * @return estimated weight
+         */
+        public long getEstimate() {
+            return estimate;
+        }
+    }
+}
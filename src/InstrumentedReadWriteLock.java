@@ -0,0 +1,344 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A readers-writer lock which records wait time and hold time of each operation.
+ * Only lock() and unlock() are instrumented.
+ * Wait time and hold time are reported in microseconds.
+ * @author Shenqi Zhang
+ *
+ */
+public class InstrumentedReadWriteLock extends ReentrantReadWriteLock {
+    private static final long serialVersionUID = 1L;
+    /**
+     * Operation of each thread.
+     * Threads launched by a thread inherit its operation.
+     */
+    private static final InheritableThreadLocal<String> OPERATION = new InheritableThreadLocal<String>();
+    
+    /**
+     * Sets the operation of this thread.
+     * Wait time and hold time are recorded separately for each operation.
+     * @param operation operation, like a request header or a background task
+     */
+    public static void setOperation(String operation) {
+        OPERATION.set(operation);
+    }
+    
+    /**
+     * Gets the operation of this thread.
+     * @return operation of this thread
+     */
+    private static String getOperation() {
+        String operation = OPERATION.get();
+        return operation == null ? "Other" : operation;
+    }
+    
+    /**
+     * Name of this lock.
+     */
+    private final String name;
+    /**
+     * Instrumented read lock.
+     */
+    private final InstrumentedReadLock instrumentedReadLock;
+    /**
+     * Instrumented write lock.
+     */
+    private final InstrumentedWriteLock instrumentedWriteLock;
+    /**
+     * Counters of the read lock.
+     * Keys are operations. Values are counters.
+     */
+    private final Map<String, Counters> readCounters;
+    /**
+     * Counters of the write lock.
+     * Keys are operations. Values are counters.
+     */
+    private final Map<String, Counters> writeCounters;
+    /**
+     * Wait time of the latest acquisition of each thread in nanoseconds.
+     */
+    private final ThreadLocal<long[]> lastWait;
+    
+    /**
+     * Constructs an instrumented readers-writer lock.
+     * @param name name of this lock
+     * @param statistics statistics which this lock reports to
+     */
+    public InstrumentedReadWriteLock(String name, Statistics statistics) {
+        super();
+        this.name = name;
+        this.instrumentedReadLock = new InstrumentedReadLock(this);
+        this.instrumentedWriteLock = new InstrumentedWriteLock(this);
+        this.readCounters = new ConcurrentHashMap<String, Counters>();
+        this.writeCounters = new ConcurrentHashMap<String, Counters>();
+        this.lastWait = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+        statistics.register(new LockReporter());
+    }
+    
+    /**
+     * Returns the instrumented read lock.
+     * @return the instrumented read lock
+     */
+    @Override
+    public ReentrantReadWriteLock.ReadLock readLock() {
+        return instrumentedReadLock;
+    }
+    
+    /**
+     * Returns the instrumented write lock.
+     * @return the instrumented write lock
+     */
+    @Override
+    public ReentrantReadWriteLock.WriteLock writeLock() {
+        return instrumentedWriteLock;
+    }
+    
+    /**
+     * Gets the wait time of the latest acquisition by this thread.
+     * @return wait time in nanoseconds
+     */
+    public long getLastWaitNanos() {
+        return lastWait.get()[0];
+    }
+    
+    /**
+     * Gets the counters of the operation, creating them if absent.
+     * @param counters a map with operations as keys and counters as values
+     * @param operation operation
+     * @return counters of the operation
+     */
+    private static Counters getCounters(Map<String, Counters> counters, String operation) {
+        Counters operationCounters = counters.get(operation);
+        if (operationCounters == null) {
+            counters.putIfAbsent(operation, new Counters());
+            operationCounters = counters.get(operation);
+        }
+        return operationCounters;
+    }
+    
+    /**
+     * Instrumented read lock.
+     *
+     */
+    private class InstrumentedReadLock extends ReentrantReadWriteLock.ReadLock {
+        private static final long serialVersionUID = 1L;
+        /**
+         * Acquisition time and operation of the outermost hold of each thread.
+         */
+        private final ThreadLocal<Hold> holds;
+        
+        /**
+         * Constructs an instrumented read lock.
+         * @param lock the outer lock
+         */
+        InstrumentedReadLock(ReentrantReadWriteLock lock) {
+            super(lock);
+            this.holds = new ThreadLocal<Hold>() {
+                @Override
+                protected Hold initialValue() {
+                    return new Hold();
+                }
+            };
+        }
+        
+        /**
+         * Acquires the read lock and records the wait time.
+         */
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            super.lock();
+            long acquired = System.nanoTime();
+            lastWait.get()[0] = acquired - start;
+            if (getReadHoldCount() == 1) {
+                String operation = getOperation();
+                getCounters(readCounters, operation).recordWait(acquired - start);
+                Hold hold = holds.get();
+                hold.acquiredNanos = acquired;
+                hold.operation = operation;
+            }
+        }
+        
+        /**
+         * Releases the read lock and records the hold time.
+         */
+        @Override
+        public void unlock() {
+            boolean outermost = getReadHoldCount() == 1;
+            super.unlock();
+            if (outermost) {
+                Hold hold = holds.get();
+                getCounters(readCounters, hold.operation).recordHold(System.nanoTime() - hold.acquiredNanos);
+                hold.operation = null;
+            }
+        }
+    }
+    
+    /**
+     * Instrumented write lock.
+     *
+     */
+    private class InstrumentedWriteLock extends ReentrantReadWriteLock.WriteLock {
+        private static final long serialVersionUID = 1L;
+        /**
+         * Acquisition time of the outermost hold.
+         */
+        private long acquiredNanos;
+        /**
+         * Operation of the holder; null if the write lock is not held.
+         */
+        private volatile String holderOperation;
+        
+        /**
+         * Constructs an instrumented write lock.
+         * @param lock the outer lock
+         */
+        InstrumentedWriteLock(ReentrantReadWriteLock lock) {
+            super(lock);
+        }
+        
+        /**
+         * Acquires the write lock and records the wait time.
+         */
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            super.lock();
+            long acquired = System.nanoTime();
+            lastWait.get()[0] = acquired - start;
+            if (getHoldCount() == 1) {
+                String operation = getOperation();
+                getCounters(writeCounters, operation).recordWait(acquired - start);
+                acquiredNanos = acquired;
+                holderOperation = operation;
+            }
+        }
+        
+        /**
+         * Releases the write lock and records the hold time.
+         */
+        @Override
+        public void unlock() {
+            boolean outermost = getHoldCount() == 1;
+            long acquired = acquiredNanos;
+            String operation = holderOperation;
+            if (outermost) {
+                holderOperation = null;
+            }
+            super.unlock();
+            if (outermost) {
+                getCounters(writeCounters, operation).recordHold(System.nanoTime() - acquired);
+            }
+        }
+    }
+    
+    /**
+     * Outermost hold of a read lock by a thread.
+     *
+     */
+    private static class Hold {
+        /**
+         * Acquisition time in nanoseconds.
+         */
+        private long acquiredNanos;
+        /**
+         * Operation of the holder.
+         */
+        private String operation;
+    }
+    
+    /**
+     * Counters of an operation.
+     *
+     */
+    private static class Counters {
+        /**
+         * Number of acquisitions.
+         */
+        private final AtomicLong count = new AtomicLong();
+        /**
+         * Total wait time in nanoseconds.
+         */
+        private final AtomicLong waitTotal = new AtomicLong();
+        /**
+         * Maximum wait time in nanoseconds.
+         */
+        private final AtomicLong waitMax = new AtomicLong();
+        /**
+         * Total hold time in nanoseconds.
+         */
+        private final AtomicLong holdTotal = new AtomicLong();
+        /**
+         * Maximum hold time in nanoseconds.
+         */
+        private final AtomicLong holdMax = new AtomicLong();
+        
+        /**
+         * Records the wait time of an acquisition.
+         * @param nanos wait time in nanoseconds
+         */
+        void recordWait(long nanos) {
+            count.incrementAndGet();
+            waitTotal.addAndGet(nanos);
+            Statistics.updateMax(waitMax, nanos);
+        }
+        
+        /**
+         * Records the hold time of an acquisition.
+         * @param nanos hold time in nanoseconds
+         */
+        void recordHold(long nanos) {
+            holdTotal.addAndGet(nanos);
+            Statistics.updateMax(holdMax, nanos);
+        }
+        
+        /**
+         * Reports the counters.
+         * @param statistics a map with names as keys and values as values
+         * @param prefix prefix of names
+         */
+        void report(Map<String, String> statistics, String prefix) {
+            statistics.put(prefix + ".count", String.valueOf(count.get()));
+            statistics.put(prefix + ".wait", String.valueOf(waitTotal.get() / 1000));
+            statistics.put(prefix + ".wait_max", String.valueOf(waitMax.get() / 1000));
+            statistics.put(prefix + ".hold", String.valueOf(holdTotal.get() / 1000));
+            statistics.put(prefix + ".hold_max", String.valueOf(holdMax.get() / 1000));
+        }
+    }
+    
+    /**
+     * Lock reporter.
+     *
+     */
+    private class LockReporter implements Statistics.Reporter {
+        /**
+         * Reports counters of each operation, queue length and the operation of the writer.
+         * lock.<name>.<read|write>.<operation>.<count|wait|wait_max|hold|hold_max>
+         * lock.<name>.queue
+         * lock.<name>.holder
+         * @param statistics a map with names as keys and values as values
+         */
+        @Override
+        public void report(Map<String, String> statistics) {
+            String prefix = "lock." + name;
+            for (Map.Entry<String, Counters> entry : readCounters.entrySet()) {
+                entry.getValue().report(statistics, prefix + ".read." + entry.getKey());
+            }
+            for (Map.Entry<String, Counters> entry : writeCounters.entrySet()) {
+                entry.getValue().report(statistics, prefix + ".write." + entry.getKey());
+            }
+            statistics.put(prefix + ".queue", String.valueOf(getQueueLength()));
+            String holderOperation = instrumentedWriteLock.holderOperation;
+            statistics.put(prefix + ".holder", holderOperation == null ? (getReadLockCount() > 0 ? "Readers" : "None") : holderOperation);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with logarithmic buckets.
+ * Each power of two is divided into 64 linear sub-buckets, so recorded values are kept with a relative error below 1.6%.
+ * Recording is lock-free.
+ * The percentile distribution can be written in the text format of HdrHistogram, so that it can be plotted with HdrHistogram tools.
+ * @author Shenqi Zhang
+ *
+ */
+public class LatencyHistogram {
+    /**
+     * Number of bits of sub-buckets.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+    /**
+     * Number of values which are recorded exactly.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * Number of sub-buckets in each power of two above the exact values.
+     */
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    /**
+     * Number of buckets.
+     */
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+    
+    /**
+     * Gets the index of the bucket which holds the value.
+     * @param value non-negative value
+     * @return index of the bucket
+     */
+    private static int index(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        if (highestBit < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = highestBit - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+    
+    /**
+     * Gets the highest value which is held by the bucket.
+     * @param index index of the bucket
+     * @return the highest value of the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+    
+    /**
+     * Counts of buckets.
+     */
+    private final AtomicLongArray counts;
+    /**
+     * Total count.
+     */
+    private final AtomicLong totalCount;
+    /**
+     * Maximum value.
+     */
+    private final AtomicLong max;
+    /**
+     * Sum of values.
+     */
+    private final AtomicLong sum;
+    
+    /**
+     * Constructs an empty histogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT);
+        this.totalCount = new AtomicLong();
+        this.max = new AtomicLong();
+        this.sum = new AtomicLong();
+    }
+    
+    /**
+     * Records a value.
+     * @param value value; negative values are recorded as 0
+     */
+    public void record(long value) {
+        recordCount(value, 1);
+    }
+    
+    /**
+     * Records a value multiple times.
+     * @param value value; negative values are recorded as 0
+     * @param count number of times
+     */
+    public void recordCount(long value, long count) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.addAndGet(index(value), count);
+        totalCount.addAndGet(count);
+        sum.addAndGet(value * count);
+        Statistics.updateMax(max, value);
+    }
+    
+    /**
+     * Adds all values recorded in another histogram.
+     * @param other another histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        sum.addAndGet(other.sum.get());
+        Statistics.updateMax(max, other.max.get());
+    }
+    
+    /**
+     * Gets the total count.
+     * @return total count
+     */
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+    
+    /**
+     * Gets the maximum value.
+     * @return maximum value
+     */
+    public long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * Gets the mean value.
+     * @return mean value, or 0 if no value is recorded
+     */
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+    
+    /**
+     * Gets the value at the percentile.
+     * @param percentile percentile from 0 to 100
+     * @return the highest value equivalent to the value at the percentile, or 0 if no value is recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        
+        long target = Math.max((long) Math.ceil(Math.min(percentile, 100) / 100 * count), 1);
+        long cumulativeCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulativeCount += counts.get(i);
+            if (cumulativeCount >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    /**
+     * Writes the percentile distribution in the text format of HdrHistogram.
+     * Percentiles are reported with 5 ticks per half distance to 100%.
+     * Values must not be recorded while writing.
+     * @param out output
+     * @param scalingRatio values are divided by the ratio, like 1000 for milliseconds from microseconds
+     */
+    public void outputPercentileDistribution(PrintStream out, double scalingRatio) {
+        out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        out.println();
+        long count = totalCount.get();
+        long cumulativeCount = 0;
+        int index = -1;
+        double percentile = 0;
+        while (count > 0) {
+            long target = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+            while (cumulativeCount < target && index < BUCKET_COUNT - 1) {
+                cumulativeCount += counts.get(++index);
+            }
+            double value = Math.min(highestValue(index), max.get()) / scalingRatio;
+            if (cumulativeCount >= count || index == BUCKET_COUNT - 1) {
+                out.println(String.format("%12.3f %1.12f %10d", value, 1.0, cumulativeCount));
+                break;
+            }
+            out.println(String.format("%12.3f %2.12f %10d %14.2f", value, percentile / 100, cumulativeCount, 100 / (100 - percentile)));
+            int halvings = (int) (Math.log(100 / (100 - percentile)) / Math.log(2));
+            percentile += 100.0 / (5L << (halvings + 1));
+        }
+        
+        double mean = getMean();
+        double squares = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long bucketCount = counts.get(i);
+            if (bucketCount > 0) {
+                double deviation = Math.min(highestValue(i), max.get()) - mean;
+                squares += deviation * deviation * bucketCount;
+            }
+        }
+        double standardDeviation = count == 0 ? 0 : Math.sqrt(squares / count);
+        out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]", mean / scalingRatio, standardDeviation / scalingRatio));
+        out.println(String.format("#[Max     = %12.3f, Total count    = %12d]", max.get() / scalingRatio, count));
+        out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]", 64 - SUB_BUCKET_BITS + 1, SUB_BUCKET_COUNT));
+    }
+}
@@ -0,0 +1,649 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An open-loop load generator which sends user requests at a target rate, whether or not previous requests have been responded.
+ * Each user request is scheduled at an intended time, and its latency is measured from the intended time, so that waiting behind slow requests is not omitted.
+ * Scheduled user requests are sent by a pool of threads, which bounds the user requests in flight. User requests are spread over the users in turn.
+ * A user sends its user requests one at a time, in the order of their timestamps, because passive replication relies on it to prune user requests after a checkpoint.
+ * So user requests in flight beyond the number of users wait for their users, the waiting is included in latency, and more users give more concurrency.
+ * Instead of a synthetic workload, a workload captured by a replica can be replayed at its original speed, a multiple of it, or as fast as possible.
+ * @author Shenqi Zhang
+ *
+ */
+public class LoadGenerator {
+    /**
+     * Default target rate in user requests per second.
+     */
+    private static final int DEFAULT_RATE = 100;
+    /**
+     * Default maximum number of user requests in flight.
+     */
+    private static final int DEFAULT_CONCURRENCY = 16;
+    /**
+     * Default mix of get, increment and decrement requests.
+     */
+    private static final String DEFAULT_MIX = "50:25:25";
+    /**
+     * Default key distribution.
+     */
+    private static final String DEFAULT_DISTRIBUTION = "uniform";
+    /**
+     * Default arrival process.
+     */
+    private static final String DEFAULT_ARRIVAL = "constant";
+    /**
+     * Default duration of warmup in milliseconds.
+     */
+    private static final int DEFAULT_WARMUP = 2000;
+    /**
+     * Default duration of measurement in milliseconds.
+     */
+    private static final int DEFAULT_DURATION = 10000;
+    /**
+     * Default exponent of the Zipfian distribution.
+     */
+    private static final double DEFAULT_ZIPF_EXPONENT = 0.99;
+    /**
+     * Default fraction of hot keys in the hotspot distribution.
+     */
+    private static final double DEFAULT_HOT_KEYS = 0.2;
+    /**
+     * Default fraction of user requests on hot keys in the hotspot distribution.
+     */
+    private static final double DEFAULT_HOT_REQUESTS = 0.8;
+    /**
+     * Time to wait for user requests in flight after the last one is scheduled in milliseconds.
+     */
+    private static final int DRAIN_TIMEOUT = 10000;
+    /**
+     * Directory of log files of users launched by the load generator.
+     */
+    private static final String LOG_DIRECTORY = "load_generator";
+    /**
+     * Headers of user requests in the order of the mix.
+     */
+    private static final String[] HEADERS = {"Get|", "Increment|", "Decrement|"};
+    /**
+     * Intended time of user requests which are sent as fast as possible; their latency is measured from sending.
+     */
+    private static final long UNSCHEDULED = Long.MIN_VALUE;
+    
+    /**
+     * Parses a mix of get, increment and decrement requests.
+     * <get>:<increment>:<decrement>
+     * @param mix mix
+     * @return cumulative weights of get, increment and decrement requests
+     */
+    private static int[] parseMix(String mix) {
+        String[] strs = mix.split(":");
+        if (strs.length != HEADERS.length) {
+            System.out.println("Error: Invalid mix " + mix + "!");
+            System.exit(0);
+        }
+        int[] cumulativeWeights = new int[HEADERS.length];
+        int total = 0;
+        for (int i = 0; i < HEADERS.length; i++) {
+            total += Integer.valueOf(strs[i].trim());
+            cumulativeWeights[i] = total;
+        }
+        if (total <= 0) {
+            System.out.println("Error: Invalid mix " + mix + "!");
+            System.exit(0);
+        }
+        return cumulativeWeights;
+    }
+    
+    /**
+     * Computes the cumulative distribution of keys.
+     * uniform
+     * zipf[:<exponent>]
+     * hotspot[:<fraction of hot keys>:<fraction of user requests on hot keys>]
+     * In the Zipfian and hotspot distributions, the first keys are the hottest.
+     * @param distribution key distribution
+     * @param keyCount number of keys
+     * @return cumulative probabilities of keys
+     */
+    private static double[] parseDistribution(String distribution, int keyCount) {
+        String[] strs = distribution.split(":");
+        double[] weights = new double[keyCount];
+        if (strs[0].equals("uniform") && strs.length == 1) {
+            Arrays.fill(weights, 1);
+        } else if (strs[0].equals("zipf") && strs.length <= 2) {
+            double exponent = strs.length == 2 ? Double.valueOf(strs[1]) : DEFAULT_ZIPF_EXPONENT;
+            for (int i = 0; i < keyCount; i++) {
+                weights[i] = 1 / Math.pow(i + 1, exponent);
+            }
+        } else if (strs[0].equals("hotspot") && (strs.length == 1 || strs.length == 3)) {
+            double hotKeys = strs.length == 3 ? Double.valueOf(strs[1]) : DEFAULT_HOT_KEYS;
+            double hotRequests = strs.length == 3 ? Double.valueOf(strs[2]) : DEFAULT_HOT_REQUESTS;
+            int hotKeyCount = Math.min(Math.max((int) Math.ceil(hotKeys * keyCount), 1), keyCount);
+            for (int i = 0; i < keyCount; i++) {
+                weights[i] = i < hotKeyCount ? hotRequests / hotKeyCount : (1 - hotRequests) / (keyCount - hotKeyCount);
+            }
+        } else {
+            System.out.println("Error: Invalid distribution " + distribution + "!");
+            System.exit(0);
+        }
+        
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        double[] cumulativeProbabilities = new double[keyCount];
+        double cumulativeWeight = 0;
+        for (int i = 0; i < keyCount; i++) {
+            cumulativeWeight += weights[i];
+            cumulativeProbabilities[i] = cumulativeWeight / total;
+        }
+        cumulativeProbabilities[keyCount - 1] = 1;
+        return cumulativeProbabilities;
+    }
+    
+    /**
+     * Users which send user requests.
+     */
+    private final List<User> users;
+    /**
+     * Latest timestamps of user requests of users, each guarded by the lock of its user.
+     * Requests from the same user must have different timestamps.
+     */
+    private final long[] lastTimestamps;
+    /**
+     * Locks of users, under which a user request is timestamped and sent.
+     */
+    private final Object[] userLocks;
+    /**
+     * Target rate in user requests per second.
+     */
+    private int rate;
+    /**
+     * Maximum number of user requests in flight.
+     */
+    private int concurrency;
+    /**
+     * Cumulative weights of get, increment and decrement requests.
+     */
+    private int[] mix;
+    /**
+     * Keys.
+     */
+    private String[] keys;
+    /**
+     * Cumulative probabilities of keys.
+     */
+    private double[] keyProbabilities;
+    /**
+     * True if user requests arrive as a Poisson process; false if they arrive at a constant interval.
+     */
+    private boolean poisson;
+    /**
+     * Duration of warmup in milliseconds.
+     */
+    private int warmup;
+    /**
+     * Duration of measurement in milliseconds.
+     */
+    private int duration;
+    /**
+     * Latencies from intended times to responses in microseconds.
+     */
+    private final LatencyHistogram latencies;
+    /**
+     * Service times from actual sending to responses in microseconds.
+     */
+    private final LatencyHistogram serviceTimes;
+    /**
+     * Number of failed user requests during measurement.
+     */
+    private final AtomicLong errors;
+    /**
+     * Maximum number of scheduled user requests waiting for a thread.
+     */
+    private final AtomicLong maxBacklog;
+    /**
+     * Start time of measurement in nanoseconds.
+     */
+    private volatile long measurementStart;
+    /**
+     * Captured user requests to replay; null if the workload is synthetic.
+     */
+    private List<WorkloadCapture.Record> trace;
+    /**
+     * Speed of replay as a multiple of the original speed; 0 if user requests are replayed as fast as possible.
+     */
+    private double speed;
+    
+    /**
+     * Constructs a load generator.
+     * @param users users which send user requests
+     * @param rate target rate in user requests per second
+     * @param concurrency maximum number of user requests in flight
+     * @param mix mix of get, increment and decrement requests, like 50:25:25
+     * @param keys keys
+     * @param distribution key distribution: uniform, zipf[:<exponent>] or hotspot[:<fraction of hot keys>:<fraction of user requests on hot keys>]
+     * @param arrival arrival process: constant or poisson
+     * @param warmup duration of warmup in milliseconds
+     * @param duration duration of measurement in milliseconds
+     */
+    public LoadGenerator(List<User> users, int rate, int concurrency, String mix, String[] keys, String distribution, String arrival, int warmup, int duration) {
+        if (!arrival.equals("constant") && !arrival.equals("poisson")) {
+            System.out.println("Error: Invalid arrival " + arrival + "!");
+            System.exit(0);
+        }
+        this.users = users;
+        this.lastTimestamps = new long[users.size()];
+        this.userLocks = new Object[users.size()];
+        for (int i = 0; i < userLocks.length; i++) {
+            this.userLocks[i] = new Object();
+        }
+        this.rate = rate;
+        this.concurrency = concurrency;
+        this.mix = parseMix(mix);
+        this.keys = keys;
+        this.keyProbabilities = parseDistribution(distribution, keys.length);
+        this.poisson = arrival.equals("poisson");
+        this.warmup = warmup;
+        this.duration = duration;
+        this.latencies = new LatencyHistogram();
+        this.serviceTimes = new LatencyHistogram();
+        this.errors = new AtomicLong();
+        this.maxBacklog = new AtomicLong();
+    }
+    
+    /**
+     * Constructs a load generator which replays captured user requests.
+     * Users in the capture are mapped to the users in turn, in the order of their first user requests.
+     * @param users users which send user requests
+     * @param trace captured user requests
+     * @param speed speed of replay as a multiple of the original speed; 0 if user requests are replayed as fast as possible
+     * @param concurrency maximum number of user requests in flight
+     * @param warmup duration of warmup in milliseconds
+     */
+    public LoadGenerator(List<User> users, List<WorkloadCapture.Record> trace, double speed, int concurrency, int warmup) {
+        this.users = users;
+        this.lastTimestamps = new long[users.size()];
+        this.userLocks = new Object[users.size()];
+        for (int i = 0; i < userLocks.length; i++) {
+            this.userLocks[i] = new Object();
+        }
+        this.trace = trace;
+        this.speed = speed;
+        this.concurrency = concurrency;
+        this.warmup = warmup;
+        this.latencies = new LatencyHistogram();
+        this.serviceTimes = new LatencyHistogram();
+        this.errors = new AtomicLong();
+        this.maxBacklog = new AtomicLong();
+    }
+    
+    /**
+     * Constructs a load generator with a user and the parameters in the configuration file.
+     * The user sends one user request at a time, so user requests beyond it wait, and the waiting is included in latency.
+     * Absent parameters take default values, and keys are those of the data in the configuration file of replicas.
+     * load_rate, load_concurrency, load_mix, load_distribution, load_arrival, load_warmup, load_duration
+     * @param user user which sends user requests
+     * @param parameters parameters in the configuration file of users
+     */
+    public LoadGenerator(User user, Map<String, String> parameters) {
+        this(Arrays.asList(user), getParameter(parameters, "load_rate", DEFAULT_RATE), getParameter(parameters, "load_concurrency", DEFAULT_CONCURRENCY),
+                getParameter(parameters, "load_mix", DEFAULT_MIX), getDataKeys(), getParameter(parameters, "load_distribution", DEFAULT_DISTRIBUTION),
+                getParameter(parameters, "load_arrival", DEFAULT_ARRIVAL), getParameter(parameters, "load_warmup", DEFAULT_WARMUP),
+                getParameter(parameters, "load_duration", DEFAULT_DURATION));
+    }
+    
+    /**
+     * Gets an integer parameter.
+     * @param parameters parameters
+     * @param name name of the parameter
+     * @param defaultValue default value
+     * @return value, or the default value if absent
+     */
+    private static int getParameter(Map<String, String> parameters, String name, int defaultValue) {
+        String str = parameters.get(name);
+        return str == null ? defaultValue : Integer.valueOf(str);
+    }
+    
+    /**
+     * Gets a string parameter.
+     * @param parameters parameters
+     * @param name name of the parameter
+     * @param defaultValue default value
+     * @return value, or the default value if absent
+     */
+    private static String getParameter(Map<String, String> parameters, String name, String defaultValue) {
+        String str = parameters.get(name);
+        return str == null ? defaultValue : str;
+    }
+    
+    /**
+     * Gets the keys of the data in the configuration file of replicas.
+     * @return keys
+     */
+    private static String[] getDataKeys() {
+        return ConnectionManager.loadParameters("replica.conf").get("data").replaceAll(":[^,]*", "").split("\\s*,\\s*");
+    }
+    
+    /**
+     * Waits until replicas are ready, schedules user requests during warmup and measurement, and waits for user requests in flight.
+     * When captured user requests are replayed, the measurement lasts until the last one is responded.
+     */
+    public void run() {
+        if (!users.get(0).waitForReplicas()) {
+            System.out.println("Warning: Replicas are not ready!");
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        long start = System.nanoTime();
+        measurementStart = start + warmup * 1000000L;
+        if (trace == null) {
+            generate(executor, start);
+        } else {
+            replay(executor, start);
+        }
+        
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                // User requests which are not sent by now are counted as failures.
+                errors.addAndGet(executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (trace != null) {
+            duration = (int) Math.max((System.nanoTime() - measurementStart) / 1000000, 1);
+        }
+    }
+    
+    /**
+     * Schedules synthetic user requests at the target rate.
+     * @param executor executor which sends user requests
+     * @param start start time in nanoseconds
+     */
+    private void generate(ThreadPoolExecutor executor, long start) {
+        Random random = new Random();
+        long end = measurementStart + duration * 1000000L;
+        long intendedTime = start;
+        for (long sequence = 0; intendedTime < end; sequence++) {
+            long now = System.nanoTime();
+            if (intendedTime > now) {
+                LockSupport.parkNanos(intendedTime - now);
+            }
+            executor.execute(new UserRequestTask((int) (sequence % users.size()), nextHeader(), nextKey(), intendedTime));
+            Statistics.updateMax(maxBacklog, executor.getQueue().size());
+            if (poisson) {
+                intendedTime += (long) (-Math.log(1 - random.nextDouble()) * 1e9 / rate);
+            } else {
+                intendedTime = start + (long) ((sequence + 1) * 1e9 / rate);
+            }
+        }
+    }
+    
+    /**
+     * Schedules captured user requests at their arrival times scaled by the speed, or at once if they are replayed as fast as possible.
+     * @param executor executor which sends user requests
+     * @param start start time in nanoseconds
+     */
+    private void replay(ThreadPoolExecutor executor, long start) {
+        Map<String, Integer> userIndexes = new HashMap<String, Integer>();
+        long firstArrival = trace.isEmpty() ? 0 : trace.get(0).getArrivalMicros();
+        for (WorkloadCapture.Record record : trace) {
+            long intendedTime = UNSCHEDULED;
+            if (speed > 0) {
+                intendedTime = start + (long) ((record.getArrivalMicros() - firstArrival) * 1000 / speed);
+                long now = System.nanoTime();
+                if (intendedTime > now) {
+                    LockSupport.parkNanos(intendedTime - now);
+                }
+            }
+            Integer userIndex = userIndexes.get(record.getUser());
+            if (userIndex == null) {
+                userIndex = userIndexes.size() % users.size();
+                userIndexes.put(record.getUser(), userIndex);
+            }
+            executor.execute(new UserRequestTask(userIndex, record.getHeader() + '|', record.getKey(), intendedTime));
+            Statistics.updateMax(maxBacklog, executor.getQueue().size());
+        }
+    }
+    
+    /**
+     * Prints the report: throughput, failures, the percentile distribution of latencies in milliseconds and percentiles of service times.
+     * @param out output
+     */
+    public void printReport(PrintStream out) {
+        String target = trace == null ? String.format("Target rate %d/s", rate)
+                : String.format("Replay of %d user requests at %s", trace.size(), speed > 0 ? speed + "x speed" : "maximum speed");
+        out.println(String.format("%s with %d user requests in flight at most: %.1f/s succeeded, %d failed, %d waited for a thread at most.",
+                target, concurrency, latencies.getTotalCount() * 1000.0 / duration, errors.get(), maxBacklog.get()));
+        out.println("Latency from intended times (ms):");
+        latencies.outputPercentileDistribution(out, 1000);
+        out.println(String.format("Service time from actual sending (ms): p50 %.3f, p90 %.3f, p99 %.3f, p999 %.3f, max %.3f",
+                serviceTimes.getValueAtPercentile(50) / 1000.0, serviceTimes.getValueAtPercentile(90) / 1000.0, serviceTimes.getValueAtPercentile(99) / 1000.0,
+                serviceTimes.getValueAtPercentile(99.9) / 1000.0, serviceTimes.getMax() / 1000.0));
+    }
+    
+    /**
+     * Writes the percentile distribution of latencies in milliseconds in the text format of HdrHistogram.
+     * @param fileName the name of the file
+     */
+    public void writeLatencies(String fileName) {
+        try {
+            PrintStream out = new PrintStream(fileName);
+            latencies.outputPercentileDistribution(out, 1000);
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Chooses a random key by the key distribution.
+     * @return key
+     */
+    private String nextKey() {
+        int index = Arrays.binarySearch(keyProbabilities, ThreadLocalRandom.current().nextDouble());
+        return keys[index >= 0 ? index : Math.min(-index - 1, keys.length - 1)];
+    }
+    
+    /**
+     * Chooses a random header by the mix.
+     * @return header
+     */
+    private String nextHeader() {
+        int value = ThreadLocalRandom.current().nextInt(mix[mix.length - 1]);
+        for (int i = 0; i < mix.length; i++) {
+            if (value < mix[i]) {
+                return HEADERS[i];
+            }
+        }
+        return HEADERS[0];
+    }
+    
+    /**
+     * A user request scheduled at an intended time.
+     *
+     */
+    private class UserRequestTask implements Runnable {
+        /**
+         * Index of the user which sends the user request.
+         */
+        private int index;
+        /**
+         * Header of the user request, with the separator.
+         */
+        private String header;
+        /**
+         * Key of the user request.
+         */
+        private String key;
+        /**
+         * Intended time in nanoseconds; UNSCHEDULED if the user request is sent as fast as possible.
+         */
+        private long intendedTime;
+        
+        /**
+         * Constructs a user request task.
+         * @param index index of the user which sends the user request
+         * @param header header of the user request, with the separator
+         * @param key key of the user request
+         * @param intendedTime intended time in nanoseconds; UNSCHEDULED if the user request is sent as fast as possible
+         */
+        UserRequestTask(int index, String header, String key, long intendedTime) {
+            this.index = index;
+            this.header = header;
+            this.key = key;
+            this.intendedTime = intendedTime;
+        }
+        
+        /**
+         * Sends the user request by the user after its previous user request is responded, and records its latency if it is intended during measurement.
+         */
+        @Override
+        public void run() {
+            long sendTime;
+            String response;
+            // The user request is timestamped and sent under the lock of its user, so that replicas receive user requests of a user in the order of their timestamps.
+            synchronized(userLocks[index]) {
+                long timestamp = Math.max(System.currentTimeMillis(), lastTimestamps[index] + 1);
+                lastTimestamps[index] = timestamp;
+                String request = new StringBuilder(header).append(key).append(',').append(timestamp).toString();
+                sendTime = System.nanoTime();
+                response = users.get(index).sendUserRequest(request);
+            }
+            long responseTime = System.nanoTime();
+            long intendedTime = this.intendedTime == UNSCHEDULED ? sendTime : this.intendedTime;
+            if (intendedTime < measurementStart) {
+                return;
+            }
+            if (response == null || response.startsWith("Error")) {
+                errors.incrementAndGet();
+            } else {
+                latencies.record((responseTime - intendedTime) / 1000);
+                serviceTimes.record((responseTime - sendTime) / 1000);
+            }
+        }
+    }
+    
+    /**
+     * Launches users in this process and generates load with them.
+     * Users are the nodes in the configuration file of the connection manager which are not in the fault detection system, unless specified.
+     * It must be launched in the directory of configuration files, when the replica manager and replicas are running and the users are not.
+     * With -replay, user requests in the capture file are replayed at the speed, which is a multiple of the original speed or max; the rate, mix, keys, distribution, arrival and duration are ignored.
+     * java LoadGenerator [-mode <no|active|passive>] [-users <user1>,<user2> ...] [-rate <per second>] [-concurrency <n>] [-mix <get>:<increment>:<decrement>]
+     *                    [-keys <key1>,<key2> ...] [-distribution <uniform|zipf[:exponent]|hotspot[:hot keys:hot requests]>] [-arrival <constant|poisson>]
+     *                    [-warmup <millis>] [-duration <millis>] [-replay <capture file>] [-speed <multiple|max>] [-o <latency file>]
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        String mode = "passive";
+        List<String> userNames = null;
+        int rate = DEFAULT_RATE;
+        int concurrency = DEFAULT_CONCURRENCY;
+        String mix = DEFAULT_MIX;
+        String[] keys = null;
+        String distribution = DEFAULT_DISTRIBUTION;
+        String arrival = DEFAULT_ARRIVAL;
+        int warmup = DEFAULT_WARMUP;
+        int duration = DEFAULT_DURATION;
+        String replayName = null;
+        double speed = 1;
+        String outputName = null;
+        for (Iterator<String> it = Arrays.asList(args).iterator(); it.hasNext();) {
+            String arg = it.next();
+            if (arg.equals("-mode")) {
+                mode = it.next();
+            } else if (arg.equals("-users")) {
+                userNames = Arrays.asList(it.next().split(","));
+            } else if (arg.equals("-rate")) {
+                rate = Integer.valueOf(it.next());
+            } else if (arg.equals("-concurrency")) {
+                concurrency = Integer.valueOf(it.next());
+            } else if (arg.equals("-mix")) {
+                mix = it.next();
+            } else if (arg.equals("-keys")) {
+                keys = it.next().split(",");
+            } else if (arg.equals("-distribution")) {
+                distribution = it.next();
+            } else if (arg.equals("-arrival")) {
+                arrival = it.next();
+            } else if (arg.equals("-warmup")) {
+                warmup = Integer.valueOf(it.next());
+            } else if (arg.equals("-duration")) {
+                duration = Integer.valueOf(it.next());
+            } else if (arg.equals("-replay")) {
+                replayName = it.next();
+            } else if (arg.equals("-speed")) {
+                String str = it.next();
+                speed = str.equals("max") ? 0 : Double.valueOf(str);
+            } else if (arg.equals("-o")) {
+                outputName = it.next();
+            } else {
+                System.out.println("Error: Invalid argument " + arg + "!");
+                System.exit(0);
+            }
+        }
+        if (!mode.equals("no") && !mode.equals("active") && !mode.equals("passive")) {
+            System.out.println("Error: Invalid mode " + mode + "!");
+            System.exit(0);
+        }
+        if (userNames == null) {
+            Map<String, String> faultDetectors = ConnectionManager.loadParameters("fault_detector.conf");
+            userNames = new ArrayList<String>();
+            for (String node : ConnectionManager.loadParameters("connection_manager.conf").keySet()) {
+                if (!faultDetectors.containsKey(node)) {
+                    userNames.add(node);
+                }
+            }
+            Collections.sort(userNames);
+        }
+        if (keys == null) {
+            keys = getDataKeys();
+        }
+        List<WorkloadCapture.Record> trace = null;
+        if (replayName != null) {
+            try {
+                trace = WorkloadCapture.read(replayName);
+            } catch (IOException e) {
+                System.out.println(new StringBuilder("Error: Invalid capture file ").append(replayName).append(": ").append(e.getMessage()).append('!').toString());
+                System.exit(0);
+            }
+        }
+        
+        new File(LOG_DIRECTORY).mkdirs();
+        List<User> users = new ArrayList<User>(userNames.size());
+        for (String userName : userNames) {
+            String logName = LOG_DIRECTORY + File.separator + userName + ".log";
+            if (mode.equals("active")) {
+                users.add(new ActiveUser(userName, logName));
+            } else if (mode.equals("passive")) {
+                users.add(new PassiveUser(userName, logName));
+            } else {
+                users.add(new User(userName, logName));
+            }
+        }
+        
+        LoadGenerator loadGenerator = trace == null ? new LoadGenerator(users, rate, concurrency, mix, keys, distribution, arrival, warmup, duration)
+                : new LoadGenerator(users, trace, speed, concurrency, warmup);
+        loadGenerator.run();
+        loadGenerator.printReport(System.out);
+        if (outputName != null) {
+            loadGenerator.writeLatencies(outputName);
+        }
+        System.exit(0);
+    }
+}
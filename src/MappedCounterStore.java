@@ -0,0 +1,449 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A counter store in a memory-mapped file, with a hash table of fixed slots and linear probing.
+ * The data lives off the heap in the page cache, so that it survives restarts of the process and its heap cost does not grow with the number of keys.
+ * The file is the table itself, so it is used again after a restart without deserialization.
+ * <header> = FTDS <version> <number of slots> <bytes of a slot> <number of entries>, 64 bytes
+ * <slot> = <hash> <value> <length of the key plus one, 0 if empty> <UTF-8 bytes of the key>, SLOT_BYTES bytes
+ * Numbers are little-endian ints. Keys are limited to MAX_KEY_BYTES bytes.
+ * Additions are atomic under lock stripes, because a mapped buffer has no atomic operations.
+ * Writes reach the file when the operating system writes back the pages, so the data survives a killed process, but not a crash of the machine.
+ * @author Shenqi Zhang
+ *
+ */
+public class MappedCounterStore implements CounterStore {
+    /**
+     * Magic bytes at the beginning of a data file.
+     */
+    private static final byte[] MAGIC = {'F', 'T', 'D', 'S'};
+    /**
+     * Version of the format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Bytes of the header.
+     */
+    private static final int HEADER_BYTES = 64;
+    /**
+     * Position of the number of slots in the header.
+     */
+    private static final int HEADER_SLOTS = 8;
+    /**
+     * Position of the bytes of a slot in the header.
+     */
+    private static final int HEADER_SLOT_BYTES = 12;
+    /**
+     * Position of the number of entries in the header.
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * Bytes of a slot.
+     */
+    private static final int SLOT_BYTES = 64;
+    /**
+     * Position of the hash of the key in a slot.
+     */
+    private static final int HASH = 0;
+    /**
+     * Position of the value in a slot.
+     */
+    private static final int VALUE = 4;
+    /**
+     * Position of the length of the key plus one in a slot.
+     */
+    private static final int LENGTH = 8;
+    /**
+     * Position of the key in a slot.
+     */
+    private static final int KEY = 12;
+    /**
+     * Maximum bytes of a key.
+     */
+    public static final int MAX_KEY_BYTES = SLOT_BYTES - KEY;
+    /**
+     * Number of lock stripes of additions.
+     */
+    private static final int STRIPES = 64;
+    
+    /**
+     * Mixes the hash code of a key, so that similar keys like K1 and K2 are spread over the table.
+     * @param key key
+     * @return hash
+     */
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9e3779b1;
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Name of the data file.
+     */
+    private final String fileName;
+    /**
+     * The mapped data file.
+     */
+    private final MappedByteBuffer buffer;
+    /**
+     * Number of slots, a power of 2.
+     */
+    private final int capacity;
+    /**
+     * Number of entries.
+     */
+    private int size;
+    /**
+     * Locks of additions; a slot is guarded by the stripe of its index.
+     */
+    private final Object[] stripes;
+    
+    /**
+     * Constructs a counter store in a data file.
+     * If the file exists, its entries are used, and its number of slots is kept.
+     * @param fileName name of the data file
+     * @param slots number of slots of a new data file, rounded up to a power of 2
+     * @throws IOException if it fails to map the file, or the file is not a data file
+     */
+    public MappedCounterStore(String fileName, int slots) throws IOException {
+        this.fileName = fileName;
+        boolean exists = new File(fileName).length() > 0;
+        int capacity = 1;
+        while (capacity < slots) {
+            capacity <<= 1;
+        }
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            if (exists) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                for (int i = 0; i < MAGIC.length; i++) {
+                    if (header.get(i) != MAGIC[i]) {
+                        throw new IOException("Not a data file " + fileName);
+                    }
+                }
+                if (header.getInt(MAGIC.length) != VERSION || header.getInt(HEADER_SLOT_BYTES) != SLOT_BYTES) {
+                    throw new IOException("Unsupported data file " + fileName);
+                }
+                capacity = header.getInt(HEADER_SLOTS);
+            }
+            long length = HEADER_BYTES + (long) capacity * SLOT_BYTES;
+            if (capacity <= 0 || (capacity & (capacity - 1)) != 0 || length > Integer.MAX_VALUE || (exists && file.length() != length)) {
+                throw new IOException("Invalid data file " + fileName);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            file.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = capacity;
+        if (!exists) {
+            for (int i = 0; i < MAGIC.length; i++) {
+                buffer.put(i, MAGIC[i]);
+            }
+            buffer.putInt(MAGIC.length, VERSION);
+            buffer.putInt(HEADER_SLOTS, capacity);
+            buffer.putInt(HEADER_SLOT_BYTES, SLOT_BYTES);
+            buffer.putInt(HEADER_SIZE, 0);
+        }
+        this.size = buffer.getInt(HEADER_SIZE);
+        
+        this.stripes = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+    
+    /**
+     * Gets the name of the data file.
+     * @return name of the data file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+    
+    /**
+     * Gets the position of a slot in the data file.
+     * @param slot slot
+     * @return position of the slot
+     */
+    private static int position(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+    
+    /**
+     * Gets the number of entries.
+     * @return number of entries
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns true if there is no entry.
+     * @return true if there is no entry
+     */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Removes all entries.
+     */
+    @Override
+    public void clear() {
+        for (int slot = 0; slot < capacity; slot++) {
+            buffer.putInt(position(slot) + LENGTH, 0);
+        }
+        size = 0;
+        buffer.putInt(HEADER_SIZE, 0);
+    }
+    
+    /**
+     * Maps the key to the value, adding an entry if the key is absent.
+     * @param key key
+     * @param value value
+     * @throws IllegalArgumentException if the key is longer than MAX_KEY_BYTES bytes
+     * @throws IllegalStateException if the table is full
+     */
+    @Override
+    public void put(String key, int value) {
+        int hash = hash(key);
+        int slot = probe(key, hash);
+        int position = position(slot);
+        if (buffer.getInt(position + LENGTH) != 0) {
+            buffer.putInt(position + VALUE, value);
+            return;
+        }
+        
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key " + key + " is longer than " + MAX_KEY_BYTES + " bytes");
+        }
+        if (size + 1 > capacity * 3 / 4) {
+            throw new IllegalStateException("Data file " + fileName + " is full with " + size + " keys");
+        }
+        buffer.putInt(position + HASH, hash);
+        buffer.putInt(position + VALUE, value);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(position + KEY + i, bytes[i]);
+        }
+        // The length is written last, so that the slot is never seen occupied with a partial key.
+        buffer.putInt(position + LENGTH, bytes.length + 1);
+        size++;
+        buffer.putInt(HEADER_SIZE, size);
+    }
+    
+    /**
+     * Probes the table for the key.
+     * @param key key
+     * @param hash hash of the key
+     * @return slot of the key, or the empty slot where the key would be added
+     */
+    private int probe(String key, int hash) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            int position = position(slot);
+            int length = buffer.getInt(position + LENGTH);
+            if (length == 0 || (buffer.getInt(position + HASH) == hash && matches(key, position + KEY, length - 1))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    /**
+     * Returns true if the key equals the key bytes.
+     * @param key key
+     * @param position position of the key bytes
+     * @param length length of the key bytes
+     * @return true if the key equals the key bytes
+     */
+    private boolean matches(String key, int position, int length) {
+        int n = key.length();
+        if (n > length) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                // A key with non-ASCII characters is encoded for comparison.
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length != length) {
+                    return false;
+                }
+                for (int j = 0; j < length; j++) {
+                    if (buffer.get(position + j) != bytes[j]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (buffer.get(position + i) != c) {
+                return false;
+            }
+        }
+        return n == length;
+    }
+    
+    /**
+     * Finds the slot of the key.
+     * @param key key
+     * @return slot of the key, or -1 if the key is absent
+     */
+    @Override
+    public int find(String key) {
+        int slot = probe(key, hash(key));
+        return buffer.getInt(position(slot) + LENGTH) == 0 ? -1 : slot;
+    }
+    
+    /**
+     * Gets the value in the slot.
+     * @param slot slot of an entry
+     * @return value
+     */
+    @Override
+    public int get(int slot) {
+        synchronized(stripes[slot & (STRIPES - 1)]) {
+            return buffer.getInt(position(slot) + VALUE);
+        }
+    }
+    
+    /**
+     * Adds the delta to the value in the slot.
+     * @param slot slot of an entry
+     * @param delta delta
+     * @return value after the addition
+     */
+    @Override
+    public int add(int slot, int delta) {
+        int position = position(slot) + VALUE;
+        synchronized(stripes[slot & (STRIPES - 1)]) {
+            int value = buffer.getInt(position) + delta;
+            buffer.putInt(position, value);
+            return value;
+        }
+    }
+    
+    /**
+     * Copies this store into the heap.
+     * @return a copy of this store in the heap
+     */
+    @Override
+    public CounterStore copy() {
+        CounterStore copy = new HeapCounterStore(size);
+        for (int slot = next(-1); slot >= 0; slot = next(slot)) {
+            copy.put(getKey(slot), get(slot));
+        }
+        return copy;
+    }
+    
+    /**
+     * Gets the next slot of an entry.
+     * Entries are iterated in the order of slots.
+     * @param slot current slot, or -1 to get the first slot
+     * @return the next slot of an entry, or -1 if there are no more entries
+     */
+    @Override
+    public int next(int slot) {
+        for (int i = slot + 1; i < capacity; i++) {
+            if (buffer.getInt(position(i) + LENGTH) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Gets the key in the slot.
+     * @param slot slot of an entry
+     * @return key
+     */
+    @Override
+    public String getKey(int slot) {
+        int position = position(slot);
+        byte[] bytes = new byte[buffer.getInt(position + LENGTH) - 1];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + KEY + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Appends the key in the slot to the string builder, without decoding it if it is ASCII.
+     * @param sb string builder
+     * @param slot slot of an entry
+     */
+    @Override
+    public void appendKey(StringBuilder sb, int slot) {
+        int position = position(slot) + KEY;
+        int end = position + buffer.getInt(position(slot) + LENGTH) - 1;
+        for (int i = position; i < end; i++) {
+            if (buffer.get(i) < 0) {
+                sb.append(getKey(slot));
+                return;
+            }
+        }
+        for (int i = position; i < end; i++) {
+            sb.append((char) buffer.get(i));
+        }
+    }
+    
+    /**
+     * Gets the length of the key in the slot in UTF-8 bytes.
+     * @param slot slot of an entry
+     * @return length of the key in bytes
+     */
+    @Override
+    public int getKeyLength(int slot) {
+        return buffer.getInt(position(slot) + LENGTH) - 1;
+    }
+    
+    /**
+     * Copies the UTF-8 bytes of the key in the slot from the file.
+     * @param slot slot of an entry
+     * @param bytes byte array with at least the length of the key after the offset
+     * @param offset offset in the byte array
+     */
+    @Override
+    public void getKeyBytes(int slot, byte[] bytes, int offset) {
+        int position = position(slot);
+        int length = buffer.getInt(position + LENGTH) - 1;
+        for (int i = 0; i < length; i++) {
+            bytes[offset + i] = buffer.get(position + KEY + i);
+        }
+    }
+    
+    /**
+     * Prints the entries of a data file, without launching a replica.
+     * The data file must exist, so that a mistyped name does not create an empty one.
+     * java MappedCounterStore <data file>
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        if (!new File(args[0]).isFile()) {
+            System.out.println("Error: No data file " + args[0] + "!");
+            System.exit(0);
+        }
+        try {
+            MappedCounterStore store = new MappedCounterStore(args[0], 1);
+            System.out.println(String.format("%d keys in %d slots.", store.size(), store.capacity));
+            for (int slot = store.next(-1); slot >= 0; slot = store.next(slot)) {
+                System.out.println(store.getKey(slot) + ":" + store.get(slot));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
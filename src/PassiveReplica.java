@@ -2,6 +2,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -11,6 +12,10 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  *
  */
 public class PassiveReplica extends Replica {
+    /**
+     * Estimated bytes of a node in a concurrent linked queue, excluding the element.
+     */
+    protected static final long QUEUE_NODE_BYTES = 24;
     /**
      * User requests.
      * Keys are users. Values are queues which store requests from each user.
@@ -21,8 +26,9 @@ public class PassiveReplica extends Replica {
      * Timestamps of the latest handled request from each user after the latest checkpoint.
      * Keys are users. Values are timestamps.
      * It is assumed that, for the same user, requests have different timestamps.
+     * Writers update it concurrently under the read lock for data, and each timestamp only increases.
      */
-    private Map<String, Long> userTimestamps;
+    private ConcurrentHashMap<String, Long> userTimestamps;
     /**
      * True if this replica is not updating.
      */
@@ -35,6 +41,49 @@ public class PassiveReplica extends Replica {
      * Object for upgrade.
      */
     private final Object upgradeObj;
+    /**
+     * Buffer monitor for user requests of all users.
+     */
+    private final BufferMonitor userRequestsMonitor;
+    /**
+     * Applied operations of this primary replica in the latest checkpoint acknowledged by each backup replica.
+     * Keys are backup replicas. Values are applied operations.
+     */
+    private final Map<String, Long> checkpointOperations;
+    /**
+     * Sequence number of the latest checkpoint acknowledged by each backup replica.
+     * Keys are backup replicas. Values are sequence numbers.
+     */
+    private final Map<String, Long> checkpointSequences;
+    /**
+     * Sequence number of the latest checkpoint sent by this primary replica.
+     */
+    private long checkpointSequence;
+    /**
+     * Sequence number of the latest checkpoint applied by this backup replica; 0 if none.
+     */
+    private volatile long appliedCheckpoint;
+    /**
+     * Keys changed by this primary replica after the latest checkpoint.
+     * Writers add keys concurrently under the read lock for data, and the checkpoint sender replaces it under the write lock.
+     */
+    private Set<String> dirtyKeys;
+    /**
+     * True if this replica has applied a checkpoint or has been the primary replica.
+     */
+    private volatile boolean restored;
+    /**
+     * Time when this replica receives the membership first in nanoseconds; 0 if it has not.
+     */
+    private volatile long joinedNanos;
+    /**
+     * True if the checkpoint sender sends the next checkpoint without waiting for the checkpoint interval.
+     */
+    private boolean checkpointRequested;
+    /**
+     * Object for checkpoint.
+     */
+    private final Object checkpointObj;
     
     /**
      * Constructs a passive replica.
@@ -75,43 +124,58 @@ public class PassiveReplica extends Replica {
     public PassiveReplica(String name, int heartbeatInterval, int heartbeatTolerance, int checkpointInterval, String logName) {
         super(name, heartbeatInterval, heartbeatTolerance, checkpointInterval, logName);
         this.userRequests = new ConcurrentHashMap<String, ConcurrentLinkedQueue<String>>();
-        this.userTimestamps = new HashMap<String, Long>();
+        this.userTimestamps = new ConcurrentHashMap<String, Long>(recoveredTimestamps);
         this.updated = true;
         this.updateObj = new Object();
         this.upgradeObj = new Object();
+        this.userRequestsMonitor = new BufferMonitor("userRequests");
+        this.checkpointOperations = new ConcurrentHashMap<String, Long>();
+        this.checkpointSequences = new ConcurrentHashMap<String, Long>();
+        this.checkpointSequence = 0;
+        this.appliedCheckpoint = 0;
+        this.dirtyKeys = ConcurrentHashMap.newKeySet();
+        // A replica which recovers data from its write-ahead log is restored at once, and the checkpoint sent by the primary replica when it joins covers the requests it missed.
+        this.restored = recovered;
+        this.joinedNanos = 0;
+        this.checkpointRequested = false;
+        this.checkpointObj = new Object();
+        
+        start(PassiveReplica.class);
     }
     
     /**
-     * Serializes user timestamps.
-     * @return string representation of user timestamps
+     * Returns true if data is recovered from the write-ahead log; otherwise this replica is ready to serve only after it applies a checkpoint or becomes the primary.
+     * @return true if data is recovered
      */
-    private String serializeUserTimestamps() {
-        if (userTimestamps.isEmpty()) {
-            return "";
+    @Override
+    protected boolean isReadyWhenStarted() {
+        return recovered;
+    }
+    
+    /**
+     * Updates the timestamp of the latest handled request from the user, unless a later one is handled.
+     * Requests from the same user may be handled concurrently, so they may update in any order.
+     * @param user user
+     * @param timestamp timestamp of the handled request
+     */
+    private void updateUserTimestamp(String user, long timestamp) {
+        Long previous = userTimestamps.putIfAbsent(user, timestamp);
+        while (previous != null && previous < timestamp && !userTimestamps.replace(user, previous, timestamp)) {
+            previous = userTimestamps.get(user);
         }
-        
-        StringBuilder sb = new StringBuilder();
-        for (String user : userTimestamps.keySet()) {
-            sb.append(user).append(',').append(userTimestamps.get(user)).append(',');
+        if (wal != null) {
+            wal.appendTimestamp(user, timestamp);
         }
-        sb.setLength(sb.length() - 1);
-        return sb.toString();
     }
     
     /**
-     * Deserializes user timestamps.
-     * @param s string representation of user timestamps
+     * Copies the user timestamps which are logged with data.
+     * This thread must hold the write lock for data.
+     * @return copy of user timestamps
      */
-    private void deserializeUserTimestamps(String s) {
-        userTimestamps.clear();
-        if (s.length() > 0) {
-            String[] strs = s.split(",");
-            for (int i = 0; i < strs.length; i += 2) {
-                String user = strs[i];
-                long timestamp = Long.valueOf(strs[i + 1]);
-                userTimestamps.put(user, timestamp);
-            }
-        }
+    @Override
+    protected Map<String, Long> copyLoggedTimestamps() {
+        return new HashMap<String, Long>(userTimestamps);
     }
     
     /**
@@ -135,12 +199,15 @@ public class PassiveReplica extends Replica {
             handleCheckpointIntervalRequest(source, request);
             break;
         case GET:
+            capture.record(source, request);
             handleGetRequest(source, request);
             break;
         case INCREMENT:
+            capture.record(source, request);
             handleIncrementRequest(source, request);
             break;
         case DECREMENT:
+            capture.record(source, request);
             handleDecrementRequest(source, request);
             break;
         case CHECKPOINT:
@@ -149,6 +216,12 @@ public class PassiveReplica extends Replica {
         case UPGRADED:
             handleUpgradedRequest(source, request);
             break;
+        case STATISTICS:
+            handleStatisticsRequest(source, request);
+            break;
+        case READY:
+            handleReadyRequest(source, request);
+            break;
         default:
             printLog(new StringBuilder("Error: Invalid request ").append(request).append('!').toString());
             System.exit(0);
@@ -165,12 +238,29 @@ public class PassiveReplica extends Replica {
     protected void handleMembershipRequest(String source, String request) {
         int index = request.indexOf('|');
         String membershipStr = index == request.length() - 1 ? "" : request.substring(index + 1);
+        replicaManager = source;
         membershipLock.writeLock().lock();
         try {
             deserializeMembership(membershipStr);
             printMembership();
+            checkpointOperations.keySet().retainAll(membership);
+            checkpointSequences.keySet().retainAll(membership);
+            if (joinedNanos == 0) {
+                joinedNanos = System.nanoTime();
+            }
+            
+            // A joining backup replica is ready only after it applies a checkpoint, so the primary replica sends one at once.
+            if (primary) {
+                for (String member : membership) {
+                    if (!member.equals(name) && !checkpointOperations.containsKey(member)) {
+                        requestCheckpoint();
+                        break;
+                    }
+                }
+            }
             
             if (!primary && membership.get(0).equals(name)) {
+                long upgradeStart = System.nanoTime();
                 printLog("Upgrade from backup to primary.");
                 waitForUpdate();
                 reHandleUserRequests();
@@ -181,6 +271,10 @@ public class PassiveReplica extends Replica {
                 }
                 
                 new Thread(new CheckpointSender()).start();
+                launchLagMonitor();
+                restored = true;
+                setReady();
+                statistics.set("upgrade.millis", (System.nanoTime() - upgradeStart) / 1000000);
             }
         } finally {
             membershipLock.writeLock().unlock();
@@ -188,6 +282,22 @@ public class PassiveReplica extends Replica {
         sendResponse(source, "ACK");
     }
     
+    /**
+     * Measures the lag of a backup replica behind this primary replica.
+     * The backup is behind by the write operations after the latest checkpoint it acknowledged.
+     * @param backup backup replica
+     * @param backupStatistics statistics of the backup replica
+     * @return operations behind, milliseconds behind and pending requests
+     */
+    @Override
+    protected long[] measureLag(String backup, Map<String, String> backupStatistics) {
+        Long operations = checkpointOperations.get(backup);
+        long appliedOperations = this.appliedOperations.sum();
+        return new long[] {operations == null ? appliedOperations : appliedOperations - operations,
+                           getStatistic(backupStatistics, "applied.age"),
+                           getStatistic(backupStatistics, "buffer.userRequests.entries")};
+    }
+    
     /**
      * Handles the get request from the source.
      * Get|<key>,<timestamp>
@@ -212,23 +322,29 @@ public class PassiveReplica extends Replica {
     @Override
     protected void handleIncrementRequest(String source, String request) {
         if (primary) {
+            long start = System.nanoTime();
             int index1 = request.indexOf('|');
             int index2 = request.indexOf(',');
             String key = request.substring(index1 + 1, index2);
             long timestamp = Long.valueOf(request.substring(index2 + 1));
             Integer value;
-            dataLock.writeLock().lock();
+            dataLock.readLock().lock();
             try {
                 value = increment(key);
-                userTimestamps.put(source, timestamp);
+                if (value != null) {
+                    dirtyKeys.add(key);
+                }
+                updateUserTimestamp(source, timestamp);
             } finally {
-                dataLock.writeLock().unlock();
+                dataLock.readLock().unlock();
             }
+            commitLog();
+            recordHotKey(key);
             String response = value == null ? "No such key." : String.valueOf(value);
             sendResponse(source, response);
+            recordUserLatency(start);
         } else {
-            userRequests.putIfAbsent(source, new ConcurrentLinkedQueue<String>());
-            userRequests.get(source).add(request);
+            enqueueUserRequest(source, request);
             sendResponse(source, "ACK");
         }
     }
@@ -241,47 +357,114 @@ public class PassiveReplica extends Replica {
      */
     protected void handleDecrementRequest(String source, String request) {
         if (primary) {
+            long start = System.nanoTime();
             int index1 = request.indexOf('|');
             int index2 = request.indexOf(',');
             String key = request.substring(index1 + 1, index2);
             long timestamp = Long.valueOf(request.substring(index2 + 1));
             Integer value;
-            dataLock.writeLock().lock();
+            dataLock.readLock().lock();
             try {
                 value = decrement(key);
-                userTimestamps.put(source, timestamp);
+                if (value != null) {
+                    dirtyKeys.add(key);
+                }
+                updateUserTimestamp(source, timestamp);
             } finally {
-                dataLock.writeLock().unlock();
+                dataLock.readLock().unlock();
             }
+            commitLog();
+            recordHotKey(key);
             String response = value == null ? "No such key." : String.valueOf(value);
             sendResponse(source, response);
+            recordUserLatency(start);
         } else {
-            userRequests.putIfAbsent(source, new ConcurrentLinkedQueue<String>());
-            userRequests.get(source).add(request);
+            enqueueUserRequest(source, request);
             sendResponse(source, "ACK");
         }
     }
     
+    /**
+     * Stores a user request received by a backup replica, until a checkpoint covers it or this replica becomes the primary.
+     * @param source source of the user request in the distributed system
+     * @param request user request
+     */
+    void enqueueUserRequest(String source, String request) {
+        userRequests.putIfAbsent(source, new ConcurrentLinkedQueue<String>());
+        userRequests.get(source).add(request);
+        userRequestsMonitor.add(1, QUEUE_NODE_BYTES + estimateBytes(request));
+    }
+    
     /**
      * Handles the checkpoint request from the source.
-     * Checkpoint|<key1>,<value1>,<key2>,<value2> ... |<user1>,<timestamp1>,<user2>,<timestamp2>, ...
+     * A full checkpoint replaces data. A delta maps the keys changed after the previous checkpoint to their values, and is applied only on that checkpoint.
+     * Checkpoint|<sequence>|<snapshot of data and user timestamps>
+     * Checkpoint|<sequence>,<previous sequence>|<delta of data and user timestamps>
+     * A corrupted checkpoint, or a delta on another checkpoint, is discarded and answered with NACK, so that the primary replica sends a full checkpoint at once.
      * @param source source of the request in the distributed system
      * @param request request
      */
     protected void handleCheckpointRequest(String source, String request) {
         // Only backup replicas receive checkpoint requests.
-        // This is the only thread to access data and user timestamps.
-        // No need to add locks.
+        // This is the only thread to modify data and user timestamps.
+        // The write lock for data only excludes the log compactor.
         int index1 = request.indexOf('|');
         int index2 = request.indexOf('|', index1 + 1);
-        String dataStr = index2 == index1 + 1 ? "" : request.substring(index1 + 1, index2);
-        String userTimeStampsStr = index2 == request.length() - 1 ? "" : request.substring(index2 + 1);
+        int index3 = request.indexOf(',', index1 + 1);
+        boolean delta = index3 >= 0 && index3 < index2;
+        long sequence = Long.valueOf(request.substring(index1 + 1, delta ? index3 : index2));
+        Map<String, Long> timestamps = new HashMap<String, Long>();
+        boolean applied;
+        int added = 0;
         updated = false;
-        deserializeData(dataStr);
-        printData();
-        deserializeUserTimestamps(userTimeStampsStr);
+        dataLock.writeLock().lock();
+        try {
+            if (delta) {
+                added = Long.valueOf(request.substring(index3 + 1, index2)) == appliedCheckpoint ? applyDelta(request.substring(index2 + 1), timestamps) : -1;
+                applied = added >= 0;
+            } else {
+                applied = deserializeData(request.substring(index2 + 1), timestamps);
+            }
+        } finally {
+            dataLock.writeLock().unlock();
+        }
+        if (!applied) {
+            printLog(delta ? "Discard checkpoint delta." : "Discard corrupted checkpoint.");
+            updated = true;
+            synchronized(updateObj) {
+                updateObj.notify();
+            }
+            sendResponse(source, "NACK");
+            return;
+        }
+        appliedCheckpoint = sequence;
+        if (delta) {
+            printLog(new StringBuilder("Apply checkpoint delta ").append(sequence).append('.').toString());
+        } else {
+            printData();
+        }
+        userTimestamps.clear();
+        userTimestamps.putAll(timestamps);
+        if (delta && wal != null) {
+            for (Map.Entry<String, Long> entry : timestamps.entrySet()) {
+                wal.appendTimestamp(entry.getKey(), entry.getValue());
+            }
+        }
         printUserTimestamps();
         updateUserRequests();
+        markApplied(0);
+        // A delta is logged like writes, and a full checkpoint, or a delta which adds keys, begins the log again.
+        if (delta && added == 0) {
+            commitLog();
+        } else {
+            compactLog();
+        }
+        if (!restored) {
+            restored = true;
+            // The checkpoint may arrive before the membership, when the primary replica sends it at once.
+            statistics.set("restore.millis", joinedNanos == 0 ? 0 : (System.nanoTime() - joinedNanos) / 1000000);
+            setReady();
+        }
         updated = true;
         
         synchronized(updateObj) {
@@ -319,11 +502,47 @@ public class PassiveReplica extends Replica {
     private void updateUserRequests() {
         List<Thread> threads = new ArrayList<Thread>(userTimestamps.size());
         for (String user : userTimestamps.keySet()) {
-            threads.add(new Thread(new UserRequestsUpdater(user, userRequests.get(user), userTimestamps.get(user))));
+            threads.add(new Thread(createUserRequestsUpdater(user, userTimestamps.get(user))));
         }
         startAndJoinThreads(threads);
     }
     
+    /**
+     * Creates an updater which removes the requests of a user covered by a checkpoint.
+     * @param user user
+     * @param targetTimestamp timestamp of the latest request of the user in the checkpoint
+     * @return user requests updater
+     */
+    Runnable createUserRequestsUpdater(String user, long targetTimestamp) {
+        return new UserRequestsUpdater(user, userRequests.get(user), targetTimestamp);
+    }
+    
+    /**
+     * Makes the checkpoint sender send the next checkpoint without waiting for the checkpoint interval.
+     */
+    private void requestCheckpoint() {
+        synchronized(checkpointObj) {
+            checkpointRequested = true;
+            checkpointObj.notify();
+        }
+    }
+    
+    /**
+     * Waits for the checkpoint interval, or until a checkpoint is requested.
+     */
+    private void waitForCheckpoint() {
+        synchronized(checkpointObj) {
+            if (!checkpointRequested) {
+                try {
+                    checkpointObj.wait(checkpointInterval);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            checkpointRequested = false;
+        }
+    }
+    
     /**
      * Waits for update.
      */
@@ -377,33 +596,85 @@ public class PassiveReplica extends Replica {
      */
     private class CheckpointSender implements Runnable {
         /**
-         * Primary replica sends checkpoint to backups periodically.
+         * Primary replica sends checkpoint to backups periodically, and at once when a backup replica joins.
          */
         @Override
         public void run() {
             printLog("Launch checkpoint sender.");
-            String request;
+            InstrumentedReadWriteLock.setOperation("CheckpointSender");
+            CounterStore snapshot;
+            Map<String, Long> loggedTimestamps;
+            Set<String> changedKeys;
+            long sequence;
+            long position;
+            long operations;
+            Map<String, String> responses;
             while (true) {
-                dataLock.readLock().lock();
+                Tracer.Span span = tracer.startSpan("Checkpoint", Tracer.KIND.LOCAL, null);
+                // The write lock waits for writers in flight and holds new ones only while the data is copied in constant time, so that the snapshot is consistent with the timestamps and the changed keys.
+                dataLock.writeLock().lock();
                 try {
-                    request = new StringBuilder("Checkpoint|").append(serializeData()).append('|').append(serializeUserTimestamps()).toString();
+                    snapshot = data.copy();
+                    loggedTimestamps = copyLoggedTimestamps();
+                    changedKeys = dirtyKeys;
+                    dirtyKeys = ConcurrentHashMap.newKeySet();
+                    sequence = rotateLog();
+                    position = getLogPosition();
+                    operations = appliedOperations.sum();
                     userTimestamps.clear();
                 } finally {
-                    dataLock.readLock().unlock();
+                    dataLock.writeLock().unlock();
                 }
+                checkpointSequence++;
                 
+                // A backup which acknowledged the previous checkpoint receives only the changed keys, and others receive the full checkpoint.
+                // Each is serialized once, when the first backup needs it.
+                Map<String, String> requests = new HashMap<String, String>();
+                String fullRequest = null;
+                String deltaRequest = null;
                 membershipLock.readLock().lock();
                 try {
-                    sendRequestToGroup(membership, name, request);
+                    for (String backup : membership) {
+                        if (backup.equals(name)) {
+                            continue;
+                        }
+                        Long acknowledged = checkpointSequences.get(backup);
+                        if (acknowledged != null && acknowledged == checkpointSequence - 1) {
+                            if (deltaRequest == null) {
+                                deltaRequest = new StringBuilder("Checkpoint|").append(checkpointSequence).append(',').append(checkpointSequence - 1).append('|')
+                                               .append(serializeData(snapshot, changedKeys, loggedTimestamps)).toString();
+                                statistics.add("checkpoint.delta_keys", changedKeys.size());
+                            }
+                            requests.put(backup, deltaRequest);
+                            statistics.add("checkpoint.delta", 1);
+                            statistics.add("checkpoint.bytes", deltaRequest.length());
+                        } else {
+                            if (fullRequest == null) {
+                                fullRequest = new StringBuilder("Checkpoint|").append(checkpointSequence).append('|')
+                                              .append(serializeData(snapshot, null, loggedTimestamps)).toString();
+                            }
+                            requests.put(backup, fullRequest);
+                            statistics.add("checkpoint.full", 1);
+                            statistics.add("checkpoint.bytes", fullRequest.length());
+                        }
+                    }
+                    responses = sendRequestsToGroup(requests);
                 } finally {
                     membershipLock.readLock().unlock();
                 }
-                
-                try {
-                    Thread.sleep(checkpointInterval);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                for (String backup : responses.keySet()) {
+                    if ("ACK".equals(responses.get(backup))) {
+                        checkpointOperations.put(backup, operations);
+                        checkpointSequences.put(backup, checkpointSequence);
+                    } else if ("NACK".equals(responses.get(backup))) {
+                        requestCheckpoint();
+                    }
                 }
+                // The snapshot of the checkpoint compacts the write-ahead log after it is sent.
+                compactLog(sequence, position, snapshot, loggedTimestamps);
+                tracer.finishSpan(span);
+                
+                waitForCheckpoint();
             }
         }
     }
@@ -440,6 +711,7 @@ public class PassiveReplica extends Replica {
             printLog(new StringBuilder("Launch user requests re-handler for ").append(user).append('.').toString());
             while (!requests.isEmpty()) {
                 String request = requests.poll();
+                userRequestsMonitor.remove(1, QUEUE_NODE_BYTES + estimateBytes(request));
                 String key = request.substring(request.indexOf('|') + 1, request.indexOf(','));
                 
                 switch (getRequestType(request)) {
@@ -512,6 +784,7 @@ public class PassiveReplica extends Replica {
                     return;
                 }
                 requests.poll();
+                userRequestsMonitor.remove(1, QUEUE_NODE_BYTES + estimateBytes(request));
                 printLog(new StringBuilder("Remove ").append(request).append(" from ").append(user).append('.').toString());
             }
         }
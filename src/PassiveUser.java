@@ -9,7 +9,7 @@ public class PassiveUser extends User {
     /**
      * Primary replica.
      */
-     private String primaryReplica;
+     private volatile String primaryReplica;
     
     /**
      * Constructs a passive user.
@@ -27,6 +27,7 @@ public class PassiveUser extends User {
     public PassiveUser(String name, String logName) {
         super(name, logName);
         this.primaryReplica = "";
+        start(PassiveUser.class);
     }
     
     /**
@@ -1,7 +1,14 @@
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -14,6 +21,46 @@ public class Replica extends FaultDetector {
      * Default checkpoint interval.
      */
     protected static final int DEFAULT_CHECKPOINT_INTERVAL = 5000;
+    /**
+     * Default threshold of buffer alarms in bytes.
+     */
+    protected static final long DEFAULT_BUFFER_ALARM_BYTES = 64L << 20;
+    /**
+     * Default interval of hot key reports.
+     */
+    protected static final int DEFAULT_HOT_KEY_REPORT_INTERVAL = 10000;
+    /**
+     * Default interval of lag reports.
+     */
+    protected static final int DEFAULT_LAG_REPORT_INTERVAL = 5000;
+    /**
+     * Default threshold of lag alarms in operations.
+     */
+    protected static final long DEFAULT_LAG_ALARM_OPERATIONS = 1000;
+    /**
+     * Default threshold of lag alarms in milliseconds.
+     */
+    protected static final long DEFAULT_LAG_ALARM_MILLIS = 30000;
+    /**
+     * Default number of slots of the mapped data store.
+     */
+    protected static final int DEFAULT_DATA_STORE_SLOTS = 65536;
+    /**
+     * Default interval between forces of the write-ahead log with the interval policy in milliseconds.
+     */
+    protected static final int DEFAULT_WAL_FSYNC_INTERVAL = 1000;
+    /**
+     * Default commit window of the write-ahead log in microseconds.
+     */
+    protected static final int DEFAULT_WAL_COMMIT_WINDOW = 0;
+    /**
+     * Default size of a segment of the write-ahead log which triggers a compaction in bytes.
+     */
+    protected static final long DEFAULT_WAL_COMPACT_BYTES = 64L << 20;
+    /**
+     * Number of hot keys in each report.
+     */
+    private static final int HOT_KEYS = 10;
     /**
      * Whether this is the primary replica.
      */
@@ -21,7 +68,31 @@ public class Replica extends FaultDetector {
     /**
      * Data.
      */
-    protected Map<String, Integer> data;
+    protected CounterStore data;
+    /**
+     * Kind of the data store, heap or mapped.
+     */
+    protected String dataStore;
+    /**
+     * Write-ahead log of mutations of data; null if disabled.
+     */
+    protected WriteAheadLog wal;
+    /**
+     * Size of a segment of the write-ahead log which triggers a compaction in bytes.
+     */
+    private long walCompactBytes;
+    /**
+     * True if a compaction triggered by the size of the write-ahead log is running.
+     */
+    private final AtomicBoolean compacting;
+    /**
+     * True if data is recovered from the write-ahead log of a previous run.
+     */
+    protected boolean recovered;
+    /**
+     * User timestamps recovered from the write-ahead log of a previous run.
+     */
+    protected final Map<String, Long> recoveredTimestamps;
     /**
      * Alive replicas.
      */
@@ -32,12 +103,74 @@ public class Replica extends FaultDetector {
     protected int checkpointInterval;
     /**
      * Lock for data.
+     * Writers of user requests hold the read lock, because the data updates values atomically; the write lock is held to change keys or take a consistent snapshot.
      */
-    protected final ReentrantReadWriteLock dataLock;
+    protected final InstrumentedReadWriteLock dataLock;
     /**
      * Lock for membership.
      */
     protected final ReentrantReadWriteLock membershipLock;
+    /**
+     * Threshold of buffer alarms in bytes.
+     * When the estimated size of a buffer exceeds the threshold, a warning is written in the log.
+     */
+    protected long bufferAlarmBytes;
+    /**
+     * Interval of hot key reports.
+     */
+    private int hotKeyReportInterval;
+    /**
+     * Sketch of keys by number of requests.
+     */
+    private final HotKeySketch requestSketch;
+    /**
+     * Sketch of keys by wait time for the data lock in microseconds.
+     */
+    private final HotKeySketch lockWaitSketch;
+    /**
+     * Latest report of hot keys by request rate.
+     */
+    private volatile String requestHotKeys;
+    /**
+     * Latest report of hot keys by lock wait rate.
+     */
+    private volatile String lockWaitHotKeys;
+    /**
+     * Number of write operations applied to the data by this replica.
+     */
+    protected final LongAdder appliedOperations;
+    /**
+     * Time when the data is applied latest in nanoseconds.
+     */
+    private volatile long lastAppliedNanos;
+    /**
+     * Interval of lag reports.
+     */
+    private int lagReportInterval;
+    /**
+     * Threshold of lag alarms in operations.
+     */
+    private long lagAlarmOperations;
+    /**
+     * Threshold of lag alarms in milliseconds.
+     */
+    private long lagAlarmMillis;
+    /**
+     * Name of the replica manager, which is the source of membership requests; null if unknown.
+     */
+    protected volatile String replicaManager;
+    /**
+     * The workload capture which records user requests received by this replica.
+     */
+    protected WorkloadCapture capture;
+    /**
+     * Lag monitor, which is launched when this replica becomes the primary.
+     */
+    private final LagMonitor lagMonitor;
+    /**
+     * True if the lag monitor is launched.
+     */
+    private final AtomicBoolean lagMonitorLaunched;
     
     /**
      * Constructs a replica.
@@ -79,12 +212,69 @@ public class Replica extends FaultDetector {
         super(name, heartbeatInterval, heartbeatTolerance, logName);
         Map<String, String> parameters = getParameters("replica.conf");
         this.primary = false;
-        this.data = new HashMap<String, Integer>();
-        for (String str : parameters.get("data").split(",")) {
-            int index = str.indexOf(':');
-            String key = str.substring(0, index).trim();
-            int value = Integer.valueOf(str.substring(index + 1).trim());
-            this.data.put(key, value);
+        String dataStoreStr = parameters.get("data_store");
+        this.dataStore = dataStoreStr == null ? "heap" : dataStoreStr;
+        if (dataStore.equals("mapped")) {
+            String slotsStr = parameters.get("data_store_slots");
+            String fileName = name + "_data.bin";
+            try {
+                this.data = new MappedCounterStore(fileName, slotsStr == null ? DEFAULT_DATA_STORE_SLOTS : Integer.valueOf(slotsStr));
+            } catch (IOException e) {
+                e.printStackTrace();
+                printLog(new StringBuilder("Error: Cannot map data file ").append(fileName).append('!').toString());
+                System.exit(0);
+            }
+        } else if (dataStore.equals("heap")) {
+            this.data = new HeapCounterStore();
+        } else {
+            printLog(new StringBuilder("Error: Invalid data store ").append(dataStore).append('!').toString());
+            System.exit(0);
+        }
+        String walStr = parameters.get("wal");
+        String walFsync = parameters.get("wal_fsync");
+        walFsync = walFsync == null ? WriteAheadLog.FSYNC_BATCH : walFsync;
+        String walFsyncIntervalStr = parameters.get("wal_fsync_interval");
+        int walFsyncInterval = walFsyncIntervalStr == null ? DEFAULT_WAL_FSYNC_INTERVAL : Integer.valueOf(walFsyncIntervalStr);
+        String walCommitWindowStr = parameters.get("wal_commit_window");
+        int walCommitWindow = walCommitWindowStr == null ? DEFAULT_WAL_COMMIT_WINDOW : Integer.valueOf(walCommitWindowStr);
+        String walCompactBytesStr = parameters.get("wal_compact_bytes");
+        this.walCompactBytes = walCompactBytesStr == null ? DEFAULT_WAL_COMPACT_BYTES : Long.valueOf(walCompactBytesStr);
+        this.compacting = new AtomicBoolean();
+        this.recoveredTimestamps = new HashMap<String, Long>();
+        if ("on".equals(walStr)) {
+            if (!walFsync.equals(WriteAheadLog.FSYNC_BATCH) && !walFsync.equals(WriteAheadLog.FSYNC_INTERVAL) && !walFsync.equals(WriteAheadLog.FSYNC_NONE)) {
+                printLog(new StringBuilder("Error: Invalid fsync policy ").append(walFsync).append('!').toString());
+                System.exit(0);
+            }
+            this.wal = new WriteAheadLog(name, walFsync, walFsyncInterval, walCommitWindow, statistics);
+            try {
+                this.recovered = wal.start(data, recoveredTimestamps);
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                e.printStackTrace();
+                printLog("Error: Cannot recover from write-ahead log!");
+                System.exit(0);
+            }
+        } else if (walStr != null && !walStr.equals("off")) {
+            printLog(new StringBuilder("Error: Invalid write-ahead log ").append(walStr).append('!').toString());
+            System.exit(0);
+        }
+        if (recovered) {
+            // The snapshot and the records after it are the latest data of this replica, and are used instead of the initial values.
+            printLog(new StringBuilder("Recover ").append(data.size()).append(" keys from the write-ahead log at position ").append(wal.getPosition()).append('.').toString());
+        } else if (data.isEmpty()) {
+            for (String str : parameters.get("data").split(",")) {
+                int index = str.indexOf(':');
+                String key = str.substring(0, index).trim();
+                int value = Integer.valueOf(str.substring(index + 1).trim());
+                putData(key, value);
+            }
+        } else {
+            // The data in a mapped data file survives the restart, and is used instead of the initial values.
+            printLog(new StringBuilder("Load ").append(data.size()).append(" keys from the data file.").toString());
+        }
+        if (wal != null) {
+            // The log begins with a snapshot of the data, before any other thread accesses data.
+            compactLog(rotateLog(), wal.getPosition(), data.copy(), recoveredTimestamps);
         }
         this.membership = new ArrayList<String>();
         if (checkpointInterval > 0) {
@@ -92,42 +282,184 @@ public class Replica extends FaultDetector {
         } else {
             this.checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
         }
-        this.dataLock = new ReentrantReadWriteLock();
-        this.membershipLock = new ReentrantReadWriteLock();
+        this.dataLock = new InstrumentedReadWriteLock("dataLock", statistics);
+        this.membershipLock = new InstrumentedReadWriteLock("membershipLock", statistics);
+        String bufferAlarmBytesStr = parameters.get("buffer_alarm_bytes");
+        this.bufferAlarmBytes = bufferAlarmBytesStr == null ? DEFAULT_BUFFER_ALARM_BYTES : Long.valueOf(bufferAlarmBytesStr);
+        String hotKeyReportIntervalStr = parameters.get("hot_key_report_interval");
+        this.hotKeyReportInterval = hotKeyReportIntervalStr == null ? DEFAULT_HOT_KEY_REPORT_INTERVAL : Integer.valueOf(hotKeyReportIntervalStr);
+        this.requestSketch = new HotKeySketch(HOT_KEYS);
+        this.lockWaitSketch = new HotKeySketch(HOT_KEYS);
+        this.requestHotKeys = "";
+        this.lockWaitHotKeys = "";
+        this.membershipSummary = "";
+        this.appliedOperations = new LongAdder();
+        this.lastAppliedNanos = System.nanoTime();
+        String lagReportIntervalStr = parameters.get("lag_report_interval");
+        this.lagReportInterval = lagReportIntervalStr == null ? DEFAULT_LAG_REPORT_INTERVAL : Integer.valueOf(lagReportIntervalStr);
+        String lagAlarmOperationsStr = parameters.get("lag_alarm_operations");
+        this.lagAlarmOperations = lagAlarmOperationsStr == null ? DEFAULT_LAG_ALARM_OPERATIONS : Long.valueOf(lagAlarmOperationsStr);
+        String lagAlarmMillisStr = parameters.get("lag_alarm_millis");
+        this.lagAlarmMillis = lagAlarmMillisStr == null ? DEFAULT_LAG_ALARM_MILLIS : Long.valueOf(lagAlarmMillisStr);
         
         printParameters();
+        
+        HotKeyReporter hotKeyReporter = new HotKeyReporter();
+        statistics.register(hotKeyReporter);
+        new Thread(hotKeyReporter).start();
+        
+        this.capture = new WorkloadCapture(System.getenv("ENABLE_CAPTURE") == null ? null : name + "_capture.bin");
+        this.lagMonitor = new LagMonitor();
+        this.lagMonitorLaunched = new AtomicBoolean();
+        statistics.register(lagMonitor);
+        
+        start(Replica.class);
+    }
+    
+    /**
+     * Launches the lag monitor if it is not launched.
+     * Only the primary replica measures lags, so the lag monitor is launched when this replica becomes the primary.
+     */
+    protected void launchLagMonitor() {
+        if (lagMonitorLaunched.compareAndSet(false, true)) {
+            new Thread(lagMonitor).start();
+        }
     }
     
     /**
      * Serializes data.
-     * @return string representation of data
+     * @return Base64 encoded snapshot of data
      */
     protected String serializeData() {
-        if (data.isEmpty()) {
-            return "";
-        }
-        
-        StringBuilder sb = new StringBuilder();
-        for (String key : data.keySet()) {
-            sb.append(key).append(',').append(data.get(key)).append(',');
-        }
-        sb.setLength(sb.length() - 1);
-        return sb.toString();
+        return serializeData(data, null, null);
+    }
+    
+    /**
+     * Serializes a snapshot of data.
+     * @param snapshot snapshot of data
+     * @return Base64 encoded snapshot of data
+     */
+    protected static String serializeData(CounterStore snapshot) {
+        return serializeData(snapshot, null, null);
+    }
+    
+    /**
+     * Serializes a snapshot of data and user timestamps in the snapshot format.
+     * @param snapshot snapshot of data
+     * @param keys keys of the entries to serialize, like the changed ones in a delta; if null, all entries
+     * @param userTimestamps user timestamps; if null, none
+     * @return Base64 encoded snapshot of data and user timestamps
+     */
+    protected static String serializeData(CounterStore snapshot, Collection<String> keys, Map<String, Long> userTimestamps) {
+        return SnapshotFormat.encode(snapshot, keys, userTimestamps);
     }
     
     /**
      * Deserializes data.
-     * @param s string representation of data
+     * @param s Base64 encoded snapshot of data
+     * @return true if the snapshot is valid; otherwise, data is not changed
+     */
+    protected boolean deserializeData(String s) {
+        return deserializeData(s, null);
+    }
+    
+    /**
+     * Deserializes data and user timestamps.
+     * All blocks of the snapshot are checked before data is cleared, so that a corrupted snapshot does not destroy data.
+     * @param s Base64 encoded snapshot of data and user timestamps
+     * @param userTimestamps map to put user timestamps into; if null, user timestamps are ignored
+     * @return true if the snapshot is valid; otherwise, data is not changed
      */
-    protected void deserializeData(String s) {
+    protected boolean deserializeData(String s, Map<String, Long> userTimestamps) {
+        SnapshotFormat.Reader reader = decodeData(s);
+        if (reader == null) {
+            return false;
+        }
         data.clear();
-        if (s.length() > 0) {
-            String[] strs = s.split(",");
-            for (int i = 0; i < strs.length; i += 2) {
-                String key = strs[i];
-                int value = Integer.valueOf(strs[i + 1]);
-                data.put(key, value);
+        try {
+            for (int tag = reader.next(); tag != SnapshotFormat.END; tag = reader.next()) {
+                if (tag == SnapshotFormat.ENTRY) {
+                    putData(reader.getKey(), (int) reader.getValue());
+                } else if (userTimestamps != null) {
+                    userTimestamps.put(reader.getKey(), reader.getValue());
+                }
             }
+        } catch (IOException e) {
+            // The snapshot has been checked.
+            throw new IllegalStateException(e);
+        }
+        return true;
+    }
+    
+    /**
+     * Applies a delta of data and user timestamps, which maps changed keys to their values, without clearing data.
+     * With the write-ahead log, each change is logged as an addition, so that the log is not compacted for each delta.
+     * An added key is not logged, so the caller compacts the log after releasing the lock if any key is added.
+     * This thread must hold the write lock for data.
+     * @param s Base64 encoded delta of data and user timestamps
+     * @param userTimestamps map to put user timestamps into
+     * @return number of added keys, or -1 if the delta is corrupted, in which case data is not changed
+     */
+    protected int applyDelta(String s, Map<String, Long> userTimestamps) {
+        SnapshotFormat.Reader reader = decodeData(s);
+        if (reader == null) {
+            return -1;
+        }
+        int added = 0;
+        try {
+            for (int tag = reader.next(); tag != SnapshotFormat.END; tag = reader.next()) {
+                if (tag == SnapshotFormat.TIMESTAMP) {
+                    userTimestamps.put(reader.getKey(), reader.getValue());
+                    continue;
+                }
+                
+                String key = reader.getKey();
+                int value = (int) reader.getValue();
+                int slot = data.find(key);
+                if (slot < 0) {
+                    putData(key, value);
+                    added++;
+                } else if (data.get(slot) != value) {
+                    int delta = value - data.get(slot);
+                    data.add(slot, delta);
+                    if (wal != null) {
+                        wal.appendAdd(key, delta);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The delta has been checked.
+            throw new IllegalStateException(e);
+        }
+        return added;
+    }
+    
+    /**
+     * Decodes a snapshot, after checking all blocks of it.
+     * @param s Base64 encoded snapshot
+     * @return reader of the snapshot, or null if it is corrupted
+     */
+    private SnapshotFormat.Reader decodeData(String s) {
+        try {
+            return SnapshotFormat.decode(s);
+        } catch (IOException e) {
+            printLog(new StringBuilder("Error: ").append(e.getMessage()).append('!').toString());
+            return null;
+        }
+    }
+    
+    /**
+     * Maps the key to the value in the data.
+     * This thread must hold the write lock for data, or be the only thread to access data.
+     * @param key key
+     * @param value value
+     */
+    protected void putData(String key, int value) {
+        try {
+            data.put(key, value);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            printLog(new StringBuilder("Error: ").append(e.getMessage()).append('!').toString());
+            System.exit(0);
         }
     }
     
@@ -143,6 +475,7 @@ public class Replica extends FaultDetector {
                 membership.add(member);
             }
         }
+        membershipSummary = s.replace(',', ' ');
     }
     
     /**
@@ -151,41 +484,209 @@ public class Replica extends FaultDetector {
      * @return the value to which the specified key is mapped, or null if the data contains no mapping for the key
      */
     protected Integer get(String key) {
-        return data.get(key);
+        int slot = data.find(key);
+        return slot < 0 ? null : data.get(slot);
     }
     
     /**
      * Increments the value to which the specified key is mapped.
+     * This thread must hold the lock for data, either the read lock or the write lock.
      * @param key key
      * @return the value to which the specified key is mapped after the increment, or null if the data contains no mapping for the key
      */
     protected Integer increment(String key) {
-        Integer value = data.get(key);
-        if (value == null) {
+        int slot = data.find(key);
+        if (slot < 0) {
             return null;
         }
         
-        value++;
-        data.put(key, value);
+        int value = data.add(slot, 1);
+        if (wal != null) {
+            wal.appendAdd(key, 1);
+        }
+        markApplied(1);
         return value;
     }
     
     /**
      * Decrements the value to which the specified key is mapped.
+     * This thread must hold the lock for data, either the read lock or the write lock.
      * @param key key
      * @return the value to which the specified key is mapped after the decrement, or null if the data contains no mapping for the key
      */
     protected Integer decrement(String key) {
-        Integer value = data.get(key);
-        if (value == null) {
+        int slot = data.find(key);
+        if (slot < 0) {
             return null;
         }
         
-        value--;
-        data.put(key, value);
+        int value = data.add(slot, -1);
+        if (wal != null) {
+            wal.appendAdd(key, -1);
+        }
+        markApplied(1);
         return value;
     }
     
+    /**
+     * Waits until mutations of data by this thread are durable in the write-ahead log, if it is enabled.
+     * Call it after releasing the lock for data and before sending the response, so that concurrent mutations share one force.
+     * If the log grows beyond the threshold, a compaction is launched.
+     */
+    protected void commitLog() {
+        if (wal == null) {
+            return;
+        }
+        
+        wal.commit();
+        if (wal.getSegmentBytes() > walCompactBytes && compacting.compareAndSet(false, true)) {
+            new Thread(new LogCompactor()).start();
+        }
+    }
+    
+    /**
+     * Rotates the write-ahead log for a snapshot of data, if it is enabled.
+     * This thread must hold the write lock for data, and take the snapshot in the same critical section.
+     * @return sequence number of the latest mutation in the snapshot, or -1 if the log is disabled
+     */
+    protected long rotateLog() {
+        return wal == null ? -1 : wal.rotate();
+    }
+    
+    /**
+     * Gets the latest position of data in the write-ahead log.
+     * This thread must hold the write lock for data to take it with a snapshot.
+     * @return position, or 0 if the log is disabled
+     */
+    protected long getLogPosition() {
+        return wal == null ? 0 : wal.getPosition();
+    }
+    
+    /**
+     * Compacts the write-ahead log with a snapshot of data, if it is enabled.
+     * This thread must not hold the lock for data.
+     * @param sequence sequence number returned by the rotation
+     * @param position position taken with the rotation
+     * @param snapshot snapshot of data taken with the rotation
+     * @param userTimestamps snapshot of user timestamps taken with the rotation
+     */
+    protected void compactLog(long sequence, long position, CounterStore snapshot, Map<String, Long> userTimestamps) {
+        if (wal == null) {
+            return;
+        }
+        
+        try {
+            wal.compact(sequence, position, snapshot, userTimestamps);
+        } catch (IOException e) {
+            e.printStackTrace();
+            printLog("Error: Cannot compact write-ahead log!");
+            System.exit(0);
+        }
+    }
+    
+    /**
+     * Compacts the write-ahead log with a snapshot of the current data, if it is enabled.
+     * This thread must not hold the lock for data.
+     */
+    protected void compactLog() {
+        if (wal == null) {
+            return;
+        }
+        
+        long sequence;
+        long position;
+        CounterStore snapshot;
+        Map<String, Long> userTimestamps;
+        dataLock.writeLock().lock();
+        try {
+            snapshot = data.copy();
+            userTimestamps = copyLoggedTimestamps();
+            sequence = rotateLog();
+            position = getLogPosition();
+        } finally {
+            dataLock.writeLock().unlock();
+        }
+        compactLog(sequence, position, snapshot, userTimestamps);
+    }
+    
+    /**
+     * Copies the user timestamps which are logged with data.
+     * This thread must hold the write lock for data.
+     * @return copy of user timestamps; a basic replica has none
+     */
+    protected Map<String, Long> copyLoggedTimestamps() {
+        return new HashMap<String, Long>();
+    }
+    
+    /**
+     * Marks that the data is applied now.
+     * @param operations number of write operations applied
+     */
+    protected void markApplied(long operations) {
+        appliedOperations.add(operations);
+        long now = System.nanoTime();
+        // The time is written at most once per millisecond, so that concurrent writers rarely write the same cache line.
+        if (operations == 0 || now - lastAppliedNanos >= 1000000) {
+            lastAppliedNanos = now;
+        }
+    }
+    
+    /**
+     * Gets the time since the data is applied latest.
+     * @return time in milliseconds
+     */
+    protected long getAppliedAge() {
+        return (System.nanoTime() - lastAppliedNanos) / 1000000;
+    }
+    
+    /**
+     * Measures the lag of a backup replica behind this primary replica.
+     * @param backup backup replica
+     * @param backupStatistics statistics of the backup replica
+     * @return operations behind, milliseconds behind and pending requests, or null if there is no replication
+     */
+    protected long[] measureLag(String backup, Map<String, String> backupStatistics) {
+        return null;
+    }
+    
+    /**
+     * Gets a value from statistics of another node.
+     * @param nodeStatistics statistics of another node
+     * @param name name
+     * @return value, or 0 if absent
+     */
+    protected static long getStatistic(Map<String, String> nodeStatistics, String name) {
+        String value = nodeStatistics.get(name);
+        return value == null ? 0 : Long.valueOf(value);
+    }
+    
+    /**
+     * Gets the role of this node in the distributed system.
+     * @return role of this node
+     */
+    @Override
+    protected String getRole() {
+        return primary ? "primary" : "backup";
+    }
+    
+    /**
+     * Records the latency of a user request.
+     * @param startNanos time when the user request is received in nanoseconds
+     */
+    protected void recordUserLatency(long startNanos) {
+        statistics.recordLatency("user_latency", (System.nanoTime() - startNanos) / 1000);
+    }
+    
+    /**
+     * Records a request on the key in the hot key sketches.
+     * This thread must have acquired the lock for data for the request.
+     * @param key key
+     */
+    protected void recordHotKey(String key) {
+        requestSketch.add(key, 1);
+        lockWaitSketch.add(key, dataLock.getLastWaitNanos() / 1000);
+    }
+    
     /**
      * Sets checkpoint interval.
      * @param checkpointInterval checkpoint interval
@@ -218,14 +719,23 @@ public class Replica extends FaultDetector {
             handleCheckpointIntervalRequest(source, request);
             break;
         case GET:
+            capture.record(source, request);
             handleGetRequest(source, request);
             break;
         case INCREMENT:
+            capture.record(source, request);
             handleIncrementRequest(source, request);
             break;
         case DECREMENT:
+            capture.record(source, request);
             handleDecrementRequest(source, request);
             break;
+        case STATISTICS:
+            handleStatisticsRequest(source, request);
+            break;
+        case READY:
+            handleReadyRequest(source, request);
+            break;
         default:
             printLog(new StringBuilder("Error: Invalid request ").append(request).append('!').toString());
             System.exit(0);
@@ -241,6 +751,7 @@ public class Replica extends FaultDetector {
     protected void handleMembershipRequest(String source, String request) {
         int index = request.indexOf('|');
         String membershipStr = index == request.length() - 1 ? "" : request.substring(index + 1);
+        replicaManager = source;
         membershipLock.writeLock().lock();
         try {
             deserializeMembership(membershipStr);
@@ -270,6 +781,7 @@ public class Replica extends FaultDetector {
      * @param request request
      */
     protected void handleGetRequest(String source, String request) {
+        long start = System.nanoTime();
         String key = request.substring(request.indexOf('|') + 1, request.indexOf(','));
         Integer value;
         dataLock.readLock().lock();
@@ -278,8 +790,10 @@ public class Replica extends FaultDetector {
         } finally {
             dataLock.readLock().unlock();
         }
+        recordHotKey(key);
         String response = value == null ? "No such key." : String.valueOf(value);
         sendResponse(source, response);
+        recordUserLatency(start);
     }
     
     /**
@@ -289,16 +803,20 @@ public class Replica extends FaultDetector {
      * @param request request
      */
     protected void handleIncrementRequest(String source, String request) {
+        long start = System.nanoTime();
         String key = request.substring(request.indexOf('|') + 1, request.indexOf(','));
         Integer value;
-        dataLock.writeLock().lock();
+        dataLock.readLock().lock();
         try {
             value = increment(key);
         } finally {
-            dataLock.writeLock().unlock();
+            dataLock.readLock().unlock();
         }
+        commitLog();
+        recordHotKey(key);
         String response = value == null ? "No such key." : String.valueOf(value);
         sendResponse(source, response);
+        recordUserLatency(start);
     }
     
     /**
@@ -308,16 +826,20 @@ public class Replica extends FaultDetector {
      * @param request request
      */
     protected void handleDecrementRequest(String source, String request) {
+        long start = System.nanoTime();
         String key = request.substring(request.indexOf('|') + 1, request.indexOf(','));
         Integer value;
-        dataLock.writeLock().lock();
+        dataLock.readLock().lock();
         try {
             value = decrement(key);
         } finally {
-            dataLock.writeLock().unlock();
+            dataLock.readLock().unlock();
         }
+        commitLog();
+        recordHotKey(key);
         String response = value == null ? "No such key." : String.valueOf(value);
         sendResponse(source, response);
+        recordUserLatency(start);
     }
     
     /**
@@ -325,7 +847,14 @@ public class Replica extends FaultDetector {
      */
     private void printParameters() {
         StringBuilder sb = new StringBuilder();
-        sb.append("checkpoint interval = ").append(this.checkpointInterval);
+        sb.append("data store = ").append(this.dataStore).append('\n');
+        sb.append("write-ahead log = ").append(wal == null ? "off" : "on").append('\n');
+        sb.append("checkpoint interval = ").append(this.checkpointInterval).append('\n');
+        sb.append("buffer alarm bytes = ").append(this.bufferAlarmBytes).append('\n');
+        sb.append("hot key report interval = ").append(this.hotKeyReportInterval).append('\n');
+        sb.append("lag report interval = ").append(this.lagReportInterval).append('\n');
+        sb.append("lag alarm operations = ").append(this.lagAlarmOperations).append('\n');
+        sb.append("lag alarm millis = ").append(this.lagAlarmMillis);
         printLog(sb.toString());
     }
     
@@ -336,9 +865,9 @@ public class Replica extends FaultDetector {
         StringBuilder sb = new StringBuilder();
         sb.append("data = ");
         if (!this.data.isEmpty()) {
-            for (String key : this.data.keySet()) {
-                int value = this.data.get(key);
-                sb.append(key).append(':').append(value).append(", ");
+            for (int slot = this.data.next(-1); slot >= 0; slot = this.data.next(slot)) {
+                this.data.appendKey(sb, slot);
+                sb.append(':').append(this.data.get(slot)).append(", ");
             }
             sb.setLength(sb.length() - 2);
         }
@@ -359,6 +888,349 @@ public class Replica extends FaultDetector {
         printLog(sb.toString());
     }
     
+    /**
+     * Estimates the heap size of a string.
+     * Strings are assumed to be compact, with one byte for each character.
+     * @param s string
+     * @return estimated size in bytes
+     */
+    protected static long estimateBytes(String s) {
+        return 24 + ((16 + s.length() + 7) & ~7);
+    }
+    
+    /**
+     * Buffer monitor which accounts entries and estimated bytes of a buffer.
+     * The high watermarks are tracked, and a warning is written in the log when the estimated bytes exceed the threshold.
+     * The alarm is raised again after the estimated bytes fall below half of the threshold.
+     * buffer.<name>.<entries|bytes|entries_max|bytes_max|alarms>
+     *
+     */
+    protected class BufferMonitor implements Statistics.Reporter {
+        /**
+         * Name of the buffer.
+         */
+        private final String bufferName;
+        /**
+         * Number of entries.
+         */
+        private final AtomicLong entries;
+        /**
+         * Estimated bytes.
+         */
+        private final AtomicLong bytes;
+        /**
+         * High watermark of entries.
+         */
+        private final AtomicLong maxEntries;
+        /**
+         * High watermark of estimated bytes.
+         */
+        private final AtomicLong maxBytes;
+        /**
+         * Number of alarms.
+         */
+        private final AtomicLong alarms;
+        /**
+         * True if the alarm is raised.
+         */
+        private final AtomicBoolean alarmed;
+        
+        /**
+         * Constructs a buffer monitor and registers it in the statistics.
+         * @param bufferName name of the buffer
+         */
+        protected BufferMonitor(String bufferName) {
+            this.bufferName = bufferName;
+            this.entries = new AtomicLong();
+            this.bytes = new AtomicLong();
+            this.maxEntries = new AtomicLong();
+            this.maxBytes = new AtomicLong();
+            this.alarms = new AtomicLong();
+            this.alarmed = new AtomicBoolean();
+            statistics.register(this);
+        }
+        
+        /**
+         * Accounts entries added to the buffer.
+         * @param entryDelta number of entries added
+         * @param byteDelta estimated bytes added
+         */
+        protected void add(long entryDelta, long byteDelta) {
+            update(entries.addAndGet(entryDelta), bytes.addAndGet(byteDelta));
+        }
+        
+        /**
+         * Accounts entries removed from the buffer.
+         * @param entryDelta number of entries removed
+         * @param byteDelta estimated bytes removed
+         */
+        protected void remove(long entryDelta, long byteDelta) {
+            update(entries.addAndGet(-entryDelta), bytes.addAndGet(-byteDelta));
+        }
+        
+        /**
+         * Sets the entries and estimated bytes of the buffer.
+         * @param entryCount number of entries
+         * @param byteCount estimated bytes
+         */
+        protected void set(long entryCount, long byteCount) {
+            entries.set(entryCount);
+            bytes.set(byteCount);
+            update(entryCount, byteCount);
+        }
+        
+        /**
+         * Updates the high watermarks and the alarm.
+         * @param entryCount number of entries
+         * @param byteCount estimated bytes
+         */
+        private void update(long entryCount, long byteCount) {
+            Statistics.updateMax(maxEntries, entryCount);
+            Statistics.updateMax(maxBytes, byteCount);
+            if (byteCount > bufferAlarmBytes) {
+                if (alarmed.compareAndSet(false, true)) {
+                    alarms.incrementAndGet();
+                    printLog(new StringBuilder("Warning: Buffer ").append(bufferName).append(" holds ").append(entryCount)
+                            .append(" entries and ").append(byteCount).append(" bytes, exceeding ").append(bufferAlarmBytes).append(" bytes!").toString());
+                }
+            } else if (byteCount < bufferAlarmBytes / 2) {
+                alarmed.set(false);
+            }
+        }
+        
+        /**
+         * Gets the number of entries.
+         * @return number of entries
+         */
+        protected long getEntries() {
+            return entries.get();
+        }
+        
+        /**
+         * Reports the entries, estimated bytes, high watermarks and number of alarms.
+         * @param statistics a map with names as keys and values as values
+         */
+        @Override
+        public void report(Map<String, String> statistics) {
+            String prefix = "buffer." + bufferName;
+            statistics.put(prefix + ".entries", String.valueOf(entries.get()));
+            statistics.put(prefix + ".bytes", String.valueOf(bytes.get()));
+            statistics.put(prefix + ".entries_max", String.valueOf(maxEntries.get()));
+            statistics.put(prefix + ".bytes_max", String.valueOf(maxBytes.get()));
+            statistics.put(prefix + ".alarms", String.valueOf(alarms.get()));
+        }
+    }
+    
+    /**
+     * Hot key reporter.
+     *
+     */
+    private class HotKeyReporter implements Runnable, Statistics.Reporter {
+        /**
+         * Reports hot keys periodically and resets the sketches.
+         */
+        @Override
+        public void run() {
+            printLog("Launch hot key reporter.");
+            long start = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(hotKeyReportInterval);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                long end = System.nanoTime();
+                long elapsed = Math.max((end - start) / 1000000, 1);
+                start = end;
+                requestHotKeys = serializeHotKeys(requestSketch.getAndReset(), elapsed);
+                lockWaitHotKeys = serializeHotKeys(lockWaitSketch.getAndReset(), elapsed);
+                if (!requestHotKeys.isEmpty()) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("hot keys by requests per second = ").append(requestHotKeys).append('\n');
+                    sb.append("hot keys by lock wait microseconds per second = ").append(lockWaitHotKeys);
+                    printLog(sb.toString());
+                }
+            }
+        }
+        
+        /**
+         * Serializes hot keys with their rates.
+         * <key1>:<rate1> <key2>:<rate2> ...
+         * @param hotKeys hot keys
+         * @param elapsed elapsed time in milliseconds
+         * @return string representation of hot keys
+         */
+        private String serializeHotKeys(List<HotKeySketch.HotKey> hotKeys, long elapsed) {
+            if (hotKeys.isEmpty()) {
+                return "";
+            }
+            
+            StringBuilder sb = new StringBuilder();
+            for (HotKeySketch.HotKey hotKey : hotKeys) {
+                sb.append(hotKey.getKey().replaceAll("[\\s,=:]", "_")).append(':').append(hotKey.getEstimate() * 1000 / elapsed).append(' ');
+            }
+            sb.setLength(sb.length() - 1);
+            return sb.toString();
+        }
+        
+        /**
+         * Reports the latest hot keys.
+         * hotkey.requests
+         * hotkey.lock_wait
+         * @param statistics a map with names as keys and values as values
+         */
+        @Override
+        public void report(Map<String, String> statistics) {
+            statistics.put("hotkey.requests", requestHotKeys);
+            statistics.put("hotkey.lock_wait", lockWaitHotKeys);
+        }
+    }
+    
+    /**
+     * Lag monitor.
+     *
+     */
+    private class LagMonitor implements Runnable, Statistics.Reporter {
+        /**
+         * Latest lags of backup replicas.
+         * Keys are backup replicas. Values are operations behind, milliseconds behind and pending requests.
+         */
+        private volatile Map<String, long[]> lags = new HashMap<String, long[]>();
+        /**
+         * Backup replicas whose lag alarms are raised.
+         */
+        private final Set<String> alarmed = new HashSet<String>();
+        
+        /**
+         * Primary replica measures lags of backups periodically, and reports them to the replica manager.
+         * A warning is written in the log when a backup lags behind more than a threshold.
+         * The alarm is raised again after the lag falls below half of both thresholds.
+         */
+        @Override
+        public void run() {
+            printLog("Launch lag monitor.");
+            InstrumentedReadWriteLock.setOperation("LagMonitor");
+            while (true) {
+                try {
+                    Thread.sleep(lagReportInterval);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                if (!primary) {
+                    lags = new HashMap<String, long[]>();
+                    alarmed.clear();
+                    continue;
+                }
+                
+                List<String> backups;
+                membershipLock.readLock().lock();
+                try {
+                    backups = new ArrayList<String>(membership);
+                } finally {
+                    membershipLock.readLock().unlock();
+                }
+                backups.remove(name);
+                
+                Map<String, long[]> newLags = new HashMap<String, long[]>();
+                Map<String, String> responses = sendRequestToGroup(backups, "Statistics");
+                for (String backup : backups) {
+                    String response = responses.get(backup);
+                    if (response == null) {
+                        continue;
+                    }
+                    long[] lag = measureLag(backup, Statistics.deserialize(response));
+                    if (lag == null) {
+                        continue;
+                    }
+                    newLags.put(backup, lag);
+                    checkAlarm(backup, lag);
+                }
+                alarmed.retainAll(newLags.keySet());
+                lags = newLags;
+                
+                String manager = replicaManager;
+                if (manager != null) {
+                    sendRequest(manager, "Lag|" + serializeLags(newLags));
+                }
+            }
+        }
+        
+        /**
+         * Raises or clears the lag alarm of a backup replica.
+         * @param backup backup replica
+         * @param lag operations behind, milliseconds behind and pending requests
+         */
+        private void checkAlarm(String backup, long[] lag) {
+            if (lag[0] > lagAlarmOperations || lag[1] > lagAlarmMillis) {
+                if (alarmed.add(backup)) {
+                    statistics.add("lag.alarms", 1);
+                    printLog(new StringBuilder("Warning: ").append(backup).append(" lags ").append(lag[0]).append(" operations and ")
+                            .append(lag[1]).append(" milliseconds behind, with ").append(lag[2]).append(" pending requests!").toString());
+                }
+            } else if (lag[0] < lagAlarmOperations / 2 && lag[1] < lagAlarmMillis / 2) {
+                alarmed.remove(backup);
+            }
+        }
+        
+        /**
+         * Serializes lags.
+         * <backup1>,<operations1>,<millis1>,<pending1>;<backup2>,<operations2>,<millis2>,<pending2> ...
+         * @param lags a map with backup replicas as keys and lags as values
+         * @return string representation of lags
+         */
+        private String serializeLags(Map<String, long[]> lags) {
+            if (lags.isEmpty()) {
+                return "";
+            }
+            
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, long[]> entry : lags.entrySet()) {
+                long[] lag = entry.getValue();
+                sb.append(entry.getKey()).append(',').append(lag[0]).append(',').append(lag[1]).append(',').append(lag[2]).append(';');
+            }
+            sb.setLength(sb.length() - 1);
+            return sb.toString();
+        }
+        
+        /**
+         * Reports the applied operations and the latest lags.
+         * applied.operations
+         * applied.age
+         * lag.<backup>.<operations|millis|pending>
+         * @param statistics a map with names as keys and values as values
+         */
+        @Override
+        public void report(Map<String, String> statistics) {
+            statistics.put("applied.operations", String.valueOf(appliedOperations.sum()));
+            statistics.put("applied.age", String.valueOf(getAppliedAge()));
+            for (Map.Entry<String, long[]> entry : lags.entrySet()) {
+                String prefix = "lag." + entry.getKey();
+                long[] lag = entry.getValue();
+                statistics.put(prefix + ".operations", String.valueOf(lag[0]));
+                statistics.put(prefix + ".millis", String.valueOf(lag[1]));
+                statistics.put(prefix + ".pending", String.valueOf(lag[2]));
+            }
+        }
+    }
+    
+    /**
+     * Log compactor.
+     *
+     */
+    private class LogCompactor implements Runnable {
+        /**
+         * Compacts the write-ahead log which grows beyond the threshold, like that of a replica without checkpoints.
+         */
+        @Override
+        public void run() {
+            try {
+                compactLog();
+            } finally {
+                compacting.set(false);
+            }
+        }
+    }
+    
     /**
      * Launches a replica.
      * @param args arguments
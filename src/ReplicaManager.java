@@ -1,6 +1,11 @@
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
@@ -12,6 +17,10 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *
  */
 public class ReplicaManager extends FaultDetector {
+    /**
+     * Refresh interval of the top console.
+     */
+    private static final int TOP_INTERVAL = 1000;
     /**
      * Replicas.
      */
@@ -24,6 +33,11 @@ public class ReplicaManager extends FaultDetector {
      * Lock for membership.
      */
     private final ReentrantReadWriteLock membershipLock;
+    /**
+     * Latest lags of backup replicas reported by the primary replica.
+     * Keys are backup replicas. Values are operations behind, milliseconds behind and pending requests.
+     */
+    private volatile Map<String, long[]> lags;
     
     /**
      * Constructs a replica manager.
@@ -65,9 +79,14 @@ public class ReplicaManager extends FaultDetector {
         this.replicas = new HashSet<String>();
         this.replicas.addAll(Arrays.asList(parameters.get("replicas").split("\\s*,\\s*")));
         this.membership = new LinkedHashSet<String>();
-        this.membershipLock = new ReentrantReadWriteLock();
+        this.membershipLock = new InstrumentedReadWriteLock("membershipLock", statistics);
+        this.membershipSummary = "";
+        this.lags = new HashMap<String, long[]>();
         
         printParameters();
+        statistics.register(new LagReporter());
+        
+        start(ReplicaManager.class);
     }
     
     /**
@@ -87,6 +106,15 @@ public class ReplicaManager extends FaultDetector {
         return sb.toString();
     }
     
+    /**
+     * Gets the role of this node in the distributed system.
+     * @return role of this node
+     */
+    @Override
+    protected String getRole() {
+        return "manager";
+    }
+    
     /**
      * Sets heartbeat interval of this distributed system.
      * @param heartbeatInterval heartbeat interval
@@ -139,6 +167,15 @@ public class ReplicaManager extends FaultDetector {
         case MEMBERSHIP:
             handleMembershipRequest(source, request);
             break;
+        case STATISTICS:
+            handleStatisticsRequest(source, request);
+            break;
+        case LAG:
+            handleLagRequest(source, request);
+            break;
+        case READY:
+            handleReadyRequest(source, request);
+            break;
         default:
             printLog(new StringBuilder("Error: Invalid request ").append(request).append('!').toString());
             System.exit(0);
@@ -153,13 +190,16 @@ public class ReplicaManager extends FaultDetector {
      */
     @Override
     protected void handleAliveRequest(String source, String request) {
+        long aliveNanos = System.nanoTime();
         String node = request.substring(request.indexOf('|') + 1);
         printLog(node + " is alive.");
         if (replicas.contains(node)) {
             membershipLock.writeLock().lock();
             try {
                 if (membership.add(node)) {
+                    membershipSummary = serializeMembership().replace(',', ' ');
                     sendRequestToGroup(membership, "Membership|" + serializeMembership());
+                    new Thread(new ReadinessWaiter(node, aliveNanos)).start();
                 }
             } finally {
                 membershipLock.writeLock().unlock();
@@ -182,6 +222,7 @@ public class ReplicaManager extends FaultDetector {
             membershipLock.writeLock().lock();
             try {
                 if (membership.remove(node)) {
+                    membershipSummary = serializeMembership().replace(',', ' ');
                     sendRequestToGroup(membership, "Membership|" + serializeMembership());
                 }
             } finally {
@@ -208,6 +249,25 @@ public class ReplicaManager extends FaultDetector {
         sendResponse(source, response);
     }
     
+    /**
+     * Handles the lag request from the source.
+     * Lag|<backup1>,<operations1>,<millis1>,<pending1>;<backup2>,<operations2>,<millis2>,<pending2> ...
+     * @param source source of the request in the distributed system
+     * @param request request
+     */
+    protected void handleLagRequest(String source, String request) {
+        int index = request.indexOf('|');
+        Map<String, long[]> newLags = new HashMap<String, long[]>();
+        if (index < request.length() - 1) {
+            for (String str : request.substring(index + 1).split(";")) {
+                String[] strs = str.split(",");
+                newLags.put(strs[0], new long[] {Long.valueOf(strs[1]), Long.valueOf(strs[2]), Long.valueOf(strs[3])});
+            }
+        }
+        lags = newLags;
+        sendResponse(source, "ACK");
+    }
+    
     /**
      * Prints the parameters.
      */
@@ -223,6 +283,153 @@ public class ReplicaManager extends FaultDetector {
         printLog(sb.toString());
     }
     
+    /**
+     * Shows statistics of all nodes in a table refreshed periodically.
+     * Nodes which do not respond are shown as down.
+     * @param interactive true if the table stops refreshing when a line is input
+     */
+    private void top(boolean interactive) {
+        List<String> nodes = new ArrayList<String>(getPeerNames());
+        Collections.sort(nodes);
+        Map<String, Long> previousCounts = new HashMap<String, Long>();
+        long previousTime = System.nanoTime();
+        while (true) {
+            Map<String, String> responses = sendRequestToGroup(nodes, "Statistics");
+            long now = System.nanoTime();
+            double elapsed = (now - previousTime) / 1e9;
+            previousTime = now;
+            
+            Map<String, long[]> currentLags = lags;
+            StringBuilder sb = new StringBuilder("\033[H\033[2J");
+            sb.append(String.format("%-8s %-9s %9s %9s %9s %9s %7s %-8s %-14s %s%n", "NODE", "ROLE", "REQ/S", "P50(ms)", "P99(ms)", "MAX(ms)", "QUEUE", "LOCK", "LAG(ops/ms)", "MEMBERSHIP"));
+            for (String node : nodes) {
+                String response = responses.get(node);
+                if (response == null) {
+                    sb.append(String.format("%-8s %-9s%n", node, "down"));
+                    previousCounts.remove(node);
+                    continue;
+                }
+                Map<String, String> nodeStatistics = Statistics.deserialize(response);
+                String countStr = nodeStatistics.containsKey("user_latency.count") ? nodeStatistics.get("user_latency.count") : nodeStatistics.get("requests");
+                long count = countStr == null ? 0 : Long.valueOf(countStr);
+                Long previousCount = previousCounts.put(node, count);
+                String rate = previousCount == null ? "-" : String.format("%.1f", (count - previousCount) / elapsed);
+                long[] lag = currentLags.get(node);
+                sb.append(String.format("%-8s %-9s %9s %9s %9s %9s %7s %-8s %-14s %s%n",
+                        node,
+                        nodeStatistics.getOrDefault("role", "-"),
+                        rate,
+                        formatMillis(nodeStatistics.get("user_latency.p50")),
+                        formatMillis(nodeStatistics.get("user_latency.p99")),
+                        formatMillis(nodeStatistics.get("user_latency.max")),
+                        nodeStatistics.getOrDefault("buffer.userRequests.entries", "-"),
+                        nodeStatistics.getOrDefault("lock.dataLock.holder", "-"),
+                        lag == null ? "-" : lag[0] + "/" + lag[1],
+                        nodeStatistics.getOrDefault("membership", "")));
+            }
+            System.out.print(sb.toString());
+            System.out.flush();
+            
+            try {
+                Thread.sleep(TOP_INTERVAL);
+                if (interactive && System.in.available() > 0) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Lag reporter.
+     *
+     */
+    private class LagReporter implements Statistics.Reporter {
+        /**
+         * Reports the latest lags of backup replicas.
+         * lag.<backup>.<operations|millis|pending>
+         * @param statistics a map with names as keys and values as values
+         */
+        @Override
+        public void report(Map<String, String> statistics) {
+            for (Map.Entry<String, long[]> entry : lags.entrySet()) {
+                String prefix = "lag." + entry.getKey();
+                long[] lag = entry.getValue();
+                statistics.put(prefix + ".operations", String.valueOf(lag[0]));
+                statistics.put(prefix + ".millis", String.valueOf(lag[1]));
+                statistics.put(prefix + ".pending", String.valueOf(lag[2]));
+            }
+        }
+    }
+    
+    /**
+     * Readiness waiter.
+     *
+     */
+    private class ReadinessWaiter implements Runnable {
+        /**
+         * Replica which joins the membership.
+         */
+        private String replica;
+        /**
+         * Time when the replica is reported alive in nanoseconds.
+         */
+        private long aliveNanos;
+        
+        /**
+         * Constructs a readiness waiter.
+         * @param replica replica which joins the membership
+         * @param aliveNanos time when the replica is reported alive in nanoseconds
+         */
+        ReadinessWaiter(String replica, long aliveNanos) {
+            this.replica = replica;
+            this.aliveNanos = aliveNanos;
+        }
+        
+        /**
+         * Polls the statistics of the replica until it is ready or leaves the membership, and records the time from alive to ready.
+         * The statistics are polled instead of sending a ready request, so the connection to the replica is not held by the wait.
+         * replica_ready
+         */
+        @Override
+        public void run() {
+            while (true) {
+                membershipLock.readLock().lock();
+                try {
+                    if (!membership.contains(replica)) {
+                        return;
+                    }
+                } finally {
+                    membershipLock.readLock().unlock();
+                }
+                String response = sendRequest(replica, "Statistics");
+                if (response != null && "1".equals(Statistics.deserialize(response).get("ready"))) {
+                    long readyMicros = (System.nanoTime() - aliveNanos) / 1000;
+                    statistics.recordLatency("replica_ready", readyMicros);
+                    printLog(new StringBuilder(replica).append(" is ready in ").append(readyMicros / 1000).append(" ms.").toString());
+                    return;
+                }
+                try {
+                    Thread.sleep(heartbeatInterval);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Formats microseconds in milliseconds.
+     * @param micros string representation of microseconds; null if absent
+     * @return string representation of milliseconds
+     */
+    private static String formatMillis(String micros) {
+        return micros == null ? "-" : String.format("%.2f", Long.valueOf(micros) / 1000.0);
+    }
+    
     /**
      * A shell to test the replica manager.
      * @param args arguments
@@ -230,12 +437,17 @@ public class ReplicaManager extends FaultDetector {
     public static void main(String[] args) {
         ReplicaManager node = new ReplicaManager(args[0], args.length >= 2 ? args[1] : null);
         
+        if (System.getenv("ENABLE_TOP") != null) {
+            node.top(false);
+        }
+        
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.println();
             System.out.println("1: set heartbeat interval");
             System.out.println("2: set heartbeat tolerance");
             System.out.println("3: set checkpoint interval");
+            System.out.println("4: top (press Enter to stop)");
             System.out.println("X: kill");
             System.out.println("Please input your operation:");
             String operation = scanner.next();
@@ -254,6 +466,10 @@ public class ReplicaManager extends FaultDetector {
             } else if (operation.equals("3")) {
                 System.out.println("Please input checkpoint interval:");
                 node.setCheckpointInterval(Integer.valueOf(scanner.next()));
+            } else if (operation.equals("4")) {
+                node.top(true);
+                scanner.nextLine();
+                scanner.nextLine();
             } else {
                 System.out.println("Error: Invalid operation!");
                 continue;
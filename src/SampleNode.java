@@ -14,6 +14,7 @@ public class SampleNode extends ConnectionManager {
      */
     public SampleNode(String name, String logName) {
         super(name, true, true, logName);
+        start(SampleNode.class);
     }
     
     /**
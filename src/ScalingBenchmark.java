@@ -0,0 +1,487 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A benchmark which produces scaling curves of throughput and latency with more and more threads, users and CPUs.
+ * Local curves are of contended increments under the read lock for data, as replicas without total order apply them, contended increments under the write lock, as active replicas apply them,
+ * and contended gets under the read lock, run by the JMH data benchmarks with more and more threads, so JMH and the benchmarks must be in the class path.
+ * Cluster curves are of the throughput and the 99th percentile latency of user requests in each replication mode and with each number of replicas,
+ * run by cluster benchmarks with more and more users.
+ * Each point is measured in a child process. When CPU counts are given, child processes are bound to that many CPUs.
+ * Configuration files are copied to the scaling_benchmark directory, and users are added until there are enough of them.
+ * It must be launched in the directory of configuration files, when the distributed system is not running.
+ * @author Shenqi Zhang
+ *
+ */
+public class ScalingBenchmark {
+    /**
+     * Default numbers of threads of local curves.
+     */
+    private static final String DEFAULT_THREADS = "1,2,4,8";
+    /**
+     * Default numbers of users of cluster curves.
+     */
+    private static final String DEFAULT_USERS = "1,2,4,8,16";
+    /**
+     * Default replication modes of cluster curves.
+     */
+    private static final String DEFAULT_MODES = "no,active,passive";
+    /**
+     * Default request mix of cluster curves.
+     */
+    private static final String DEFAULT_MIX = "50:25:25";
+    /**
+     * Default duration of warmup of each point of cluster curves in milliseconds.
+     */
+    private static final int DEFAULT_WARMUP = 2000;
+    /**
+     * Default duration of measurement of each point of cluster curves in milliseconds.
+     */
+    private static final int DEFAULT_DURATION = 5000;
+    /**
+     * JMH benchmarks of local curves.
+     */
+    private static final String[] LOCAL_BENCHMARKS = {"incrementContended", "incrementExclusiveContended", "getContended"};
+    /**
+     * Class of the JMH benchmarks of local curves.
+     */
+    private static final String LOCAL_BENCHMARK_CLASS = "benchmarks.DataBenchmark";
+    /**
+     * Main class of JMH.
+     */
+    private static final String JMH_MAIN = "org.openjdk.jmh.Main";
+    /**
+     * Relative gain of throughput below which a curve is considered flat.
+     */
+    private static final double FLAT_GAIN = 0.1;
+    /**
+     * Width of the bar of the highest throughput in a curve.
+     */
+    private static final int BAR_WIDTH = 40;
+    /**
+     * Directory of configuration and log files.
+     */
+    private static final String LOG_DIRECTORY = "scaling_benchmark";
+    /**
+     * Prefix of result lines printed by cluster benchmarks.
+     */
+    private static final String RESULT_PREFIX = "Result|";
+    
+    /**
+     * Directory of configuration files of child processes.
+     */
+    private final File directory;
+    /**
+     * Numbers of CPUs; empty if child processes are not bound.
+     */
+    private List<Integer> cpuCounts;
+    /**
+     * Results, one per line.
+     * local,<benchmark>,<cpus>,<threads>,<ops/s>
+     * cluster,<mode>,<replicas>,<cpus>,<users>,<requests/s>,<p99 in microseconds>
+     */
+    private final List<String> results;
+    
+    /**
+     * Constructs a scaling benchmark.
+     * @param cpuCounts numbers of CPUs; empty if child processes are not bound
+     */
+    public ScalingBenchmark(List<Integer> cpuCounts) {
+        this.directory = new File(LOG_DIRECTORY);
+        this.cpuCounts = cpuCounts;
+        this.results = new ArrayList<String>();
+    }
+    
+    /**
+     * Copies the configuration files to the directory, and adds users to the configuration file of the connection manager.
+     * Added users are named USR<n>, with ports after the highest configured port.
+     * @param users number of users needed
+     * @throws IOException if the files cannot be copied
+     */
+    private void prepareConfigurations(int users) throws IOException {
+        directory.mkdirs();
+        for (File file : new File(".").listFiles()) {
+            if (file.isFile() && file.getName().endsWith(".conf")) {
+                Files.copy(file.toPath(), new File(directory, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        
+        Map<String, String> peers = ConnectionManager.loadParameters("connection_manager.conf");
+        Map<String, String> faultDetectors = ConnectionManager.loadParameters("fault_detector.conf");
+        int configuredUsers = 0;
+        int highestPort = 0;
+        for (String peer : peers.keySet()) {
+            if (!faultDetectors.containsKey(peer)) {
+                configuredUsers++;
+            }
+            String address = peers.get(peer);
+            highestPort = Math.max(highestPort, Integer.valueOf(address.substring(address.indexOf(':') + 1).trim()));
+        }
+        PrintStream out = new PrintStream(new FileOutputStream(new File(directory, "connection_manager.conf"), true));
+        for (int i = 1; configuredUsers < users; i++) {
+            String user = "USR" + i;
+            if (!peers.containsKey(user)) {
+                out.println(new StringBuilder(user).append(" = localhost:").append(++highestPort).toString());
+                configuredUsers++;
+            }
+        }
+        out.close();
+    }
+    
+    /**
+     * Builds the command of a child process, bound to the CPUs if given.
+     * @param cpus number of CPUs; 0 if not bound
+     * @param args class and arguments
+     * @return command
+     */
+    private static List<String> buildCommand(int cpus, String... args) {
+        List<String> command = new ArrayList<String>();
+        if (cpus > 0) {
+            command.addAll(Arrays.asList("taskset", "-c", "0-" + (Math.min(cpus, Runtime.getRuntime().availableProcessors()) - 1)));
+        }
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (cpus > 0) {
+            command.add("-XX:ActiveProcessorCount=" + cpus);
+        }
+        // Child processes run in another directory, so the class path must be absolute.
+        StringBuilder classPath = new StringBuilder();
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(new File(path).getAbsolutePath()).append(File.pathSeparator);
+        }
+        classPath.setLength(classPath.length() - 1);
+        command.add("-cp");
+        command.add(classPath.toString());
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+    
+    /**
+     * Runs a child process in the directory.
+     * Message logs of the child process are disabled, unless DISABLE_MESSAGE_LOG is set in this process.
+     * @param command command
+     * @return the result line of a cluster benchmark without the prefix, or null if there is no result line
+     */
+    private String runChild(List<String> command) {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(directory);
+        processBuilder.environment().putIfAbsent("DISABLE_MESSAGE_LOG", "1");
+        processBuilder.redirectErrorStream(true);
+        String result = null;
+        try {
+            Process process = processBuilder.start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                } else if (line.startsWith("Error") || line.contains("Exception")) {
+                    System.out.println(line);
+                }
+            }
+            process.waitFor();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the numbers of CPUs to sweep.
+     * @return numbers of CPUs; 0 if not bound
+     */
+    private List<Integer> getCpuSweep() {
+        return cpuCounts.isEmpty() ? Arrays.asList(0) : cpuCounts;
+    }
+    
+    /**
+     * Formats the number of CPUs.
+     * @param cpus number of CPUs; 0 if not bound
+     * @return formatted number
+     */
+    private static String formatCpus(int cpus) {
+        return cpus == 0 ? "all" : String.valueOf(cpus);
+    }
+    
+    /**
+     * Loads the throughputs of a result file of JMH in CSV.
+     * "Benchmark","Mode","Threads","Samples","Score","Score Error (99.9%)","Unit",...
+     * @param fileName the name of the result file
+     * @return throughputs in operations per second; keys are the names of benchmark methods
+     */
+    private static Map<String, Double> loadJmhResults(String fileName) {
+        Map<String, Double> throughputs = new HashMap<String, Double>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            try {
+                // The first line is the header.
+                String line = reader.readLine();
+                while ((line = reader.readLine()) != null) {
+                    String[] strs = line.replace("\"", "").split(",");
+                    String benchmark = strs[0].substring(strs[0].lastIndexOf('.') + 1);
+                    throughputs.put(benchmark, Double.valueOf(strs[4]));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.out.println(new StringBuilder("Error: Cannot load results ").append(fileName).append('!').toString());
+        }
+        return throughputs;
+    }
+    
+    /**
+     * Measures local curves with more and more threads.
+     * Each point is a run of JMH, whose threads are set by -t.
+     * @param threadCounts numbers of threads
+     */
+    public void runLocal(List<Integer> threadCounts) {
+        try {
+            Class.forName(JMH_MAIN);
+        } catch (ClassNotFoundException e) {
+            System.out.println("Error: JMH is not in the class path! Run mvn test-compile exec:exec@scaling instead.");
+            return;
+        }
+        StringBuilder pattern = new StringBuilder(LOCAL_BENCHMARK_CLASS.replace(".", "\\.")).append("\\.(");
+        for (int j = 0; j < LOCAL_BENCHMARKS.length; j++) {
+            pattern.append(j == 0 ? "" : "|").append(LOCAL_BENCHMARKS[j]);
+        }
+        pattern.append(")$");
+        for (int cpus : getCpuSweep()) {
+            double[][] throughputs = new double[LOCAL_BENCHMARKS.length][threadCounts.size()];
+            for (int i = 0; i < threadCounts.size(); i++) {
+                int threads = threadCounts.get(i);
+                System.out.println(new StringBuilder("Benchmark local operations with ").append(threads).append(" threads on ").append(formatCpus(cpus)).append(" CPUs.").toString());
+                String resultName = "local.csv";
+                new File(directory, resultName).delete();
+                List<String> args = new ArrayList<String>(Arrays.asList(JMH_MAIN, "-t", String.valueOf(threads), "-rf", "csv", "-rff", resultName));
+                if (cpus > 0) {
+                    // The fork of JMH inherits the CPUs of its parent, but not the option, and this option replaces the one of the benchmark.
+                    args.addAll(Arrays.asList("-jvmArgsAppend", "-Djmh.shutdownTimeout=0 -XX:ActiveProcessorCount=" + cpus));
+                }
+                args.add(pattern.toString());
+                runChild(buildCommand(cpus, args.toArray(new String[args.size()])));
+                Map<String, Double> localResults = loadJmhResults(new File(directory, resultName).getPath());
+                for (int j = 0; j < LOCAL_BENCHMARKS.length; j++) {
+                    Double result = localResults.get(LOCAL_BENCHMARKS[j]);
+                    throughputs[j][i] = result == null ? 0 : result;
+                    results.add(String.format("local,%s,%s,%d,%.1f", LOCAL_BENCHMARKS[j], formatCpus(cpus), threads, throughputs[j][i]));
+                }
+            }
+            
+            for (int j = 0; j < LOCAL_BENCHMARKS.length; j++) {
+                System.out.println(String.format("%-30s %4s %7s %16s %8s", "BENCHMARK", "CPUS", "THREADS", "OPS/S", "SPEEDUP"));
+                for (int i = 0; i < threadCounts.size(); i++) {
+                    System.out.println(String.format("%-30s %4s %7d %16.1f %7.2fx %s", LOCAL_BENCHMARKS[j], formatCpus(cpus), threadCounts.get(i), throughputs[j][i],
+                            throughputs[j][0] == 0 ? 0 : throughputs[j][i] / throughputs[j][0], getBar(throughputs[j], i)));
+                }
+                System.out.println(describeCurve(LOCAL_BENCHMARKS[j], threadCounts, throughputs[j], "threads"));
+                System.out.println();
+            }
+        }
+    }
+    
+    /**
+     * Measures cluster curves with more and more users.
+     * @param modes replication modes
+     * @param replicaCounts numbers of replicas
+     * @param userCounts numbers of users
+     * @param mix request mix
+     * @param warmup duration of warmup of each point in milliseconds
+     * @param duration duration of measurement of each point in milliseconds
+     */
+    public void runCluster(List<String> modes, List<Integer> replicaCounts, List<Integer> userCounts, String mix, int warmup, int duration) {
+        for (int cpus : getCpuSweep()) {
+            for (String mode : modes) {
+                for (int replicas : replicaCounts) {
+                    double[] throughputs = new double[userCounts.size()];
+                    long[] p99s = new long[userCounts.size()];
+                    for (int i = 0; i < userCounts.size(); i++) {
+                        int users = userCounts.get(i);
+                        System.out.println(new StringBuilder("Benchmark ").append(mode).append(" replication with ").append(replicas).append(" replicas and ")
+                                .append(users).append(" users on ").append(formatCpus(cpus)).append(" CPUs.").toString());
+                        String result = runChild(buildCommand(cpus, ClusterBenchmark.class.getName(), "-modes", mode, "-replicas", String.valueOf(replicas),
+                                "-users", String.valueOf(users), "-mix", mix, "-warmup", String.valueOf(warmup), "-duration", String.valueOf(duration)));
+                        if (result == null) {
+                            System.out.println("Error: Benchmark fails!");
+                            continue;
+                        }
+                        String[] strs = result.split(",");
+                        throughputs[i] = Double.valueOf(strs[4]);
+                        p99s[i] = Long.valueOf(strs[7]);
+                        results.add(String.format("cluster,%s,%d,%s,%d,%.1f,%d", mode, replicas, formatCpus(cpus), users, throughputs[i], p99s[i]));
+                    }
+                    
+                    System.out.println(String.format("%-8s %8s %4s %5s %10s %9s %8s", "MODE", "REPLICAS", "CPUS", "USERS", "REQ/S", "P99(ms)", "SPEEDUP"));
+                    for (int i = 0; i < userCounts.size(); i++) {
+                        System.out.println(String.format("%-8s %8d %4s %5d %10.1f %9.2f %7.2fx %s", mode, replicas, formatCpus(cpus), userCounts.get(i), throughputs[i],
+                                p99s[i] / 1000.0, throughputs[0] == 0 ? 0 : throughputs[i] / throughputs[0], getBar(throughputs, i)));
+                    }
+                    System.out.println(describeCurve(mode + " replication with " + replicas + " replicas", userCounts, throughputs, "users"));
+                    System.out.println();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets the bar of a point of a curve, scaled to the highest throughput of the curve.
+     * @param throughputs throughputs of the curve
+     * @param index index of the point
+     * @return bar
+     */
+    private static String getBar(double[] throughputs, int index) {
+        double highest = 0;
+        for (double throughput : throughputs) {
+            highest = Math.max(highest, throughput);
+        }
+        int width = highest == 0 ? 0 : (int) Math.round(throughputs[index] / highest * BAR_WIDTH);
+        StringBuilder sb = new StringBuilder(width);
+        for (int i = 0; i < width; i++) {
+            sb.append('#');
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Describes where the curve flattens.
+     * A curve flattens at the first point after which throughput gains less than 10% of the previous point.
+     * @param name name of the curve
+     * @param counts numbers of threads or users
+     * @param throughputs throughputs of points
+     * @param unit unit of counts
+     * @return description
+     */
+    private static String describeCurve(String name, List<Integer> counts, double[] throughputs, String unit) {
+        for (int i = 1; i < counts.size(); i++) {
+            if (throughputs[i] < throughputs[i - 1] * (1 + FLAT_GAIN)) {
+                return new StringBuilder(name).append(" flattens at ").append(counts.get(i - 1)).append(' ').append(unit).append('.').toString();
+            }
+        }
+        return new StringBuilder(name).append(" scales up to ").append(counts.get(counts.size() - 1)).append(' ').append(unit).append('.').toString();
+    }
+    
+    /**
+     * Saves the results.
+     * @param fileName the name of the result file
+     */
+    public void saveResults(String fileName) {
+        try {
+            PrintStream out = new PrintStream(fileName);
+            for (String result : results) {
+                out.println(result);
+            }
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Parses a list of numbers.
+     * @param s numbers separated by commas
+     * @return numbers
+     */
+    private static List<Integer> parseCounts(String s) {
+        List<Integer> counts = new ArrayList<Integer>();
+        for (String str : s.split(",")) {
+            counts.add(Integer.valueOf(str.trim()));
+        }
+        return counts;
+    }
+    
+    /**
+     * Launches a scaling benchmark.
+     * Local curves need JMH and the benchmarks in the class path, like mvn test-compile exec:exec@scaling does.
+     * java ScalingBenchmark [-threads <n1>,<n2> ...] [-users <n1>,<n2> ...] [-modes <mode1>,<mode2> ...] [-replicas <n1>,<n2> ...] [-cpus <n1>,<n2> ...]
+     *                       [-mix <get>:<increment>:<decrement>] [-warmup <millis>] [-duration <millis>] [-local] [-cluster] [-o <result file>]
+     * -local and -cluster select curves; both are measured if neither is given.
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        List<Integer> threadCounts = parseCounts(DEFAULT_THREADS);
+        List<Integer> userCounts = parseCounts(DEFAULT_USERS);
+        List<String> modes = Arrays.asList(DEFAULT_MODES.split(","));
+        List<Integer> replicaCounts = null;
+        List<Integer> cpuCounts = new ArrayList<Integer>();
+        String mix = DEFAULT_MIX;
+        int warmup = DEFAULT_WARMUP;
+        int duration = DEFAULT_DURATION;
+        boolean local = false, cluster = false;
+        String outputName = null;
+        for (Iterator<String> it = Arrays.asList(args).iterator(); it.hasNext();) {
+            String arg = it.next();
+            if (arg.equals("-threads")) {
+                threadCounts = parseCounts(it.next());
+            } else if (arg.equals("-users")) {
+                userCounts = parseCounts(it.next());
+            } else if (arg.equals("-modes")) {
+                modes = Arrays.asList(it.next().split(","));
+            } else if (arg.equals("-replicas")) {
+                replicaCounts = parseCounts(it.next());
+            } else if (arg.equals("-cpus")) {
+                cpuCounts = parseCounts(it.next());
+            } else if (arg.equals("-mix")) {
+                mix = it.next();
+            } else if (arg.equals("-warmup")) {
+                warmup = Integer.valueOf(it.next());
+            } else if (arg.equals("-duration")) {
+                duration = Integer.valueOf(it.next());
+            } else if (arg.equals("-local")) {
+                local = true;
+            } else if (arg.equals("-cluster")) {
+                cluster = true;
+            } else if (arg.equals("-o")) {
+                outputName = it.next();
+            } else {
+                System.out.println("Error: Invalid argument " + arg + "!");
+                System.exit(0);
+            }
+        }
+        if (!local && !cluster) {
+            local = cluster = true;
+        }
+        if (replicaCounts == null) {
+            replicaCounts = Arrays.asList(ConnectionManager.loadParameters("replica_manager.conf").get("replicas").split(",").length);
+        }
+        int availableCpus = Runtime.getRuntime().availableProcessors();
+        for (int cpus : cpuCounts) {
+            if (cpus > availableCpus) {
+                System.out.println(new StringBuilder("Warning: Only ").append(availableCpus).append(" CPUs are available, so ").append(cpus).append(" CPUs are the same as ").append(availableCpus).append('.').toString());
+            }
+        }
+        
+        ScalingBenchmark benchmark = new ScalingBenchmark(cpuCounts);
+        try {
+            benchmark.prepareConfigurations(userCounts.isEmpty() ? 0 : Collections.max(userCounts));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+        if (local) {
+            benchmark.runLocal(threadCounts);
+        }
+        if (cluster) {
+            benchmark.runCluster(modes, replicaCounts, userCounts, mix, warmup, duration);
+        }
+        if (outputName != null) {
+            benchmark.saveResults(outputName);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,537 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The versioned binary format of snapshots of data and user timestamps, which serves checkpoints, restoration and snapshots on disk.
+ * A snapshot is written and read as a stream of blocks, so that neither side holds the whole snapshot as objects, and each block is checked by its CRC32, so that a corrupted transfer or file is detected.
+ * <snapshot> = <header> <block> ... <end>
+ * <header> = FTSN <version> <sequence> <epoch> <position> <CRC32 of the header>
+ * <block> = <1 entries | 2 timestamps> <records> <length> <payload> <CRC32 of the block>
+ * <end> = 0
+ * <entry> = <key> <value>
+ * <timestamp> = <user> <timestamp>
+ * Numbers are variable-length integers, 7 bits per byte with the lowest bits first; values are zigzag encoded. Strings are a length and UTF-8 bytes. CRC32 is 4 bytes, the highest byte first.
+ * The sequence, epoch and position are those of the write-ahead log, and are 0 in checkpoints.
+ * Over the text protocol, a snapshot is encoded in Base64, which has no separator of requests.
+ * @author Shenqi Zhang
+ *
+ */
+public class SnapshotFormat {
+    /**
+     * Magic bytes at the beginning of a snapshot.
+     */
+    private static final byte[] MAGIC = {'F', 'T', 'S', 'N'};
+    /**
+     * Version of the format.
+     */
+    private static final int VERSION = 2;
+    /**
+     * Tag of the end.
+     */
+    public static final int END = 0;
+    /**
+     * Tag of blocks of entries.
+     */
+    public static final int ENTRY = 1;
+    /**
+     * Tag of blocks of user timestamps.
+     */
+    public static final int TIMESTAMP = 2;
+    /**
+     * Size of the payload of a block in bytes, beyond which a new block is started.
+     */
+    private static final int BLOCK_SIZE = 1 << 16;
+    /**
+     * Maximum size of the payload of a block in bytes, beyond which a block is corrupted.
+     */
+    private static final int MAX_BLOCK_SIZE = 1 << 28;
+    
+    /**
+     * Writes an unsigned variable-length integer to a byte array.
+     * @param bytes byte array with enough space
+     * @param offset offset
+     * @param value value, not negative
+     * @return offset after the integer
+     */
+    private static int putVarint(byte[] bytes, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+    
+    /**
+     * Writes a CRC32 to a byte array.
+     * @param bytes byte array with enough space
+     * @param offset offset
+     * @param crc CRC32
+     * @return offset after the CRC32
+     */
+    private static int putCrc(byte[] bytes, int offset, long crc) {
+        bytes[offset] = (byte) (crc >>> 24);
+        bytes[offset + 1] = (byte) (crc >>> 16);
+        bytes[offset + 2] = (byte) (crc >>> 8);
+        bytes[offset + 3] = (byte) crc;
+        return offset + 4;
+    }
+    
+    /**
+     * Encodes a snapshot of data and user timestamps in Base64 for the text protocol.
+     * @param data data
+     * @param keys keys of the entries to encode, like the changed ones in a delta; if null, all entries
+     * @param userTimestamps user timestamps; if null, none
+     * @return Base64 encoded snapshot
+     */
+    public static String encode(CounterStore data, Collection<String> keys, Map<String, Long> userTimestamps) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + (keys == null ? data.size() : keys.size()) * 8);
+        try {
+            Writer writer = new Writer(out, 0, 0, 0);
+            if (keys == null) {
+                writer.writeEntries(data);
+            } else {
+                for (String key : keys) {
+                    int slot = data.find(key);
+                    if (slot >= 0) {
+                        writer.writeEntry(key, data.get(slot));
+                    }
+                }
+            }
+            if (userTimestamps != null) {
+                for (Map.Entry<String, Long> entry : userTimestamps.entrySet()) {
+                    writer.writeTimestamp(entry.getKey(), entry.getValue());
+                }
+            }
+            writer.finish();
+        } catch (IOException e) {
+            // A byte array output stream does not throw.
+            throw new IllegalStateException(e);
+        }
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+    
+    /**
+     * Decodes a Base64 encoded snapshot, after checking all blocks of it.
+     * @param s Base64 encoded snapshot
+     * @return reader of the snapshot
+     * @throws IOException if the snapshot is corrupted
+     */
+    public static Reader decode(String s) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(s);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid Base64 snapshot", e);
+        }
+        Reader checker = new Reader(new ByteArrayInputStream(bytes));
+        while (checker.readBlock()) {}
+        return new Reader(new ByteArrayInputStream(bytes));
+    }
+    
+    /**
+     * Streaming writer of a snapshot.
+     * Entries are written before user timestamps.
+     *
+     */
+    public static class Writer {
+        /**
+         * Output.
+         */
+        private final OutputStream out;
+        /**
+         * Payload of the current block.
+         */
+        private byte[] payload;
+        /**
+         * Bytes in the payload.
+         */
+        private int length;
+        /**
+         * Records in the current block.
+         */
+        private int records;
+        /**
+         * Tag of the current block.
+         */
+        private int tag;
+        /**
+         * Header of blocks.
+         */
+        private final byte[] header;
+        /**
+         * CRC32 of blocks.
+         */
+        private final CRC32 crc;
+        
+        /**
+         * Constructs a writer, and writes the header.
+         * @param out output
+         * @param sequence sequence number of the write-ahead log
+         * @param epoch epoch of positions
+         * @param position position of the data
+         * @throws IOException if it fails to write
+         */
+        public Writer(OutputStream out, long sequence, long epoch, long position) throws IOException {
+            this.out = out;
+            this.payload = new byte[BLOCK_SIZE + 32];
+            this.length = 0;
+            this.records = 0;
+            this.tag = ENTRY;
+            this.header = new byte[64];
+            this.crc = new CRC32();
+            System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+            header[MAGIC.length] = VERSION;
+            int headerLength = putVarint(header, MAGIC.length + 1, sequence);
+            headerLength = putVarint(header, headerLength, epoch);
+            headerLength = putVarint(header, headerLength, position);
+            crc.update(header, 0, headerLength);
+            headerLength = putCrc(header, headerLength, crc.getValue());
+            out.write(header, 0, headerLength);
+        }
+        
+        /**
+         * Makes room for a record in the payload, writing the current block if it is full or of another tag.
+         * @param recordTag tag of the record
+         * @param recordLength maximum bytes of the record
+         * @throws IOException if it fails to write
+         */
+        private void ensure(int recordTag, int recordLength) throws IOException {
+            if (recordTag != tag || length + recordLength > BLOCK_SIZE) {
+                writeBlock();
+                tag = recordTag;
+            }
+            if (recordLength > payload.length) {
+                payload = Arrays.copyOf(payload, recordLength);
+            }
+        }
+        
+        /**
+         * Writes the current block, if it has records.
+         * @throws IOException if it fails to write
+         */
+        private void writeBlock() throws IOException {
+            if (records == 0) {
+                return;
+            }
+            header[0] = (byte) tag;
+            int headerLength = putVarint(header, 1, records);
+            headerLength = putVarint(header, headerLength, length);
+            crc.reset();
+            crc.update(header, 0, headerLength);
+            crc.update(payload, 0, length);
+            out.write(header, 0, headerLength);
+            out.write(payload, 0, length);
+            out.write(header, 0, putCrc(header, 0, crc.getValue()));
+            length = 0;
+            records = 0;
+        }
+        
+        /**
+         * Writes all entries of data.
+         * Keys are copied as bytes from the data, without creating strings.
+         * @param data data
+         * @throws IOException if it fails to write
+         */
+        public void writeEntries(CounterStore data) throws IOException {
+            for (int slot = data.next(-1); slot >= 0; slot = data.next(slot)) {
+                int keyLength = data.getKeyLength(slot);
+                ensure(ENTRY, keyLength + 10);
+                length = putVarint(payload, length, keyLength);
+                data.getKeyBytes(slot, payload, length);
+                length += keyLength;
+                int value = data.get(slot);
+                length = putVarint(payload, length, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+                records++;
+            }
+        }
+        
+        /**
+         * Writes an entry.
+         * @param key key
+         * @param value value
+         * @throws IOException if it fails to write
+         */
+        public void writeEntry(String key, int value) throws IOException {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            ensure(ENTRY, bytes.length + 10);
+            length = putVarint(payload, length, bytes.length);
+            System.arraycopy(bytes, 0, payload, length, bytes.length);
+            length += bytes.length;
+            length = putVarint(payload, length, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+            records++;
+        }
+        
+        /**
+         * Writes the timestamp of a user.
+         * @param user user
+         * @param timestamp timestamp
+         * @throws IOException if it fails to write
+         */
+        public void writeTimestamp(String user, long timestamp) throws IOException {
+            byte[] bytes = user.getBytes(StandardCharsets.UTF_8);
+            ensure(TIMESTAMP, bytes.length + 15);
+            length = putVarint(payload, length, bytes.length);
+            System.arraycopy(bytes, 0, payload, length, bytes.length);
+            length += bytes.length;
+            length = putVarint(payload, length, timestamp);
+            records++;
+        }
+        
+        /**
+         * Writes the last block and the end, and flushes the output.
+         * The output is not closed.
+         * @throws IOException if it fails to write
+         */
+        public void finish() throws IOException {
+            writeBlock();
+            out.write(END);
+            out.flush();
+        }
+    }
+    
+    /**
+     * Streaming reader of a snapshot.
+     * for (int tag = reader.next(); tag != SnapshotFormat.END; tag = reader.next())
+     *
+     */
+    public static class Reader {
+        /**
+         * Input.
+         */
+        private final DataInputStream in;
+        /**
+         * Sequence number of the write-ahead log.
+         */
+        private final long sequence;
+        /**
+         * Epoch of positions.
+         */
+        private final long epoch;
+        /**
+         * Position of the data.
+         */
+        private final long position;
+        /**
+         * Payload of the current block.
+         */
+        private byte[] payload;
+        /**
+         * Offset of the next record in the payload.
+         */
+        private int offset;
+        /**
+         * Records left in the current block.
+         */
+        private long records;
+        /**
+         * Tag of the current block.
+         */
+        private int tag;
+        /**
+         * CRC32 of blocks.
+         */
+        private final CRC32 crc;
+        /**
+         * Key or user of the current record.
+         */
+        private String key;
+        /**
+         * Value or timestamp of the current record.
+         */
+        private long value;
+        
+        /**
+         * Constructs a reader, and reads the header.
+         * @param in input
+         * @throws IOException if it fails to read, or the header is corrupted
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            this.payload = new byte[BLOCK_SIZE];
+            this.offset = 0;
+            this.records = 0;
+            this.tag = ENTRY;
+            this.crc = new CRC32();
+            try {
+                for (byte b : MAGIC) {
+                    if (readByte() != b) {
+                        throw new IOException("Not a snapshot");
+                    }
+                }
+                int version = readByte();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+                this.sequence = readVarint();
+                this.epoch = readVarint();
+                this.position = readVarint();
+                checkCrc("header");
+            } catch (EOFException e) {
+                throw new IOException("Truncated snapshot", e);
+            }
+        }
+        
+        /**
+         * Reads a byte, and updates the CRC32.
+         * @return byte
+         * @throws IOException if it fails to read, or the input ends
+         */
+        private int readByte() throws IOException {
+            int b = in.readByte();
+            crc.update(b);
+            return b;
+        }
+        
+        /**
+         * Reads an unsigned variable-length integer from the input, and updates the CRC32.
+         * @return value
+         * @throws IOException if it fails to read, or the input ends
+         */
+        private long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+        
+        /**
+         * Reads a CRC32, compares it with the computed one, and resets the CRC32.
+         * @param part part of the snapshot for the message
+         * @throws IOException if it fails to read, or the CRC32 differs
+         */
+        private void checkCrc(String part) throws IOException {
+            long expected = in.readInt() & 0xFFFFFFFFL;
+            if (expected != crc.getValue()) {
+                throw new IOException("Corrupted snapshot " + part);
+            }
+            crc.reset();
+        }
+        
+        /**
+         * Reads the next block and checks it.
+         * @return false if the snapshot ends
+         * @throws IOException if it fails to read, or the block is corrupted
+         */
+        private boolean readBlock() throws IOException {
+            try {
+                tag = readByte();
+                if (tag == END) {
+                    return false;
+                }
+                if (tag != ENTRY && tag != TIMESTAMP) {
+                    throw new IOException("Corrupted snapshot block tag " + tag);
+                }
+                records = readVarint();
+                long length = readVarint();
+                if (length > MAX_BLOCK_SIZE) {
+                    throw new IOException("Corrupted snapshot block length " + length);
+                }
+                if (length > payload.length) {
+                    payload = new byte[(int) length];
+                }
+                in.readFully(payload, 0, (int) length);
+                crc.update(payload, 0, (int) length);
+                checkCrc("block");
+                offset = 0;
+                return true;
+            } catch (EOFException e) {
+                throw new IOException("Truncated snapshot", e);
+            }
+        }
+        
+        /**
+         * Reads an unsigned variable-length integer from the payload.
+         * @return value
+         */
+        private long getVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = payload[offset++];
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * Reads the next record.
+         * @return tag of the record, ENTRY or TIMESTAMP, or END if the snapshot ends
+         * @throws IOException if it fails to read, or a block is corrupted
+         */
+        public int next() throws IOException {
+            while (records == 0) {
+                if (!readBlock()) {
+                    return END;
+                }
+            }
+            int keyLength = (int) getVarint();
+            key = new String(payload, offset, keyLength, StandardCharsets.UTF_8);
+            offset += keyLength;
+            value = getVarint();
+            if (tag == ENTRY) {
+                value = (value >>> 1) ^ -(value & 1);
+            }
+            records--;
+            return tag;
+        }
+        
+        /**
+         * Gets the key of the current entry, or the user of the current timestamp.
+         * @return key or user
+         */
+        public String getKey() {
+            return key;
+        }
+        
+        /**
+         * Gets the value of the current entry, or the current timestamp.
+         * @return value or timestamp
+         */
+        public long getValue() {
+            return value;
+        }
+        
+        /**
+         * Gets the sequence number of the write-ahead log.
+         * @return sequence number
+         */
+        public long getSequence() {
+            return sequence;
+        }
+        
+        /**
+         * Gets the epoch of positions.
+         * @return epoch
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+        
+        /**
+         * Gets the position of the data.
+         * @return position
+         */
+        public long getPosition() {
+            return position;
+        }
+    }
+}
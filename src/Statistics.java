@@ -0,0 +1,278 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of a node in the distributed system.
+ * Statistics are serialized as name=value pairs separated by commas.
+ * @author Shenqi Zhang
+ *
+ */
+public class Statistics {
+    /**
+     * Length of a window of latencies in nanoseconds.
+     */
+    private static final long LATENCY_WINDOW_NANOS = 10000000000L;
+    /**
+     * Percentiles of latencies to report.
+     */
+    private static final double[] LATENCY_PERCENTILES = {50, 90, 99, 99.9};
+    /**
+     * Names of percentiles of latencies to report.
+     */
+    private static final String[] LATENCY_PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    
+    /**
+     * Updates the atomic value if the specified value is larger.
+     * @param atomicValue atomic value
+     * @param value value
+     */
+    public static void updateMax(AtomicLong atomicValue, long value) {
+        long max;
+        while ((max = atomicValue.get()) < value) {
+            if (atomicValue.compareAndSet(max, value)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Deserializes statistics.
+     * @param s string representation of statistics
+     * @return a map with names as keys and values as values
+     */
+    public static Map<String, String> deserialize(String s) {
+        Map<String, String> statistics = new HashMap<String, String>();
+        if (s != null && s.length() > 0) {
+            for (String str : s.split(",")) {
+                int index = str.indexOf('=');
+                if (index > 0) {
+                    statistics.put(str.substring(0, index), str.substring(index + 1));
+                }
+            }
+        }
+        return statistics;
+    }
+    
+    /**
+     * Counters and gauges.
+     * Keys are names. Values are values.
+     */
+    private final ConcurrentHashMap<String, AtomicLong> values;
+    /**
+     * Latencies.
+     * Keys are names. Values are latencies.
+     */
+    private final ConcurrentHashMap<String, WindowedLatency> latencies;
+    /**
+     * Reporters which report statistics when serializing.
+     */
+    private final List<Reporter> reporters;
+    
+    /**
+     * Constructs statistics.
+     */
+    public Statistics() {
+        this.values = new ConcurrentHashMap<String, AtomicLong>();
+        this.latencies = new ConcurrentHashMap<String, WindowedLatency>();
+        this.reporters = new CopyOnWriteArrayList<Reporter>();
+    }
+    
+    /**
+     * Gets the atomic value with the specified name, creating it if absent.
+     * @param name name
+     * @return atomic value
+     */
+    private AtomicLong getValue(String name) {
+        AtomicLong value = values.get(name);
+        if (value == null) {
+            values.putIfAbsent(name, new AtomicLong());
+            value = values.get(name);
+        }
+        return value;
+    }
+    
+    /**
+     * Adds the delta to the counter with the specified name.
+     * @param name name
+     * @param delta delta
+     */
+    public void add(String name, long delta) {
+        getValue(name).addAndGet(delta);
+    }
+    
+    /**
+     * Sets the gauge with the specified name.
+     * @param name name
+     * @param value value
+     */
+    public void set(String name, long value) {
+        getValue(name).set(value);
+    }
+    
+    /**
+     * Sets the gauge with the specified name if the specified value is larger.
+     * @param name name
+     * @param value value
+     */
+    public void updateMax(String name, long value) {
+        updateMax(getValue(name), value);
+    }
+    
+    /**
+     * Gets the value with the specified name.
+     * @param name name
+     * @return value, or 0 if absent
+     */
+    public long get(String name) {
+        AtomicLong value = values.get(name);
+        return value == null ? 0 : value.get();
+    }
+    
+    /**
+     * Records a latency with the specified name.
+     * @param name name
+     * @param value latency in microseconds
+     */
+    public void recordLatency(String name, long value) {
+        WindowedLatency latency = latencies.get(name);
+        if (latency == null) {
+            latencies.putIfAbsent(name, new WindowedLatency());
+            latency = latencies.get(name);
+        }
+        latency.record(value);
+    }
+    
+    /**
+     * Registers a reporter.
+     * @param reporter reporter
+     */
+    public void register(Reporter reporter) {
+        reporters.add(reporter);
+    }
+    
+    /**
+     * Serializes statistics.
+     * @return string representation of statistics
+     */
+    public String serialize() {
+        Map<String, String> statistics = new TreeMap<String, String>();
+        for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+            statistics.put(entry.getKey(), String.valueOf(entry.getValue().get()));
+        }
+        for (Map.Entry<String, WindowedLatency> entry : latencies.entrySet()) {
+            entry.getValue().report(statistics, entry.getKey());
+        }
+        for (Reporter reporter : reporters) {
+            reporter.report(statistics);
+        }
+        
+        if (statistics.isEmpty()) {
+            return "";
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : statistics.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append(',');
+        }
+        sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+    
+    /**
+     * Latencies in the current window and the previous window.
+     * The total count is cumulative, and the percentiles and the maximum are of the recent two windows.
+     * <name>.<count|p50|p90|p99|p999|max>
+     *
+     */
+    private static class WindowedLatency {
+        /**
+         * Histogram of the current window.
+         */
+        private volatile LatencyHistogram current;
+        /**
+         * Histogram of the previous window.
+         */
+        private volatile LatencyHistogram previous;
+        /**
+         * Start time of the current window in nanoseconds.
+         */
+        private volatile long windowStart;
+        /**
+         * Total count.
+         */
+        private final AtomicLong totalCount;
+        
+        /**
+         * Constructs windowed latencies.
+         */
+        WindowedLatency() {
+            this.current = new LatencyHistogram();
+            this.previous = new LatencyHistogram();
+            this.windowStart = System.nanoTime();
+            this.totalCount = new AtomicLong();
+        }
+        
+        /**
+         * Records a latency.
+         * @param value latency
+         */
+        void record(long value) {
+            rotate();
+            current.record(value);
+            totalCount.incrementAndGet();
+        }
+        
+        /**
+         * Starts a new window if the current window ends.
+         */
+        private void rotate() {
+            long now = System.nanoTime();
+            if (now - windowStart < LATENCY_WINDOW_NANOS) {
+                return;
+            }
+            synchronized(this) {
+                long elapsed = now - windowStart;
+                if (elapsed >= LATENCY_WINDOW_NANOS) {
+                    previous = elapsed < 2 * LATENCY_WINDOW_NANOS ? current : new LatencyHistogram();
+                    current = new LatencyHistogram();
+                    windowStart = now;
+                }
+            }
+        }
+        
+        /**
+         * Reports the latencies.
+         * @param statistics a map with names as keys and values as values
+         * @param name name
+         */
+        void report(Map<String, String> statistics, String name) {
+            rotate();
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.add(previous);
+            histogram.add(current);
+            statistics.put(name + ".count", String.valueOf(totalCount.get()));
+            for (int i = 0; i < LATENCY_PERCENTILES.length; i++) {
+                statistics.put(name + '.' + LATENCY_PERCENTILE_NAMES[i], String.valueOf(histogram.getValueAtPercentile(LATENCY_PERCENTILES[i])));
+            }
+            statistics.put(name + ".max", String.valueOf(histogram.getMax()));
+        }
+    }
+    
+    /**
+     * A reporter which reports statistics computed when serializing.
+     *
+     */
+    public interface Reporter {
+        /**
+         * Reports statistics.
+         * Names and values must not contain commas or equal signs.
+         * @param statistics a map with names as keys and values as values
+         */
+        void report(Map<String, String> statistics);
+    }
+}
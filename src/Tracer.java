@@ -0,0 +1,256 @@
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A tracer which records spans of requests in the distributed system.
+ * Spans are exported in Zipkin v2 JSON format, one span per line.
+ * @author Shenqi Zhang
+ *
+ */
+public class Tracer {
+    /**
+     * Span kinds.
+     */
+    public enum KIND {CLIENT,
+                      SERVER,
+                      LOCAL};
+    /**
+     * Current span of each thread.
+     */
+    private static final ThreadLocal<Span> CURRENT_SPAN = new ThreadLocal<Span>();
+    
+    /**
+     * Gets the current span of this thread.
+     * @return the current span, or null if there is no span
+     */
+    public static Span currentSpan() {
+        return CURRENT_SPAN.get();
+    }
+    
+    /**
+     * Sets the current span of this thread.
+     * @param span span; if null, the current span is cleared
+     */
+    public static void setCurrentSpan(Span span) {
+        if (span == null) {
+            CURRENT_SPAN.remove();
+        } else {
+            CURRENT_SPAN.set(span);
+        }
+    }
+    
+    /**
+     * Generates a random identifier.
+     * @return 16 hexadecimal characters
+     */
+    private static String generateId() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+    
+    /**
+     * Name of the service which records spans.
+     */
+    private String serviceName;
+    /**
+     * The span writer; if null, tracing is disabled.
+     */
+    private PrintStream spanWriter;
+    
+    /**
+     * Constructs a tracer.
+     * @param serviceName the name of the service which records spans
+     * @param fileName the name of the span file; if null, tracing is disabled
+     */
+    public Tracer(String serviceName, String fileName) {
+        this.serviceName = serviceName;
+        if (fileName != null) {
+            try {
+                this.spanWriter = new PrintStream(new FileOutputStream(fileName));
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Returns true if tracing is enabled.
+     * @return true if tracing is enabled
+     */
+    public boolean isEnabled() {
+        return spanWriter != null;
+    }
+    
+    /**
+     * Starts a span as a child of the current span, or as the root of a new trace if there is no current span.
+     * The started span becomes the current span of this thread.
+     * @param name name of the span
+     * @param kind kind of the span
+     * @param remoteServiceName name of the remote service; null if there is no remote service
+     * @return the started span, or null if tracing is disabled
+     */
+    public Span startSpan(String name, KIND kind, String remoteServiceName) {
+        Span parent = CURRENT_SPAN.get();
+        if (parent == null) {
+            return startSpan(name, kind, remoteServiceName, null, null);
+        }
+        return startSpan(name, kind, remoteServiceName, parent.traceId, parent.id);
+    }
+    
+    /**
+     * Starts a span with the specified trace and parent.
+     * The started span becomes the current span of this thread.
+     * @param name name of the span
+     * @param kind kind of the span
+     * @param remoteServiceName name of the remote service; null if there is no remote service
+     * @param traceId trace id; if null, a new trace is started
+     * @param parentId parent span id; null if this is a root span
+     * @return the started span, or null if tracing is disabled
+     */
+    public Span startSpan(String name, KIND kind, String remoteServiceName, String traceId, String parentId) {
+        if (spanWriter == null) {
+            return null;
+        }
+        
+        Span span = new Span(traceId == null ? generateId() : traceId, generateId(), parentId, name, kind, remoteServiceName);
+        span.previous = CURRENT_SPAN.get();
+        CURRENT_SPAN.set(span);
+        return span;
+    }
+    
+    /**
+     * Finishes the span and exports it.
+     * The span which was current before the span started becomes current again.
+     * @param span span; if null, nothing is done
+     */
+    public void finishSpan(Span span) {
+        if (span == null) {
+            return;
+        }
+        
+        long duration = (System.nanoTime() - span.startNanos) / 1000;
+        setCurrentSpan(span.previous);
+        span.previous = null;
+        
+        StringBuilder sb = new StringBuilder("{\"traceId\":\"").append(span.traceId).append('"');
+        sb.append(",\"id\":\"").append(span.id).append('"');
+        if (span.parentId != null) {
+            sb.append(",\"parentId\":\"").append(span.parentId).append('"');
+        }
+        sb.append(",\"name\":\"").append(escape(span.name)).append('"');
+        if (span.kind != KIND.LOCAL) {
+            sb.append(",\"kind\":\"").append(span.kind).append('"');
+        }
+        sb.append(",\"timestamp\":").append(span.timestamp);
+        sb.append(",\"duration\":").append(Math.max(duration, 1));
+        sb.append(",\"localEndpoint\":{\"serviceName\":\"").append(escape(serviceName)).append("\"}");
+        if (span.remoteServiceName != null) {
+            sb.append(",\"remoteEndpoint\":{\"serviceName\":\"").append(escape(span.remoteServiceName)).append("\"}");
+        }
+        sb.append('}');
+        
+        synchronized(spanWriter) {
+            spanWriter.println(sb.toString());
+        }
+    }
+    
+    /**
+     * Escapes the text in JSON strings.
+     * @param text text
+     * @return escaped text
+     */
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * A span which records a timed operation in a trace.
+     *
+     */
+    public static class Span {
+        /**
+         * Trace id.
+         */
+        private final String traceId;
+        /**
+         * Span id.
+         */
+        private final String id;
+        /**
+         * Parent span id.
+         */
+        private final String parentId;
+        /**
+         * Name.
+         */
+        private final String name;
+        /**
+         * Kind.
+         */
+        private final KIND kind;
+        /**
+         * Name of the remote service.
+         */
+        private final String remoteServiceName;
+        /**
+         * Start time in microseconds since the epoch.
+         */
+        private final long timestamp;
+        /**
+         * Start time in nanoseconds for measuring duration.
+         */
+        private final long startNanos;
+        /**
+         * The span which was current before this span started.
+         */
+        private Span previous;
+        
+        /**
+         * Constructs a span.
+         * @param traceId trace id
+         * @param id span id
+         * @param parentId parent span id
+         * @param name name
+         * @param kind kind
+         * @param remoteServiceName name of the remote service
+         */
+        Span(String traceId, String id, String parentId, String name, KIND kind, String remoteServiceName) {
+            this.traceId = traceId;
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+            this.kind = kind;
+            this.remoteServiceName = remoteServiceName;
+            this.timestamp = System.currentTimeMillis() * 1000;
+            this.startNanos = System.nanoTime();
+        }
+        
+        /**
+         * Gets the trace id.
+         * @return trace id
+         */
+        public String getTraceId() {
+            return traceId;
+        }
+        
+        /**
+         * Gets the span id.
+         * @return span id
+         */
+        public String getId() {
+            return id;
+        }
+    }
+}
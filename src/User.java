@@ -33,6 +33,7 @@ public class User extends ConnectionManager {
         this.replicaManager = parameters.get("replica_manager");
         
         printParameters();
+        start(User.class);
     }
     
     /**
@@ -72,18 +73,60 @@ public class User extends ConnectionManager {
         return "Error: No server is available!";
     }
     
+    /**
+     * Waits until all replicas in the membership are ready to serve.
+     * @return true if all replicas in the membership are ready; false if there is no replica or a replica fails
+     */
+    protected boolean waitForReplicas() {
+        String membership = sendRequest(replicaManager, "Membership");
+        if (membership == null || membership.length() == 0) {
+            return false;
+        }
+        
+        Map<String, String> responses = sendRequestToGroup(Arrays.asList(membership.split(",")), "Ready");
+        return !responses.containsValue(null);
+    }
+    
+    /**
+     * Sends user request to replicas as the root of a new trace.
+     * @param request request
+     * @return response
+     */
+    protected String sendUserRequest(String request) {
+        Tracer.Span span = tracer.startSpan(getTextHeader(request), Tracer.KIND.LOCAL, null);
+        try {
+            return sendRequestToReplicas(request);
+        } finally {
+            tracer.finishSpan(span);
+        }
+    }
+    
     /**
      * Tests the specified user node.
      * @param node the specified user node
      */
     protected static void test(User node) {
-        if (System.getenv("ENABLE_AUTO_TEST") == null) {
+        if (System.getenv("ENABLE_LOAD_TEST") != null) {
+            loadTest(node);
+        } else if (System.getenv("ENABLE_AUTO_TEST") == null) {
             manualTest(node);
         } else {
             autoTest(node);
         }
     }
     
+    /**
+     * Tests the specified user node with an open-loop load generator, prints the report, and exits.
+     * Parameters of the load generator are in the configuration file.
+     * @param node the specified user node
+     */
+    protected static void loadTest(User node) {
+        LoadGenerator loadGenerator = new LoadGenerator(node, node.getParameters("user.conf"));
+        loadGenerator.run();
+        loadGenerator.printReport(System.out);
+        System.exit(0);
+    }
+    
     /**
      * Tests the specified user node manually.
      * @param node the specified user node
@@ -126,7 +169,7 @@ public class User extends ConnectionManager {
             }
             sb.append(key).append(',').append(System.currentTimeMillis());
             String request = sb.toString();
-            String response = node.sendRequestToReplicas(request);
+            String response = node.sendUserRequest(request);
             System.out.println(response);
         }
     }
@@ -161,7 +204,7 @@ public class User extends ConnectionManager {
             }
             sb.append((char) (random.nextInt(3) + 'A')).append(',').append(System.currentTimeMillis());
             String request = sb.toString();
-            String response = node.sendRequestToReplicas(request);
+            String response = node.sendUserRequest(request);
             System.out.println(response);
         }
     }
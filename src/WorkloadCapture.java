@@ -0,0 +1,359 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A workload capture which records user requests received by a replica in a compact binary file, so that the workload can be replayed.
+ * The file begins with the magic bytes FTWC, the version and the time when the capture starts in milliseconds since the epoch.
+ * Each record begins with a tag. A definition record adds a string to the dictionary; a request record has the operation as its tag.
+ * Numbers are unsigned variable-length integers, 7 bits per byte with the lowest bits first.
+ * <definition> = 0 <length> <UTF-8 bytes>
+ * <request> = <1 get | 2 increment | 3 decrement> <microseconds since the previous request> <user id> <key id>
+ * Users and keys are ids in the dictionary, in the order of definition from 0.
+ * Timestamps of user requests are not recorded, because replayed user requests need new timestamps.
+ * @author Shenqi Zhang
+ *
+ */
+public class WorkloadCapture {
+    /**
+     * Magic bytes at the beginning of a capture file.
+     */
+    private static final byte[] MAGIC = {'F', 'T', 'W', 'C'};
+    /**
+     * Version of the format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Tag of definition records.
+     */
+    private static final int DEFINITION = 0;
+    /**
+     * Headers of user requests; the tag of a request record is the index of its header plus one.
+     */
+    private static final String[] HEADERS = {"Get", "Increment", "Decrement"};
+    /**
+     * Size of the buffer of the capture file in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * Interval between flushes of the capture file in milliseconds.
+     */
+    private static final int FLUSH_INTERVAL = 1000;
+    
+    /**
+     * Writes an unsigned variable-length integer.
+     * @param out output
+     * @param value value, not negative
+     * @throws IOException if it fails to write
+     */
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    /**
+     * Reads an unsigned variable-length integer.
+     * @param in input
+     * @return value
+     * @throws IOException if it fails to read, or the input ends
+     */
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+    
+    /**
+     * Reads the user requests in a capture file.
+     * A truncated last record, like that of a killed replica, is ignored.
+     * @param fileName the name of the capture file
+     * @return user requests in the order of arrival
+     * @throws IOException if it fails to read, or the file is not a capture file
+     */
+    public static List<Record> read(String fileName) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE));
+        try {
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    throw new IOException("Not a capture file");
+                }
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            readVarint(in);
+            
+            List<String> dictionary = new ArrayList<String>();
+            long arrivalMicros = 0;
+            try {
+                while (true) {
+                    int tag = in.readUnsignedByte();
+                    if (tag == DEFINITION) {
+                        byte[] bytes = new byte[(int) readVarint(in)];
+                        in.readFully(bytes);
+                        dictionary.add(new String(bytes, "UTF-8"));
+                    } else if (tag <= HEADERS.length) {
+                        arrivalMicros += readVarint(in);
+                        String user = lookUp(dictionary, readVarint(in));
+                        String key = lookUp(dictionary, readVarint(in));
+                        records.add(new Record(arrivalMicros, user, HEADERS[tag - 1], key));
+                    } else {
+                        throw new IOException("Invalid tag " + tag);
+                    }
+                }
+            } catch (EOFException e) {}
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+    
+    /**
+     * Looks up a string defined earlier in a capture file.
+     * @param dictionary strings in the order of their definitions
+     * @param id id of the string
+     * @return string
+     * @throws IOException if the string is not defined
+     */
+    private static String lookUp(List<String> dictionary, long id) throws IOException {
+        if (id < 0 || id >= dictionary.size()) {
+            throw new IOException("Invalid id " + id);
+        }
+        return dictionary.get((int) id);
+    }
+    
+    /**
+     * The capture writer; if null, capture is disabled.
+     */
+    private DataOutputStream captureWriter;
+    /**
+     * Ids of users and keys in the dictionary.
+     * Keys are strings. Values are ids.
+     */
+    private final Map<String, Integer> dictionary;
+    /**
+     * Time when the capture starts in nanoseconds.
+     */
+    private final long startNanos;
+    /**
+     * Arrival time of the previous user request in microseconds since the capture starts.
+     */
+    private long previousMicros;
+    
+    /**
+     * Constructs a workload capture.
+     * @param fileName the name of the capture file; if null, capture is disabled
+     */
+    public WorkloadCapture(String fileName) {
+        this.dictionary = new HashMap<String, Integer>();
+        this.startNanos = System.nanoTime();
+        this.previousMicros = 0;
+        if (fileName != null) {
+            try {
+                this.captureWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE));
+                captureWriter.write(MAGIC);
+                captureWriter.writeByte(VERSION);
+                writeVarint(captureWriter, System.currentTimeMillis());
+                new Thread(new Flusher()).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.captureWriter = null;
+            }
+        }
+    }
+    
+    /**
+     * Returns true if capture is enabled.
+     * @return true if capture is enabled
+     */
+    public boolean isEnabled() {
+        return captureWriter != null;
+    }
+    
+    /**
+     * Records a user request received now.
+     * <header>|<key>,<timestamp>
+     * @param source source of the user request in the distributed system
+     * @param request user request
+     */
+    public void record(String source, String request) {
+        if (captureWriter == null) {
+            return;
+        }
+        
+        int index = request.indexOf('|');
+        String header = request.substring(0, index);
+        int tag = 0;
+        for (int i = 0; i < HEADERS.length; i++) {
+            if (HEADERS[i].equals(header)) {
+                tag = i + 1;
+                break;
+            }
+        }
+        if (tag == 0) {
+            return;
+        }
+        int keyEnd = request.indexOf(',', index + 1);
+        String key = request.substring(index + 1, keyEnd < 0 ? request.length() : keyEnd);
+        
+        synchronized(this) {
+            // The time is read in the lock, so arrival times are in the order of records.
+            long micros = (System.nanoTime() - startNanos) / 1000;
+            try {
+                int userId = define(source);
+                int keyId = define(key);
+                captureWriter.writeByte(tag);
+                writeVarint(captureWriter, Math.max(micros - previousMicros, 0));
+                writeVarint(captureWriter, userId);
+                writeVarint(captureWriter, keyId);
+                previousMicros = Math.max(micros, previousMicros);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Gets the id of a string in the dictionary, writing a definition record if it is not defined.
+     * The caller must hold the lock of this capture.
+     * @param s string
+     * @return id
+     * @throws IOException if it fails to write
+     */
+    private int define(String s) throws IOException {
+        Integer id = dictionary.get(s);
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.put(s, id);
+            byte[] bytes = s.getBytes("UTF-8");
+            captureWriter.writeByte(DEFINITION);
+            writeVarint(captureWriter, bytes.length);
+            captureWriter.write(bytes);
+        }
+        return id;
+    }
+    
+    /**
+     * Flushes the capture file.
+     */
+    public synchronized void flush() {
+        if (captureWriter == null) {
+            return;
+        }
+        try {
+            captureWriter.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * A recorded user request.
+     *
+     */
+    public static class Record {
+        /**
+         * Arrival time in microseconds since the capture starts.
+         */
+        private final long arrivalMicros;
+        /**
+         * User which sent the user request.
+         */
+        private final String user;
+        /**
+         * Header of the user request.
+         */
+        private final String header;
+        /**
+         * Key of the user request.
+         */
+        private final String key;
+        
+        /**
+         * Constructs a recorded user request.
+         * @param arrivalMicros arrival time in microseconds since the capture starts
+         * @param user user which sent the user request
+         * @param header header of the user request
+         * @param key key of the user request
+         */
+        Record(long arrivalMicros, String user, String header, String key) {
+            this.arrivalMicros = arrivalMicros;
+            this.user = user;
+            this.header = header;
+            this.key = key;
+        }
+        
+        /**
+         * Gets the arrival time.
+         * @return arrival time in microseconds since the capture starts
+         */
+        public long getArrivalMicros() {
+            return arrivalMicros;
+        }
+        
+        /**
+         * Gets the user which sent the user request.
+         * @return user
+         */
+        public String getUser() {
+            return user;
+        }
+        
+        /**
+         * Gets the header of the user request.
+         * @return header
+         */
+        public String getHeader() {
+            return header;
+        }
+        
+        /**
+         * Gets the key of the user request.
+         * @return key
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+    
+    /**
+     * Flusher.
+     *
+     */
+    private class Flusher implements Runnable {
+        /**
+         * Flushes the capture file periodically, so that a killed replica loses at most the user requests of one interval.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(FLUSH_INTERVAL);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                flush();
+            }
+        }
+    }
+}
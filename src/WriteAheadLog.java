@@ -0,0 +1,735 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A write-ahead log of mutations of the data and user timestamps of a replica.
+ * Records are appended to a buffer in memory, and a committer thread writes each batch of records to the log file with one force, so that many concurrent mutations share one fsync.
+ * The log is split into segments. When it is compacted, a snapshot of the data at a sequence number is written, and segments of earlier records are deleted.
+ * When the log starts, the data is recovered from the snapshot and the records after it, so that a restarted replica has the data it acknowledged.
+ * Segment <name>_wal_<first sequence>.bin: FTWL <version> <first sequence> <record> ...
+ * Snapshot <name>_snapshot.bin: a snapshot of data and user timestamps in the snapshot format, with the sequence number, epoch and position
+ * <add> = 1 <key> <delta>
+ * <timestamp> = 2 <user> <timestamp>
+ * <position> = 3 <position>
+ * Records are numbered by sequence from 1, in the order of appending. Additions commute, and a timestamp only replaces an earlier one, so records of concurrent mutations may be in any order.
+ * A position is a number defined by the replica, like the number of user requests handled in total order, which identifies the data among replicas; the latest one is recovered.
+ * Positions are comparable only in the same epoch, which the replica sets when it begins a new order; the epoch changes only with a snapshot.
+ * Numbers are variable-length integers, 7 bits per byte with the lowest bits first; signed ones are zigzag encoded. Strings are a length and UTF-8 bytes.
+ * @author Shenqi Zhang
+ *
+ */
+public class WriteAheadLog {
+    /**
+     * Force the log before user requests are acknowledged, once per batch.
+     */
+    public static final String FSYNC_BATCH = "batch";
+    /**
+     * Force the log periodically; user requests are acknowledged before their records are forced.
+     */
+    public static final String FSYNC_INTERVAL = "interval";
+    /**
+     * Never force the log; records survive a killed process, but not a crash of the machine.
+     */
+    public static final String FSYNC_NONE = "none";
+    /**
+     * Magic bytes at the beginning of a segment.
+     */
+    private static final byte[] SEGMENT_MAGIC = {'F', 'T', 'W', 'L'};
+    /**
+     * Version of the format of segments.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Tag of addition records.
+     */
+    private static final int ADD = 1;
+    /**
+     * Tag of timestamp records.
+     */
+    private static final int TIMESTAMP = 2;
+    /**
+     * Tag of position records.
+     */
+    private static final int POSITION = 3;
+    /**
+     * Initial size of the buffer of records in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Name of the replica, the prefix of files.
+     */
+    private final String name;
+    /**
+     * Fsync policy: batch, interval or none.
+     */
+    private final String fsync;
+    /**
+     * Interval between forces of the interval policy in milliseconds.
+     */
+    private final int fsyncInterval;
+    /**
+     * Time for which the committer waits for more records before writing a batch, in microseconds.
+     */
+    private final int commitWindow;
+    /**
+     * Statistics of the replica.
+     */
+    private final Statistics statistics;
+    /**
+     * Records appended and not yet taken by the committer.
+     */
+    private byte[] pending;
+    /**
+     * Bytes of pending records.
+     */
+    private int pendingSize;
+    /**
+     * Bytes of pending records which belong to the segment before a rotation; -1 if no rotation is pending.
+     */
+    private int rotationBoundary;
+    /**
+     * Sequence number of the latest appended record.
+     */
+    private long appended;
+    /**
+     * Sequence number of the latest record written by the committer, and forced unless the policy is none.
+     */
+    private long committed;
+    /**
+     * First sequence number of the current segment.
+     */
+    private long segmentFirst;
+    /**
+     * Sequence number of the latest snapshot.
+     */
+    private long snapshotSequence;
+    /**
+     * Latest position appended or recovered.
+     */
+    private long position;
+    /**
+     * Epoch of positions.
+     */
+    private volatile long epoch;
+    /**
+     * Bytes of the current segment.
+     */
+    private volatile long segmentBytes;
+    /**
+     * The current segment; only the committer writes it.
+     */
+    private FileChannel segment;
+    /**
+     * Lock for compactions.
+     */
+    private final Object compactionObj;
+    
+    /**
+     * Constructs a write-ahead log.
+     * @param name name of the replica, the prefix of files
+     * @param fsync fsync policy: batch, interval or none
+     * @param fsyncInterval interval between forces of the interval policy in milliseconds
+     * @param commitWindow time for which the committer waits for more records before writing a batch, in microseconds
+     * @param statistics statistics of the replica
+     */
+    public WriteAheadLog(String name, String fsync, int fsyncInterval, int commitWindow, Statistics statistics) {
+        this.name = name;
+        this.fsync = fsync;
+        this.fsyncInterval = fsyncInterval;
+        this.commitWindow = commitWindow;
+        this.statistics = statistics;
+        this.pending = new byte[BUFFER_SIZE];
+        this.pendingSize = 0;
+        this.rotationBoundary = -1;
+        this.appended = 0;
+        this.committed = 0;
+        this.snapshotSequence = -1;
+        this.position = 0;
+        this.epoch = 0;
+        this.compactionObj = new Object();
+    }
+    
+    /**
+     * Recovers data from the log of a previous run, and launches the committer.
+     * The caller writes a snapshot of the data to begin the log before other threads access data.
+     * A truncated or partly written last record, like that of a killed replica, is ignored.
+     * @param data data, which is replaced by the recovered data if there is a snapshot
+     * @param userTimestamps user timestamps, to which the recovered ones are added
+     * @return true if data is recovered, or false if there is no snapshot
+     * @throws IOException if it fails to read the log or create a segment, or the log is corrupted
+     */
+    public boolean start(CounterStore data, Map<String, Long> userTimestamps) throws IOException {
+        File snapshotFile = new File(name + "_snapshot.bin");
+        boolean recovered = snapshotFile.exists();
+        if (recovered) {
+            long start = System.nanoTime();
+            SnapshotFormat.Reader reader;
+            InputStream in = new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE);
+            try {
+                reader = new SnapshotFormat.Reader(in);
+                data.clear();
+                for (int tag = reader.next(); tag != SnapshotFormat.END; tag = reader.next()) {
+                    if (tag == SnapshotFormat.ENTRY) {
+                        data.put(reader.getKey(), (int) reader.getValue());
+                    } else {
+                        userTimestamps.put(reader.getKey(), reader.getValue());
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            long sequence = reader.getSequence();
+            epoch = reader.getEpoch();
+            position = reader.getPosition();
+            appended = sequence;
+            long replayed = 0;
+            for (File segmentFile : listSegments()) {
+                replayed += replay(segmentFile, sequence, data, userTimestamps);
+            }
+            committed = appended;
+            statistics.set("wal.recovered_records", replayed);
+            statistics.set("wal.recovery_millis", (System.nanoTime() - start) / 1000000);
+        } else {
+            // Segments without a snapshot are left by a replica which stopped before it began the log.
+            for (File file : listSegments()) {
+                file.delete();
+            }
+        }
+        openSegment(appended + 1);
+        new Thread(new Committer()).start();
+        return recovered;
+    }
+    
+    /**
+     * Replays the records of a segment after the snapshot.
+     * @param segmentFile segment
+     * @param sequence sequence number of the snapshot
+     * @param data data
+     * @param userTimestamps user timestamps
+     * @return number of replayed records
+     * @throws IOException if it fails to read, or the segment is corrupted
+     */
+    private long replay(File segmentFile, long sequence, CounterStore data, Map<String, Long> userTimestamps) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segmentFile.toPath()));
+        if (buffer.remaining() < SEGMENT_MAGIC.length + 2) {
+            // A segment is created just before a replica is killed.
+            return 0;
+        }
+        checkHeader(buffer, SEGMENT_MAGIC, segmentFile);
+        long replayed = 0;
+        try {
+            long current = getVarint(buffer) - 1;
+            while (buffer.hasRemaining()) {
+                int tag = buffer.get();
+                if (tag != ADD && tag != TIMESTAMP && tag != POSITION) {
+                    break;
+                }
+                String s = tag == POSITION ? null : getString(buffer);
+                long value = getVarint(buffer);
+                current++;
+                if (current <= sequence) {
+                    continue;
+                }
+                
+                if (tag == ADD) {
+                    int slot = data.find(s);
+                    if (slot >= 0) {
+                        data.add(slot, (int) zigzag(value));
+                    }
+                } else if (tag == TIMESTAMP) {
+                    Long previous = userTimestamps.get(s);
+                    if (previous == null || previous < value) {
+                        userTimestamps.put(s, value);
+                    }
+                } else {
+                    position = value;
+                }
+                appended = current;
+                replayed++;
+            }
+        } catch (BufferUnderflowException e) {}
+        return replayed;
+    }
+    
+    /**
+     * Checks the magic bytes and the version of a file.
+     * @param buffer content of the file
+     * @param magic magic bytes
+     * @param file file
+     * @throws IOException if the file is not of the format
+     */
+    private static void checkHeader(ByteBuffer buffer, byte[] magic, File file) throws IOException {
+        for (byte b : magic) {
+            if (!buffer.hasRemaining() || buffer.get() != b) {
+                throw new IOException("Invalid file " + file.getName());
+            }
+        }
+        if (!buffer.hasRemaining() || buffer.get() != VERSION) {
+            throw new IOException("Unsupported version of " + file.getName());
+        }
+    }
+    
+    /**
+     * Reads an unsigned variable-length integer.
+     * @param buffer buffer
+     * @return value
+     */
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new BufferUnderflowException();
+    }
+    
+    /**
+     * Reads a string.
+     * @param buffer buffer
+     * @return string
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = (int) getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+    
+    /**
+     * Decodes a zigzag encoded integer.
+     * @param value encoded value
+     * @return signed value
+     */
+    private static long zigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    /**
+     * Gets the latest position appended or recovered.
+     * @return position, or 0 if none
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+    
+    /**
+     * Gets the epoch of positions.
+     * @return epoch, or 0 if none
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+    
+    /**
+     * Sets the epoch of positions, which is written with the next snapshot.
+     * The caller compacts the log at once, before it appends records in the new epoch.
+     * @param epoch epoch
+     */
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+    
+    /**
+     * Lists the segments of this log in the working directory.
+     * @return segments in the order of sequence numbers
+     */
+    private List<File> listSegments() {
+        List<File> segments = new ArrayList<File>();
+        File[] files = new File(".").listFiles();
+        if (files != null) {
+            String prefix = name + "_wal_";
+            for (File file : files) {
+                if (file.getName().startsWith(prefix) && file.getName().endsWith(".bin")) {
+                    segments.add(file);
+                }
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(getFirstSequence(f1), getFirstSequence(f2));
+            }
+        });
+        return segments;
+    }
+    
+    /**
+     * Gets the first sequence number of a segment from its name.
+     * @param segmentFile segment
+     * @return first sequence number, or -1 if the name is invalid
+     */
+    private long getFirstSequence(File segmentFile) {
+        String fileName = segmentFile.getName();
+        try {
+            return Long.valueOf(fileName.substring(name.length() + 5, fileName.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Opens a new segment, and closes the current one.
+     * Only the committer calls it after construction.
+     * @param first first sequence number of the new segment
+     * @throws IOException if it fails to create the segment
+     */
+    private void openSegment(long first) throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        segment = new RandomAccessFile(name + "_wal_" + first + ".bin", "rw").getChannel();
+        segment.truncate(0);
+        byte[] header = new byte[16];
+        System.arraycopy(SEGMENT_MAGIC, 0, header, 0, SEGMENT_MAGIC.length);
+        header[SEGMENT_MAGIC.length] = VERSION;
+        int length = putVarint(header, SEGMENT_MAGIC.length + 1, first);
+        segment.write(ByteBuffer.wrap(header, 0, length));
+        segmentBytes = length;
+        synchronized(this) {
+            segmentFirst = first;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Writes an unsigned variable-length integer to a byte array.
+     * @param bytes byte array with enough space
+     * @param offset offset
+     * @param value value, not negative
+     * @return offset after the integer
+     */
+    private static int putVarint(byte[] bytes, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+    
+    /**
+     * Makes room for a record in the pending buffer.
+     * The caller must hold the lock of this log.
+     * @param length maximum bytes of the record
+     */
+    private void ensurePending(int length) {
+        if (pendingSize + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length << 1, pendingSize + length));
+        }
+    }
+    
+    /**
+     * Appends a string to the pending buffer.
+     * The caller must hold the lock of this log.
+     * @param bytes UTF-8 bytes of the string
+     */
+    private void appendString(byte[] bytes) {
+        pendingSize = putVarint(pending, pendingSize, bytes.length);
+        System.arraycopy(bytes, 0, pending, pendingSize, bytes.length);
+        pendingSize += bytes.length;
+    }
+    
+    /**
+     * Appends an addition to the value of a key.
+     * @param key key
+     * @param delta delta
+     */
+    public void appendAdd(String key, int delta) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        synchronized(this) {
+            boolean empty = pendingSize == 0;
+            ensurePending(bytes.length + 16);
+            pending[pendingSize++] = ADD;
+            appendString(bytes);
+            pendingSize = putVarint(pending, pendingSize, ((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL);
+            appended++;
+            if (empty) {
+                notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Appends the timestamp of the latest handled request from a user.
+     * @param user user
+     * @param timestamp timestamp
+     */
+    public void appendTimestamp(String user, long timestamp) {
+        byte[] bytes = user.getBytes(StandardCharsets.UTF_8);
+        synchronized(this) {
+            boolean empty = pendingSize == 0;
+            ensurePending(bytes.length + 20);
+            pending[pendingSize++] = TIMESTAMP;
+            appendString(bytes);
+            pendingSize = putVarint(pending, pendingSize, timestamp);
+            appended++;
+            if (empty) {
+                notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Appends the position of the data.
+     * The caller appends it after the mutations which the position covers.
+     * @param position position
+     */
+    public synchronized void appendPosition(long position) {
+        boolean empty = pendingSize == 0;
+        ensurePending(12);
+        pending[pendingSize++] = POSITION;
+        pendingSize = putVarint(pending, pendingSize, position);
+        this.position = position;
+        appended++;
+        if (empty) {
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Waits until the records appended before are durable, if the policy is batch.
+     * Call it after releasing the lock for data and before acknowledging, so that other writers append to the same batch in the meantime.
+     */
+    public void commit() {
+        if (!fsync.equals(FSYNC_BATCH)) {
+            return;
+        }
+        synchronized(this) {
+            long sequence = appended;
+            while (committed < sequence) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Starts a new segment after the records appended before.
+     * The caller must hold the write lock for data, so that the records are exactly the mutations in a snapshot taken at the same time.
+     * @return sequence number of the latest record in the snapshot
+     */
+    public synchronized long rotate() {
+        rotationBoundary = pendingSize;
+        notifyAll();
+        return appended;
+    }
+    
+    /**
+     * Compacts the log with a snapshot taken when the log is rotated.
+     * The snapshot is written to a temporary file, forced and renamed, and segments of records in the snapshot are deleted.
+     * A snapshot older than the latest one is ignored. A snapshot at the same sequence number replaces it, because data may be replaced without records, like by a checkpoint.
+     * @param sequence sequence number returned by the rotation
+     * @param position position of the snapshot
+     * @param data snapshot of data
+     * @param userTimestamps snapshot of user timestamps
+     * @throws IOException if it fails to write the snapshot
+     */
+    public void compact(long sequence, long position, CounterStore data, Map<String, Long> userTimestamps) throws IOException {
+        synchronized(compactionObj) {
+            if (sequence < snapshotSequence) {
+                return;
+            }
+            
+            File temp = new File(name + "_snapshot.bin.tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                SnapshotFormat.Writer writer = new SnapshotFormat.Writer(new BufferedOutputStream(out, BUFFER_SIZE), sequence, epoch, position);
+                writer.writeEntries(data);
+                for (Map.Entry<String, Long> entry : userTimestamps.entrySet()) {
+                    writer.writeTimestamp(entry.getKey(), entry.getValue());
+                }
+                writer.finish();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), new File(name + "_snapshot.bin").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshotSequence = sequence;
+            statistics.add("wal.compactions", 1);
+            
+            // Segments are deleted after the committer starts a segment after the snapshot.
+            synchronized(this) {
+                while (segmentFirst <= sequence) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            List<File> segments = listSegments();
+            for (int i = 0; i < segments.size() - 1; i++) {
+                if (getFirstSequence(segments.get(i + 1)) <= sequence + 1) {
+                    segments.get(i).delete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets the bytes of the current segment.
+     * @return bytes of the current segment
+     */
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+    
+    /**
+     * Committer.
+     *
+     */
+    private class Committer implements Runnable {
+        /**
+         * Writes batches of pending records to the log, with one force for each batch unless the policy is none.
+         * With the interval policy, a batch is written every interval.
+         */
+        @Override
+        public void run() {
+            byte[] batch = new byte[BUFFER_SIZE];
+            while (true) {
+                if (fsync.equals(FSYNC_INTERVAL)) {
+                    try {
+                        Thread.sleep(fsyncInterval);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                synchronized(WriteAheadLog.this) {
+                    while (pendingSize == 0 && rotationBoundary < 0) {
+                        try {
+                            WriteAheadLog.this.wait();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                if (commitWindow > 0) {
+                    try {
+                        Thread.sleep(commitWindow / 1000, (commitWindow % 1000) * 1000);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                
+                int batchSize;
+                int boundary;
+                long sequence;
+                long records;
+                synchronized(WriteAheadLog.this) {
+                    // Buffers are swapped, so that writers append to the other buffer while this batch is written.
+                    byte[] swap = batch;
+                    batch = pending;
+                    pending = swap.length >= batch.length ? swap : new byte[batch.length];
+                    batchSize = pendingSize;
+                    boundary = rotationBoundary;
+                    sequence = appended;
+                    records = appended - committed;
+                    pendingSize = 0;
+                    rotationBoundary = -1;
+                }
+                
+                long start = System.nanoTime();
+                try {
+                    if (boundary < 0) {
+                        write(batch, 0, batchSize);
+                    } else {
+                        // The records before the boundary end the current segment, and the others begin a new one.
+                        write(batch, 0, boundary);
+                        long first = sequence - countRecords(batch, boundary, batchSize) + 1;
+                        openSegment(first);
+                        write(batch, boundary, batchSize);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(0);
+                }
+                statistics.recordLatency("wal.commit", (System.nanoTime() - start) / 1000);
+                statistics.add("wal.commits", 1);
+                statistics.add("wal.records", records);
+                statistics.set("wal.segment_bytes", segmentBytes);
+                
+                synchronized(WriteAheadLog.this) {
+                    committed = sequence;
+                    WriteAheadLog.this.notifyAll();
+                }
+            }
+        }
+        
+        /**
+         * Writes records to the current segment, and forces it unless the policy is none.
+         * @param bytes bytes of records
+         * @param from offset of the first record
+         * @param to offset after the last record
+         * @throws IOException if it fails to write
+         */
+        private void write(byte[] bytes, int from, int to) throws IOException {
+            if (to > from) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, from, to - from);
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer);
+                }
+                segmentBytes += to - from;
+            }
+            if (!fsync.equals(FSYNC_NONE)) {
+                segment.force(false);
+            }
+        }
+        
+        /**
+         * Counts records in bytes.
+         * @param bytes bytes of records
+         * @param from offset of the first record
+         * @param to offset after the last record
+         * @return number of records
+         */
+        private long countRecords(byte[] bytes, int from, int to) {
+            long count = 0;
+            int offset = from;
+            while (offset < to) {
+                // Skip the tag, the string and the number.
+                if (bytes[offset++] != POSITION) {
+                    int length = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte b = bytes[offset++];
+                        length |= (b & 0x7F) << shift;
+                        if (b >= 0) {
+                            break;
+                        }
+                    }
+                    offset += length;
+                }
+                while (bytes[offset++] < 0) {}
+                count++;
+            }
+            return count;
+        }
+    }
+}